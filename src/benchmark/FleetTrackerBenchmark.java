@@ -0,0 +1,115 @@
+package benchmark;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.Pathfinder;
+import mapdata.Route;
+import tracking.FleetListener;
+import tracking.FleetTracker;
+
+/**
+ * Measures how many fixes per second the FleetTracker can take from a fleet of simulated
+ * vehicles driving random routes, a few of which wander off their routes for a while
+ *
+ * Usage: FleetTrackerBenchmark [osm file] [vehicles] [workers], defaulting to Maps/usb.osm,
+ * 10000 vehicles and one worker per core
+ * @author williamloughlin
+ *
+ */
+public class FleetTrackerBenchmark {
+
+	// Distinct routes shared between the vehicles
+	private static final int ROUTES = 200;
+	// Fixes sent by every vehicle
+	private static final int FIXES = 60;
+	// Standard deviation of the noise added to each fix in degrees, about 5 meters
+	private static final double NOISE = 0.00005;
+
+	public static void main(String[] args) throws Exception
+	{
+		Data data = new Data(new File(args.length > 0 ? args[0] : "Maps/usb.osm"));
+		int vehicles = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		ArrayList<Node> reachable = new ArrayList<Node>();
+		for(Iterator<Node> it = data.reachableIterator(); it.hasNext();)
+		{
+			reachable.add(it.next());
+		}
+		Random random = new Random(42);
+		ArrayList<Route> routes = new ArrayList<Route>();
+		while(routes.size() < ROUTES)
+		{
+			Node start = reachable.get(random.nextInt(reachable.size()));
+			Node end = reachable.get(random.nextInt(reachable.size()));
+			Route route = start.equals(end) ? null : new Pathfinder(data).getBestPath(start, end);
+			if(route != null && route.getLength() > 0.5)
+				routes.add(route);
+		}
+
+		// Every vehicle drives its route from start to end over its fixes, one in twenty takes a
+		// detour a tenth of a mile off the route halfway through
+		double[] lats = new double[vehicles*FIXES];
+		double[] lons = new double[vehicles*FIXES];
+		for(int f = 0; f < FIXES; f++)
+		{
+			for(int v = 0; v < vehicles; v++)
+			{
+				Route route = routes.get(v % ROUTES);
+				double along = route.getLength()*f/(FIXES-1);
+				Point2D p = route.positionAt(along);
+				double detour = (v % 20 == 0 && f > FIXES/2 && f < FIXES/2+5) ? 0.0015 : 0;
+				lats[f*vehicles+v] = p.getY() + detour + random.nextGaussian()*NOISE;
+				lons[f*vehicles+v] = p.getX() + random.nextGaussian()*NOISE;
+			}
+		}
+
+		final AtomicInteger on = new AtomicInteger();
+		final AtomicInteger off = new AtomicInteger();
+		final AtomicInteger arrived = new AtomicInteger();
+		FleetTracker tracker = new FleetTracker(workers, new FleetListener()
+				{
+					public void vehicleOnRoute(int vehicle, double along)
+					{
+						on.incrementAndGet();
+					}
+
+					public void vehicleOffRoute(int vehicle, double distance)
+					{
+						off.incrementAndGet();
+					}
+
+					public void vehicleArrived(int vehicle)
+					{
+						arrived.incrementAndGet();
+					}
+				});
+		for(int v = 0; v < vehicles; v++)
+		{
+			tracker.setRoute(v, routes.get(v % ROUTES));
+		}
+		tracker.flush();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < lats.length; i++)
+		{
+			tracker.submit(i % vehicles, lats[i], lons[i]);
+		}
+		tracker.flush();
+		long time = System.nanoTime()-start;
+		tracker.shutdown();
+
+		System.out.println(data.getFileName() + ": " + vehicles + " vehicles, " + lats.length + " fixes, "
+				+ workers + " workers");
+		System.out.printf("  %10.0f fixes/s%n", lats.length/(time/1e9));
+		System.out.println("  events: " + on.get() + " on route, " + off.get() + " off route, "
+				+ arrived.get() + " arrived");
+	}
+}
@@ -0,0 +1,274 @@
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import mapdata.Data;
+import mapdata.GraphBuilder;
+import mapdata.GraphFile;
+import mapdata.RoadGraph;
+
+/**
+ * Builds the GraphFile of a map with the GraphBuilder under a fixed memory limit and times it.
+ * For a map small enough to load, the graph is checked against the RoadGraph of its Data: the
+ * same nodes and edges, and the same shortest distances from random nodes. A generated grid
+ * map can be used instead, to build maps much larger than the heap, e.g. -grid=1500 is a
+ * 2.25 million node file of about 250 MB, which builds with -Xmx32m
+ *
+ * Usage: GraphBuildBenchmark [osm file or -grid=n] [memory MB] [temp dir], defaulting to
+ * Maps/usb.osm, 4 MB and the system temp dir. The graph is written to the temp dir
+ * @author williamloughlin
+ *
+ */
+public class GraphBuildBenchmark {
+
+	// Random sources whose distances are compared
+	private static final int SOURCES = 20;
+
+	public static void main(String[] args) throws Exception
+	{
+		String input = args.length > 0 ? args[0] : "Maps/usb.osm";
+		long memory = (args.length > 1 ? Long.parseLong(args[1]) : 4) << 20;
+		File temp = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+		File osm;
+		int grid = 0;
+		if(input.startsWith("-grid="))
+		{
+			grid = Integer.parseInt(input.substring("-grid=".length()));
+			osm = new File(temp, "grid" + grid + ".osm");
+			long start = System.nanoTime();
+			writeGrid(grid, osm);
+			System.out.printf("Wrote a %d by %d grid, %.1f MB, in %.1f s%n", grid, grid, osm.length()/1e6,
+					(System.nanoTime()-start)/1e9);
+		}
+		else
+		{
+			osm = new File(input);
+		}
+
+		File out = new File(temp, osm.getName() + ".graph");
+		GraphBuilder builder = new GraphBuilder(memory, temp);
+		long start = System.nanoTime();
+		builder.build(osm, out);
+		double seconds = (System.nanoTime()-start)/1e9;
+		GraphFile graph = GraphFile.open(out);
+		System.out.printf("%s: %.1f MB in %.2f s with %d MB for sorting and %d MB of heap, %d runs%n",
+				osm.getName(), osm.length()/1e6, seconds, memory >> 20, Runtime.getRuntime().maxMemory() >> 20,
+				builder.runCount());
+		System.out.printf("  %d nodes and %d ways read, %d nodes, %d edges and %d driveable ways in %.1f MB%n",
+				builder.nodesRead(), builder.waysRead(), graph.size(), graph.edgeCount(), graph.wayCount(),
+				out.length()/1e6);
+
+		if(grid > 0)
+		{
+			// Every node of a grid has an edge to each neighbour, and the far corner is as far
+			// as the two sides
+			long expected = 4L*grid*(grid-1);
+			start = System.nanoTime();
+			double[] dist = distances(graph, graph.number(id(0, 0, grid)));
+			double corner = dist[graph.number(id(grid-1, grid-1, grid))];
+			System.out.printf("  %s edges, corner to corner %.3f miles, searched in %.2f s%n",
+					graph.edgeCount() == expected ? "expected" : "WRONG", corner, (System.nanoTime()-start)/1e9);
+			graph.close();
+			osm.delete();
+			out.delete();
+			return;
+		}
+
+		Data data = new Data(osm);
+		RoadGraph roads = data.getRoadGraph();
+		long roadEdges = roads.first(roads.size());
+		int[] numbers = new int[roads.size()];
+		for(int i = 0; i < roads.size(); i++)
+		{
+			numbers[i] = graph.number(Long.parseLong(roads.getNode(i).getId()));
+		}
+		Random random = new Random(42);
+		double largest = 0;
+		int compared = 0;
+		for(int s = 0; s < SOURCES; s++)
+		{
+			int source = random.nextInt(roads.size());
+			double[] expected = distances(roads, source);
+			double[] actual = distances(graph, numbers[source]);
+			for(int i = 0; i < roads.size(); i++)
+			{
+				double a = numbers[i] < 0 ? Double.POSITIVE_INFINITY : actual[numbers[i]];
+				if(expected[i] != a)
+					largest = Math.max(largest, Math.abs(expected[i]-a));
+				compared++;
+			}
+		}
+		System.out.printf("  RoadGraph has %d nodes and %d edges, %d distances compared, largest difference %.1e%n",
+				roads.size(), roadEdges, compared, largest);
+		graph.close();
+		out.delete();
+	}
+
+	/**
+	 * Shortest distances from a node of a RoadGraph
+	 */
+	private static double[] distances(final RoadGraph graph, int source)
+	{
+		return dijkstra(new Edges()
+				{
+					int size()
+					{
+						return graph.size();
+					}
+
+					long first(int i)
+					{
+						return graph.first(i);
+					}
+
+					int target(long e)
+					{
+						return graph.target((int)e);
+					}
+
+					double length(long e)
+					{
+						return graph.length((int)e);
+					}
+				}, source);
+	}
+
+	/**
+	 * Shortest distances from a node of a GraphFile
+	 */
+	private static double[] distances(final GraphFile graph, int source)
+	{
+		return dijkstra(new Edges()
+				{
+					int size()
+					{
+						return graph.size();
+					}
+
+					long first(int i)
+					{
+						return graph.first(i);
+					}
+
+					int target(long e)
+					{
+						return graph.target(e);
+					}
+
+					double length(long e)
+					{
+						return graph.length(e);
+					}
+				}, source);
+	}
+
+	private static double[] dijkstra(Edges graph, int source)
+	{
+		final double[] dist = new double[graph.size()];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		dist[source] = 0;
+		// Entries of distance and node, stale ones skipped when popped
+		PriorityQueue<double[]> queue = new PriorityQueue<double[]>(64, new Comparator<double[]>()
+				{
+					public int compare(double[] a, double[] b)
+					{
+						return Double.compare(a[0], b[0]);
+					}
+				});
+		queue.add(new double[] {0, source});
+		while(!queue.isEmpty())
+		{
+			double[] top = queue.poll();
+			int node = (int)top[1];
+			if(top[0] > dist[node])
+				continue;
+			for(long e = graph.first(node); e < graph.first(node+1); e++)
+			{
+				int next = graph.target(e);
+				double d = top[0] + graph.length(e);
+				if(d < dist[next])
+				{
+					dist[next] = d;
+					queue.add(new double[] {d, next});
+				}
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * The edges of either kind of graph
+	 */
+	private abstract static class Edges
+	{
+		abstract int size();
+		abstract long first(int i);
+		abstract int target(long e);
+		abstract double length(long e);
+	}
+
+	/**
+	 * The id of a node of a generated grid. Ids are scattered so the file isn't in id order
+	 */
+	private static long id(int row, int column, int n)
+	{
+		long i = (long)row*n + column;
+		return (i*2654435761L) % 4294967311L + 1;
+	}
+
+	/**
+	 * Writes a grid of streets a hundredth of a mile apart, each row and column one way
+	 */
+	private static void writeGrid(int n, File file) throws IOException
+	{
+		BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		try
+		{
+			double step = 0.01/69;
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+			out.write(" <bounds minlat=\"40\" minlon=\"-73\" maxlat=\"" + (40+n*step) + "\" maxlon=\""
+					+ (-73+n*step) + "\"/>\n");
+			for(int r = 0; r < n; r++)
+			{
+				for(int c = 0; c < n; c++)
+				{
+					out.write(String.format(Locale.ROOT, " <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>\n", id(r, c, n),
+							40+r*step, -73+c*step));
+				}
+			}
+			long way = 1;
+			for(int r = 0; r < n; r++)
+			{
+				out.write(" <way id=\"" + way++ + "\">\n");
+				for(int c = 0; c < n; c++)
+				{
+					out.write("  <nd ref=\"" + id(r, c, n) + "\"/>\n");
+				}
+				out.write("  <tag k=\"highway\" v=\"residential\"/>\n  <tag k=\"name\" v=\"Row " + r + "\"/>\n </way>\n");
+			}
+			for(int c = 0; c < n; c++)
+			{
+				out.write(" <way id=\"" + way++ + "\">\n");
+				for(int r = 0; r < n; r++)
+				{
+					out.write("  <nd ref=\"" + id(r, c, n) + "\"/>\n");
+				}
+				out.write("  <tag k=\"highway\" v=\"residential\"/>\n  <tag k=\"name\" v=\"Column " + c + "\"/>\n </way>\n");
+			}
+			out.write("</osm>\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package benchmark;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import mapdata.Data;
+import mapdata.MapMatcher;
+import mapdata.Node;
+import mapdata.Pathfinder;
+import mapdata.Route;
+import mapdata.Way;
+
+/**
+ * Measures the throughput of the MapMatcher on synthetic traces, made by driving random routes
+ * and recording a noisy fix every hundredth of a mile
+ *
+ * Usage: MapMatcherBenchmark [osm file] [traces], defaulting to Maps/usb.osm and 200 traces
+ * @author williamloughlin
+ *
+ */
+public class MapMatcherBenchmark {
+
+	// Spacing of the fixes along a route in miles
+	private static final double SPACING = 0.01;
+	// Standard deviation of the noise added to each fix in degrees, about 5 meters
+	private static final double NOISE = 0.00005;
+
+	public static void main(String[] args) throws Exception
+	{
+		Data data = new Data(new File(args.length > 0 ? args[0] : "Maps/usb.osm"));
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		ArrayList<Node> reachable = new ArrayList<Node>();
+		for(Iterator<Node> it = data.reachableIterator(); it.hasNext();)
+		{
+			reachable.add(it.next());
+		}
+		Random random = new Random(42);
+		ArrayList<ArrayList<Point2D>> traces = new ArrayList<ArrayList<Point2D>>();
+		int fixes = 0;
+		while(traces.size() < count)
+		{
+			Node start = reachable.get(random.nextInt(reachable.size()));
+			Node end = reachable.get(random.nextInt(reachable.size()));
+			Route route = start.equals(end) ? null : new Pathfinder(data).getBestPath(start, end);
+			if(route == null)
+				continue;
+			ArrayList<Point2D> trace = new ArrayList<Point2D>();
+			for(double along = 0; along < route.getLength(); along += SPACING)
+			{
+				Point2D p = route.positionAt(along);
+				trace.add(new Point2D.Double(p.getX() + random.nextGaussian()*NOISE,
+						p.getY() + random.nextGaussian()*NOISE));
+			}
+			traces.add(trace);
+			fixes += trace.size();
+		}
+
+		MapMatcher matcher = new MapMatcher(data);
+		// Warm up before timing
+		matcher.matchAll(traces.subList(0, Math.min(20, traces.size())), 1);
+
+		long start = System.nanoTime();
+		ArrayList<ArrayList<Way>> single = matcher.matchAll(traces, 1);
+		long singleTime = System.nanoTime()-start;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		start = System.nanoTime();
+		matcher.matchAll(traces, threads);
+		long parallelTime = System.nanoTime()-start;
+
+		int ways = 0;
+		for(ArrayList<Way> matched : single)
+		{
+			ways += matched.size();
+		}
+		System.out.println(data.getFileName() + ": " + traces.size() + " traces, " + fixes + " fixes, "
+				+ ways + " ways matched");
+		System.out.printf("  1 thread:   %10.0f fixes/s%n", fixes/(singleTime/1e9));
+		System.out.printf("  %d threads: %10.0f fixes/s%n", threads, fixes/(parallelTime/1e9));
+	}
+}
@@ -0,0 +1,113 @@
+package benchmark;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.NodeIndex;
+
+/**
+ * Compares the closest node lookups of the NodeIndex with the linear scan over every
+ * reachable node that Data.nodeClosest used to do
+ *
+ * Usage: NodeIndexBenchmark [osm file...], defaulting to the bundled maps
+ * @author williamloughlin
+ *
+ */
+public class NodeIndexBenchmark {
+
+	private static final int QUERIES = 20000;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length == 0)
+		{
+			args = new String[] {"Maps/usb.osm", "Maps/london.osm"};
+		}
+		for(String file : args)
+		{
+			run(new Data(new File(file)));
+		}
+	}
+
+	/**
+	 * Times closest node queries at random points on a map with both lookups
+	 * @param data The map to query
+	 */
+	private static void run(Data data)
+	{
+		Random random = new Random(42);
+		Point2D[] points = new Point2D[QUERIES];
+		for(int i = 0; i < QUERIES; i++)
+		{
+			double lon = data.minLon() + random.nextDouble()*(data.maxLon()-data.minLon());
+			double lat = data.minLat() + random.nextDouble()*(data.maxLat()-data.minLat());
+			points[i] = new Point2D.Double(lon, lat);
+		}
+		NodeIndex index = data.getReachableIndex();
+
+		// Warm up both paths before timing them
+		for(int i = 0; i < QUERIES/10; i++)
+		{
+			scan(data, points[i]);
+			index.nearest(points[i]);
+		}
+
+		Node[] scanned = new Node[QUERIES];
+		long start = System.nanoTime();
+		for(int i = 0; i < QUERIES; i++)
+		{
+			scanned[i] = scan(data, points[i]);
+		}
+		long scanTime = System.nanoTime()-start;
+
+		int same = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < QUERIES; i++)
+		{
+			if(scanned[i].equals(index.nearest(points[i])))
+				same++;
+		}
+		long indexTime = System.nanoTime()-start;
+
+		start = System.nanoTime();
+		int found = 0;
+		for(int i = 0; i < QUERIES; i++)
+		{
+			found += index.nearest(points[i], 8).size();
+			found += index.withinRadius(points[i], 0.1).size();
+		}
+		long otherTime = System.nanoTime()-start;
+
+		System.out.println(data.getFileName() + ": " + index.size() + " reachable nodes");
+		System.out.printf("  linear scan:   %8.2f us/query%n", scanTime/1000.0/QUERIES);
+		System.out.printf("  grid nearest:  %8.2f us/query (%.1fx faster, %d/%d identical)%n",
+				indexTime/1000.0/QUERIES, (double)scanTime/indexTime, same, QUERIES);
+		System.out.printf("  8-nearest + 0.1 mile radius: %8.2f us/query (%d nodes found)%n",
+				otherTime/1000.0/QUERIES, found);
+	}
+
+	/**
+	 * The linear scan that nodeClosest did before the index was added
+	 */
+	private static Node scan(Data data, Point2D point)
+	{
+		Iterator<Node> it = data.reachableIterator();
+		double dist = Double.POSITIVE_INFINITY;
+		Node close = null;
+		while(it.hasNext())
+		{
+			Node n = it.next();
+			double thisDist = n.calcDist(point);
+			if(thisDist < dist)
+			{
+				close = n;
+				dist = thisDist;
+			}
+		}
+		return close;
+	}
+}
@@ -0,0 +1,91 @@
+package benchmark;
+
+import java.awt.Dimension;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.Iterator;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdisplay.DataConverter;
+
+/**
+ * Compares converting every node of a map to pixels one Point2D at a time against the batch
+ * conversion over arrays, and checks they agree
+ *
+ * Usage: ProjectionBenchmark [osm file] [rounds], defaulting to Maps/usb.osm and 2000 rounds
+ * @author williamloughlin
+ *
+ */
+public class ProjectionBenchmark {
+
+	public static void main(String[] args) throws Exception
+	{
+		Data data = new Data(new File(args.length > 0 ? args[0] : "Maps/usb.osm"));
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		DataConverter converter = new DataConverter(data, 20000, new Dimension(800, 600));
+
+		int count = data.size();
+		double[] lons = new double[count];
+		double[] lats = new double[count];
+		Point2D[] points = new Point2D[count];
+		int i = 0;
+		for(Iterator<Node> it = data.nodeIterator(); it.hasNext(); i++)
+		{
+			Node n = it.next();
+			lons[i] = n.getLon();
+			lats[i] = n.getLat();
+			points[i] = n.getPoint();
+		}
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+
+		// Warm up both before timing, and keep a sum so the work can't be skipped
+		double sink = 0;
+		for(int r = 0; r < rounds; r++)
+		{
+			sink += perPoint(converter, points);
+			converter.degToPix(lons, lats, xs, ys, count);
+			sink += xs[r % count];
+		}
+
+		long start = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+		{
+			sink += perPoint(converter, points);
+		}
+		long pointTime = System.nanoTime()-start;
+
+		start = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+		{
+			converter.degToPix(lons, lats, xs, ys, count);
+			sink += xs[r % count];
+		}
+		long batchTime = System.nanoTime()-start;
+
+		double worst = 0;
+		for(int j = 0; j < count; j++)
+		{
+			Point2D p = converter.degToPix(points[j]);
+			worst = Math.max(worst, Math.max(Math.abs(p.getX()-xs[j]), Math.abs(p.getY()-ys[j])));
+		}
+
+		long conversions = (long)rounds*count;
+		System.out.println(data.getFileName() + ": " + count + " nodes, " + rounds + " rounds (" + (sink != 0) + ")");
+		System.out.printf("  per point: %8.2f ns/point%n", (double)pointTime/conversions);
+		System.out.printf("  batch:     %8.2f ns/point (%.1fx faster)%n", (double)batchTime/conversions,
+				(double)pointTime/batchTime);
+		System.out.printf("  largest difference: %.2e pixels%n", worst);
+	}
+
+	private static double perPoint(DataConverter converter, Point2D[] points)
+	{
+		double sum = 0;
+		for(Point2D p : points)
+		{
+			sum += converter.degToPix(p).getX();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,101 @@
+package benchmark;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+
+import mapdata.Data;
+import mapdata.RegionListener;
+import mapdata.RegionManager;
+
+/**
+ * Times switching between maps with a RegionManager, first with a budget that holds every map,
+ * where only the first visit to each map reads it, then with a budget that holds one map, where
+ * every switch reads the map again. Also compares the estimated size of each map with the heap
+ * it takes
+ *
+ * Usage: RegionBenchmark [osm file...], defaulting to the bundled maps
+ * @author williamloughlin
+ *
+ */
+public class RegionBenchmark {
+
+	private static final int SWITCHES = 20;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length == 0)
+		{
+			args = new String[] {"Maps/usb.osm", "Maps/london.osm"};
+		}
+		File[] files = new File[args.length];
+		for(int i = 0; i < args.length; i++)
+		{
+			files[i] = new File(args[i]);
+		}
+
+		for(File file : files)
+		{
+			long before = usedHeap();
+			Data data = new Data(file);
+			long used = usedHeap()-before;
+			System.out.printf("%s: estimated %.1f MB, measured %.1f MB%n", data.getFileName(),
+					data.memoryEstimate()/1e6, used/1e6);
+		}
+
+		run("every map kept", new RegionManager(Long.MAX_VALUE), files);
+		run("one map kept", new RegionManager(1), files);
+
+		RegionManager regions = new RegionManager(Long.MAX_VALUE);
+		for(File file : files)
+		{
+			regions.add(file);
+		}
+		for(File file : files)
+		{
+			double[] bounds = regions.getBounds(file);
+			Point2D center = new Point2D.Double((bounds[1]+bounds[3])/2, (bounds[0]+bounds[2])/2);
+			System.out.println("Center of " + file.getName() + " is in " + regions.regionFor(center).getName());
+		}
+	}
+
+	/**
+	 * Switches between the maps in turn, as a user loading each one would
+	 */
+	private static void run(String name, RegionManager regions, File[] files) throws Exception
+	{
+		final int[] evictions = new int[1];
+		regions.addRegionListener(new RegionListener()
+				{
+					public void regionEvicted(Data data)
+					{
+						evictions[0]++;
+					}
+				});
+		long first = 0;
+		long rest = 0;
+		for(int i = 0; i < SWITCHES*files.length; i++)
+		{
+			long start = System.nanoTime();
+			regions.get(files[i % files.length]);
+			long time = System.nanoTime()-start;
+			if(i < files.length)
+				first += time;
+			else
+				rest += time;
+		}
+		int switches = (SWITCHES-1)*files.length;
+		System.out.printf("%s: first loads %.1f ms each, then %.3f ms a switch, %d maps dropped, %.1f MB held%n",
+				name, first/1e6/files.length, rest/1e6/switches, evictions[0], regions.memoryUsed()/1e6);
+		regions.shutdown();
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+}
@@ -0,0 +1,87 @@
+package benchmark;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Iterator;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.Way;
+import mapdisplay.DataConverter;
+import mapdisplay.DetailLevels;
+import mapdisplay.MapRenderer;
+import mapdisplay.TileLayer;
+
+/**
+ * Measures how long it takes to build the levels of detail of a map, how much memory they use,
+ * and how long a tile takes to draw at a range of scales
+ *
+ * Usage: RenderBenchmark [osm file], defaulting to Maps/usb.osm
+ * @author williamloughlin
+ *
+ */
+public class RenderBenchmark {
+
+	private static final int[] SCALES = {2000, 5000, 10000, 40000, 100000};
+	// Time spent drawing at each scale in milliseconds
+	private static final long DRAW_TIME = 2000;
+
+	public static void main(String[] args) throws Exception
+	{
+		Data data = new Data(new File(args.length > 0 ? args[0] : "Maps/usb.osm"));
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// Warm up before timing
+		new DetailLevels(data, threads);
+		long start = System.nanoTime();
+		new DetailLevels(data, 1);
+		long singleTime = System.nanoTime()-start;
+		start = System.nanoTime();
+		DetailLevels detail = new DetailLevels(data, threads);
+		long parallelTime = System.nanoTime()-start;
+
+		System.out.println(data.getFileName() + ":");
+		System.out.printf("  build, 1 thread:   %8.1f ms%n", singleTime/1e6);
+		System.out.printf("  build, %d threads: %8.1f ms%n", threads, parallelTime/1e6);
+		System.out.printf("  memory:            %8.1f KB%n", detail.memoryUsed()/1024.0);
+
+		MapRenderer renderer = new MapRenderer(data, detail);
+		BufferedImage image = new BufferedImage(TileLayer.TILE_SIZE, TileLayer.TILE_SIZE,
+				BufferedImage.TYPE_INT_ARGB);
+		for(int scale : SCALES)
+		{
+			DataConverter converter = new DataConverter(data, scale, new Dimension(800, 600));
+			// The tile in the middle of the map
+			DataConverter tile = converter.forArea(Math.floor(converter.getOriginX()+400-TileLayer.TILE_SIZE/2),
+					Math.floor(converter.getOriginY()+300-TileLayer.TILE_SIZE/2), TileLayer.TILE_SIZE);
+			int level = detail.level(scale);
+			long nodes = 0;
+			long kept = 0;
+			for(Iterator<Way> it = data.wayIterator(); it.hasNext();)
+			{
+				Way way = it.next();
+				int count = 0;
+				for(Iterator<Node> n = way.nodeIterator(); n.hasNext(); n.next())
+				{
+					count++;
+				}
+				int[] drawn = detail.nodes(way, level);
+				nodes += count;
+				kept += drawn == null ? count : drawn.length;
+			}
+			int frames = 0;
+			start = System.nanoTime();
+			while(System.nanoTime()-start < DRAW_TIME*1000000)
+			{
+				Graphics2D g2 = image.createGraphics();
+				renderer.paintMap(g2, tile);
+				g2.dispose();
+				frames++;
+			}
+			System.out.printf("  scale %6d: level %2d, %5.1f%% of nodes kept, %7.3f ms/tile%n", scale, level,
+					100.0*kept/nodes, (System.nanoTime()-start)/1e6/frames);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package benchmark;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import com.starkeffect.highway.GPSEvent;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.Pathfinder;
+import mapdata.RegionManager;
+import mapdata.Route;
+import mapdisplay.MapPanel;
+import tracking.StageStats;
+import tracking.TraceRecorder;
+import tracking.TraceReplayer;
+
+/**
+ * Replays a recorded gps trace as fast as possible through a map panel driving to the end of
+ * the trace, and reports the latency of each stage the panel times. The panel has no gps device
+ * or window, and is painted into an image after every fix. Replays skip the pipeline's
+ * coalescing, so runs before and after a change handle the same fixes and can be compared
+ * directly. If the trace file doesn't exist, a drive along a random route that leaves it now
+ * and then is recorded to it first
+ *
+ * Usage: ReplayBenchmark [osm file] [trace file], defaulting to Maps/usb.osm and
+ * usb.trace
+ * @author williamloughlin
+ *
+ */
+public class ReplayBenchmark {
+
+	private static final int REROUTE = 2;
+
+	private static final Dimension SIZE = new Dimension(800, 600);
+
+	// Routes a generated trace is chosen from, the times it leaves its route, and the distance
+	// in miles between fixes
+	private static final int CANDIDATES = 20;
+	private static final int DETOURS = 4;
+	private static final double STEP = 0.005;
+	// Standard deviation of the noise added to each fix in degrees, about 5 meters
+	private static final double NOISE = 0.00005;
+
+	public static void main(String[] args) throws Exception
+	{
+		// Keeps the panel from opening message dialogs even where there is a display
+		System.setProperty("java.awt.headless", "true");
+		Data data = new Data(new File(args.length > 0 ? args[0] : "Maps/usb.osm"));
+		File file = new File(args.length > 1 ? args[1] : data.getFileName().replace(".osm", "") + ".trace");
+		if(!file.exists())
+		{
+			int fixes = generate(data, file);
+			System.out.println("Recorded " + fixes + " fixes to " + file);
+		}
+		TraceReplayer trace = new TraceReplayer(file);
+		GPSEvent last = trace.getEvent(trace.size()-1);
+		final Point2D end = new Point2D.Double(last.getLongitude(), last.getLatitude());
+
+		final MapPanel panel = new MapPanel(data, new RegionManager(RegionManager.DEFAULT_BUDGET), false);
+		SwingUtilities.invokeAndWait(new Runnable()
+				{
+					public void run()
+					{
+						panel.setSize(SIZE);
+						panel.selectEnd(end);
+						panel.driveToggle();
+					}
+				});
+		BufferedImage image = new BufferedImage(SIZE.width, SIZE.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		long time = panel.replay(trace, 0, g2);
+		g2.dispose();
+		StageStats stats = panel.getTrackingStats();
+
+		System.out.println(data.getFileName() + ": " + trace.size() + " fixes from " + file + ", "
+				+ stats.count(REROUTE) + " routes found");
+		System.out.printf("  %10.0f fixes/s%n", trace.size()/(time/1e9));
+		System.out.print(stats);
+	}
+
+	/**
+	 * Records a drive along the longest of a few random routes to a trace file, with a fix every
+	 * STEP miles a second apart. The drive wanders a tenth of a mile off the route for a few
+	 * fixes DETOURS times, and otherwise stays on it
+	 * @return The number of fixes recorded
+	 */
+	private static int generate(Data data, File file) throws Exception
+	{
+		ArrayList<Node> reachable = new ArrayList<Node>();
+		for(Iterator<Node> it = data.reachableIterator(); it.hasNext();)
+		{
+			reachable.add(it.next());
+		}
+		Random random = new Random(42);
+		Route route = null;
+		for(int i = 0; i < CANDIDATES; i++)
+		{
+			Node from = reachable.get(random.nextInt(reachable.size()));
+			Node to = reachable.get(random.nextInt(reachable.size()));
+			Route candidate = from.equals(to) ? null : new Pathfinder(data).getBestPath(from, to);
+			if(candidate != null && (route == null || candidate.getLength() > route.getLength()))
+				route = candidate;
+		}
+
+		TraceRecorder recorder = new TraceRecorder(file);
+		try
+		{
+			int steps = (int)(route.getLength()/STEP);
+			for(int i = 0; i <= steps; i++)
+			{
+				Point2D p = route.positionAt(route.getLength()*i/steps);
+				int k = i*(DETOURS+1)/steps;
+				boolean detour = k > 0 && k <= DETOURS && i < k*steps/(DETOURS+1)+10;
+				recorder.record(i*1000L, p.getY() + (detour ? 0.0015 : 0) + random.nextGaussian()*NOISE,
+						p.getX() + random.nextGaussian()*NOISE, 0);
+			}
+		}
+		finally
+		{
+			recorder.close();
+		}
+		return recorder.size();
+	}
+}
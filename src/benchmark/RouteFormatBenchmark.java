@@ -0,0 +1,179 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.Pathfinder;
+import mapdata.Polyline;
+import mapdata.Route;
+import mapdata.RouteFormat;
+
+/**
+ * Compares the size and the encoding and decoding speed of routes written as a JSON array of
+ * points, as encoded polylines and in the binary RouteFormat, over random routes of a map. Also
+ * checks that both encodings read back to within their precision
+ *
+ * Usage: RouteFormatBenchmark [osm file] [routes] [rounds], defaulting to Maps/usb.osm, 200
+ * routes and 50 rounds
+ * @author williamloughlin
+ *
+ */
+public class RouteFormatBenchmark {
+
+	public static void main(String[] args) throws Exception
+	{
+		Data data = new Data(new File(args.length > 0 ? args[0] : "Maps/usb.osm"));
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		ArrayList<Node> reachable = new ArrayList<Node>();
+		for(Iterator<Node> it = data.reachableIterator(); it.hasNext();)
+		{
+			reachable.add(it.next());
+		}
+		Random random = new Random(42);
+		ArrayList<Route> routes = new ArrayList<Route>();
+		long vertices = 0;
+		while(routes.size() < count)
+		{
+			Node start = reachable.get(random.nextInt(reachable.size()));
+			Node end = reachable.get(random.nextInt(reachable.size()));
+			Route route = start.equals(end) ? null : new Pathfinder(data).getBestPath(start, end);
+			if(route != null)
+			{
+				routes.add(route);
+				vertices += route.size();
+			}
+		}
+
+		// Sizes, and the encoded routes to decode
+		long jsonBytes = 0;
+		long polylineBytes = 0;
+		String[] polylines = new String[count];
+		for(int r = 0; r < count; r++)
+		{
+			jsonBytes += json(routes.get(r)).length();
+			StringBuilder sb = new StringBuilder();
+			Polyline.encode(routes.get(r), sb);
+			polylines[r] = sb.toString();
+			polylineBytes += polylines[r].length();
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		for(Route route : routes)
+		{
+			RouteFormat.write(route, buffer);
+		}
+		byte[] binary = buffer.toByteArray();
+
+		// Round trip errors in degrees and miles
+		double polylineError = 0;
+		double binaryError = 0;
+		double distanceError = 0;
+		ByteArrayInputStream in = new ByteArrayInputStream(binary);
+		for(int r = 0; r < count; r++)
+		{
+			Route route = routes.get(r);
+			double[][] points = Polyline.decode(polylines[r]);
+			Route copy = RouteFormat.read(in);
+			for(int i = 0; i < route.size(); i++)
+			{
+				polylineError = Math.max(polylineError, Math.abs(points[0][i]-route.getLat(i)));
+				polylineError = Math.max(polylineError, Math.abs(points[1][i]-route.getLon(i)));
+				binaryError = Math.max(binaryError, Math.abs(copy.getLat(i)-route.getLat(i)));
+				binaryError = Math.max(binaryError, Math.abs(copy.getLon(i)-route.getLon(i)));
+				distanceError = Math.max(distanceError, Math.abs(copy.getDistance(i)-route.getDistance(i)));
+			}
+			if(copy.instructionCount() != route.instructionCount() || !copy.toString().equals(route.toString()))
+				throw new IllegalStateException("Directions differ after reading route " + r + " back");
+		}
+
+		System.out.println(data.getFileName() + ": " + count + " routes, " + vertices + " vertices");
+		System.out.printf("  %-10s %10s %10s %12s %12s%n", "format", "bytes", "per vertex", "encode ns/v", "decode ns/v");
+
+		long jsonTime = 0;
+		long polylineEncode = 0;
+		long polylineDecode = 0;
+		long binaryEncode = 0;
+		long binaryDecode = 0;
+		long sink = 0;
+		for(int round = 0; round < rounds; round++)
+		{
+			long start = System.nanoTime();
+			for(Route route : routes)
+			{
+				sink += json(route).length();
+			}
+			long t1 = System.nanoTime();
+			for(Route route : routes)
+			{
+				StringBuilder sb = new StringBuilder();
+				Polyline.encode(route, sb);
+				sink += sb.length();
+			}
+			long t2 = System.nanoTime();
+			for(String polyline : polylines)
+			{
+				Polyline.Decoder decoder = new Polyline.Decoder(polyline);
+				while(decoder.next())
+				{
+					sink += (long)decoder.getLat();
+				}
+			}
+			long t3 = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(binary.length);
+			for(Route route : routes)
+			{
+				RouteFormat.write(route, out);
+			}
+			sink += out.size();
+			long t4 = System.nanoTime();
+			ByteArrayInputStream bin = new ByteArrayInputStream(binary);
+			for(Route route = RouteFormat.read(bin); route != null; route = RouteFormat.read(bin))
+			{
+				sink += route.size();
+			}
+			long t5 = System.nanoTime();
+			// The first half of the rounds warm up
+			if(round >= rounds/2)
+			{
+				jsonTime += t1-start;
+				polylineEncode += t2-t1;
+				polylineDecode += t3-t2;
+				binaryEncode += t4-t3;
+				binaryDecode += t5-t4;
+			}
+		}
+		double measured = (double)vertices*(rounds-rounds/2);
+		System.out.printf("  %-10s %10d %10.2f %12.1f %12s%n", "json", jsonBytes, (double)jsonBytes/vertices,
+				jsonTime/measured, "-");
+		System.out.printf("  %-10s %10d %10.2f %12.1f %12.1f%n", "polyline", polylineBytes,
+				(double)polylineBytes/vertices, polylineEncode/measured, polylineDecode/measured);
+		System.out.printf("  %-10s %10d %10.2f %12.1f %12.1f%n", "binary", binary.length,
+				(double)binary.length/vertices, binaryEncode/measured, binaryDecode/measured);
+		System.out.printf("  largest error: polyline %.1e deg, binary %.1e deg and %.1e miles%n",
+				polylineError, binaryError, distanceError);
+		if(sink == 42)
+			System.out.println();
+	}
+
+	/**
+	 * Writes the points of a route the way the routing server does without geometry=polyline
+	 */
+	private static String json(Route route)
+	{
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < route.size(); i++)
+		{
+			if(i > 0)
+				sb.append(',');
+			sb.append('[').append(route.getLat(i)).append(',').append(route.getLon(i)).append(']');
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,81 @@
+package benchmark;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.Random;
+
+import mapdata.Data;
+import mapdata.Snap;
+
+/**
+ * Measures how long snapping a location to the closest point on a road takes, compared with
+ * snapping to the closest reachable node
+ *
+ * Usage: SegmentIndexBenchmark [osm file...], defaulting to the bundled maps
+ * @author williamloughlin
+ *
+ */
+public class SegmentIndexBenchmark {
+
+	private static final int QUERIES = 200000;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length == 0)
+		{
+			args = new String[] {"Maps/usb.osm", "Maps/london.osm"};
+		}
+		for(String file : args)
+		{
+			run(new Data(new File(file)));
+		}
+	}
+
+	/**
+	 * Times snapping random points near the roads of a map
+	 * @param data The map to query
+	 */
+	private static void run(Data data)
+	{
+		// Points scattered around reachable nodes, the way gps fixes would be
+		Random random = new Random(42);
+		Point2D[] points = new Point2D[QUERIES];
+		for(int i = 0; i < QUERIES; i++)
+		{
+			double lon = data.minLon() + random.nextDouble()*(data.maxLon()-data.minLon());
+			double lat = data.minLat() + random.nextDouble()*(data.maxLat()-data.minLat());
+			Point2D near = data.nodeClosest(new Point2D.Double(lon, lat)).getPoint();
+			points[i] = new Point2D.Double(near.getX() + (random.nextDouble()-0.5)*0.001,
+					near.getY() + (random.nextDouble()-0.5)*0.001);
+		}
+
+		for(int i = 0; i < QUERIES; i++)
+		{
+			data.snap(points[i]);
+			data.nodeClosest(points[i]);
+		}
+
+		double total = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < QUERIES; i++)
+		{
+			Snap snap = data.snap(points[i]);
+			total += snap.getDistance();
+		}
+		long snapTime = System.nanoTime()-start;
+
+		double nodeTotal = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < QUERIES; i++)
+		{
+			nodeTotal += data.nodeClosest(points[i]).calcDist(points[i]);
+		}
+		long nodeTime = System.nanoTime()-start;
+
+		System.out.println(data.getFileName() + ":");
+		System.out.printf("  closest segment: %6.3f us/query, %.4f miles from the road on average%n",
+				snapTime/1000.0/QUERIES, total/QUERIES);
+		System.out.printf("  closest node:    %6.3f us/query, %.4f miles from the node on average%n",
+				nodeTime/1000.0/QUERIES, nodeTotal/QUERIES);
+	}
+}
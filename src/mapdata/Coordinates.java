@@ -0,0 +1,284 @@
+package mapdata;
+
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The numbered coordinates of the nodes of a map, with the OSM id of each node. A map keeps the
+ * coordinates of all its nodes in one of these, numbered as they are read, and every structure
+ * built over the map reads them from there by number rather than keeping a copy or an object
+ * for each node. Ids are found from numbers and numbers from ids through primitive arrays.
+ *
+ * Coordinates are kept either on the heap, as doubles that are read without any conversion, or
+ * outside it, as ints of ten millionths of a degree, the precision OSM files are written in, so
+ * large maps don't fill the heap with arrays the garbage collector has to copy. Either way the
+ * latitude and longitude of a number are stored next to each other, in blocks that are
+ * allocated as coordinates are added. Coordinates are added from one thread; once they are all
+ * added any number of threads can read them
+ * @author williamloughlin
+ *
+ */
+public class Coordinates {
+
+	// Ten millionths of a degree
+	public static final double SCALE = 1e7;
+	// Coordinates in each block, a power of two so a number splits into block and offset with shifts
+	private static final int BLOCK_BITS = 14;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_SIZE-1;
+
+	// Blocks on the heap, null if the coordinates are kept outside it
+	private double[][] heapBlocks;
+	// Blocks outside the heap, null if the coordinates are kept on it
+	private IntBuffer[] directBlocks;
+	private int size;
+	// The OSM id of each number, null for coordinates that aren't a map's
+	private IdTable ids;
+
+	/**
+	 * Creates empty coordinates kept on the heap
+	 */
+	public Coordinates()
+	{
+		this(false);
+	}
+
+	/**
+	 * Creates empty coordinates
+	 * @param offHeap Whether to keep the coordinates outside the heap, trading a conversion on
+	 * every read for less heap
+	 */
+	public Coordinates(boolean offHeap)
+	{
+		if(offHeap)
+		{
+			directBlocks = new IntBuffer[0];
+		}
+		else
+		{
+			heapBlocks = new double[0][];
+		}
+		ids = new IdTable();
+	}
+
+	/**
+	 * Creates coordinates holding a single point, for a node that isn't part of a map. Nothing
+	 * can be added to them and the point has no id
+	 * @param lat The latitude
+	 * @param lon The longitude
+	 * @return The coordinates, with the point as number 0
+	 */
+	public static Coordinates single(double lat, double lon)
+	{
+		Coordinates single = new Coordinates();
+		single.heapBlocks = new double[][] {{lat, lon}};
+		single.size = 1;
+		single.ids = null;
+		return single;
+	}
+
+	/**
+	 * Rounds degrees to the nearest ten millionth
+	 * @param degrees The degrees
+	 * @return The fixed point value
+	 */
+	public static int toFixed(double degrees)
+	{
+		return (int)Math.round(degrees*SCALE);
+	}
+
+	/**
+	 * Converts a fixed point value back to degrees
+	 * @param fixed The fixed point value
+	 * @return The degrees
+	 */
+	public static double toDegrees(int fixed)
+	{
+		return fixed/SCALE;
+	}
+
+	/**
+	 * Adds the coordinates of a node
+	 * @param id The OSM id of the node
+	 * @param lat The latitude
+	 * @param lon The longitude
+	 * @return The number of the coordinates
+	 */
+	public int add(long id, double lat, double lon)
+	{
+		int block = size >>> BLOCK_BITS;
+		int offset = 2*(size & BLOCK_MASK);
+		if(heapBlocks != null)
+		{
+			if(block == heapBlocks.length)
+			{
+				heapBlocks = Arrays.copyOf(heapBlocks, block+1);
+				heapBlocks[block] = new double[2*BLOCK_SIZE];
+			}
+			heapBlocks[block][offset] = lat;
+			heapBlocks[block][offset+1] = lon;
+		}
+		else
+		{
+			if(block == directBlocks.length)
+			{
+				directBlocks = Arrays.copyOf(directBlocks, block+1);
+				directBlocks[block] = ByteBuffer.allocateDirect(8*BLOCK_SIZE).order(ByteOrder.nativeOrder()).asIntBuffer();
+			}
+			directBlocks[block].put(offset, toFixed(lat));
+			directBlocks[block].put(offset+1, toFixed(lon));
+		}
+		ids.put(id, size);
+		return size++;
+	}
+
+	/**
+	 * Accessor for the number of coordinates
+	 * @return The number of coordinates added, counting a node repeated in the file each time
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Accessor for whether the coordinates are kept outside the heap
+	 * @return True if they are kept outside the heap as fixed point values
+	 */
+	public boolean isOffHeap()
+	{
+		return directBlocks != null;
+	}
+
+	/**
+	 * Finds the number of a node from its id
+	 * @param id The OSM id of the node
+	 * @return The number of the node's coordinates, the last added if the node was added more
+	 * than once, or -1 if it has none
+	 */
+	public int find(long id)
+	{
+		return ids == null ? -1 : ids.get(id);
+	}
+
+	/**
+	 * Accessor for the id of a node
+	 * @param i The number of the node's coordinates
+	 * @return The OSM id of the node
+	 */
+	public long getId(int i)
+	{
+		return ids.getId(i);
+	}
+
+	/**
+	 * Accessor for whether a number is the one its node's id leads to, which is false only for
+	 * the earlier copies of a node repeated in the file
+	 * @param i The number of the coordinates
+	 * @return True if find(getId(i)) is i
+	 */
+	public boolean isCurrent(int i)
+	{
+		return ids == null || ids.get(ids.getId(i)) == i;
+	}
+
+	/**
+	 * Accessor for the number of distinct nodes
+	 * @return The number of ids that have coordinates
+	 */
+	public int nodeCount()
+	{
+		return ids == null ? size : ids.size();
+	}
+
+	/**
+	 * Accessor for a latitude
+	 * @param i The number of the coordinate
+	 * @return The latitude in degrees
+	 */
+	public double getLat(int i)
+	{
+		if(heapBlocks != null)
+			return heapBlocks[i >>> BLOCK_BITS][2*(i & BLOCK_MASK)];
+		return directBlocks[i >>> BLOCK_BITS].get(2*(i & BLOCK_MASK))/SCALE;
+	}
+
+	/**
+	 * Accessor for a longitude
+	 * @param i The number of the coordinate
+	 * @return The longitude in degrees
+	 */
+	public double getLon(int i)
+	{
+		if(heapBlocks != null)
+			return heapBlocks[i >>> BLOCK_BITS][2*(i & BLOCK_MASK)+1];
+		return directBlocks[i >>> BLOCK_BITS].get(2*(i & BLOCK_MASK)+1)/SCALE;
+	}
+
+	/**
+	 * Calculates the distance between two coordinates the same way Node.calcDist does
+	 * @param i The number of one coordinate
+	 * @param j The number of the other
+	 * @return The distance in miles
+	 */
+	public double calcDist(int i, int j)
+	{
+		return calcDist(i, getLat(j), getLon(j));
+	}
+
+	/**
+	 * Calculates the distance from a coordinate to a point the same way Node.calcDist does
+	 * @param i The number of the coordinate
+	 * @param point The point, with x as longitude and y as latitude
+	 * @return The distance in miles
+	 */
+	public double calcDist(int i, Point2D point)
+	{
+		return calcDist(i, point.getY(), point.getX());
+	}
+
+	private double calcDist(int i, double otherLat, double otherLon)
+	{
+		return distance(getLat(i), getLon(i), otherLat, otherLon);
+	}
+
+	/**
+	 * Calculates the distance between two points in miles, from a flat projection at their
+	 * average latitude. Every other distance between points on the map is worked out here, so
+	 * routes, snaps and graph edges all agree
+	 * @param lat The latitude of one point
+	 * @param lon The longitude of one point
+	 * @param otherLat The latitude of the other point
+	 * @param otherLon The longitude of the other point
+	 * @return The distance in miles
+	 */
+	public static double distance(double lat, double lon, double otherLat, double otherLon)
+	{
+		double avgLat = (lat + otherLat)/2;
+		double diffX = (lon-otherLon)*Math.cos(Math.PI*avgLat/180)*69;
+		double diffY = (lat - otherLat)*69;
+		return Math.sqrt(diffX*diffX+diffY*diffY);
+	}
+
+	/**
+	 * Accessor for the heap taken by the coordinates and ids
+	 * @return The number of bytes in the blocks on the heap and the id table
+	 */
+	public long heapUsed()
+	{
+		long used = ids == null ? 0 : ids.memoryUsed();
+		return heapBlocks == null ? used : used + 16L*BLOCK_SIZE*heapBlocks.length;
+	}
+
+	/**
+	 * Accessor for the memory outside the heap taken by the coordinates
+	 * @return The number of bytes allocated, including the unused end of the last block
+	 */
+	public long memoryUsed()
+	{
+		return directBlocks == null ? 0 : 8L*BLOCK_SIZE*directBlocks.length;
+	}
+}
@@ -7,9 +7,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -30,6 +32,13 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public class Data 
 {
+	// Approximate heap bytes held for each node, each node reference of a way and each reachable
+	// node on top of the coordinates and ids, including the indexes built over them, measured on
+	// the maps in Maps. A way's tags and the road graph's edges are counted with its nodes
+	private static final long NODE_BYTES = 4;
+	private static final long WAY_NODE_BYTES = 130;
+	private static final long REACHABLE_BYTES = 30;
+
 	private File file;
 	
 	private double maxLat;
@@ -37,28 +46,56 @@ public class Data
 	private double minLon;
 	private double maxLon;
 
-	private HashMap<String, Node> Nodes;
-	private HashSet<Node> Reachable;
+	// The ids and coordinates of every node, numbered in the order the nodes are read. Nodes
+	// are made from their numbers as they are asked for rather than kept
+	private Coordinates coordinates;
 	
 	
 	private HashSet<Way> Ways;
 	private HashSet<Way> Driveable;
 	
-	// Decreases runtime of pathfind by about .1 seconds (a half to a third of the total time)
-	private HashMap<Node, ArrayList<Way>> nodeToWayMap;
+	// Grid over the reachable nodes so the closest node doesn't need a full scan
+	private NodeIndex reachableIndex;
+	// Grid over the segments of the driveable ways for snapping to the closest point on a road
+	private SegmentIndex segmentIndex;
+	// Numbered adjacency arrays of the driveable network for searches that run many times per
+	// second. Its nodes are the reachable nodes, and its edges lead to the ways a node is part of
+	private RoadGraph roadGraph;
+	// Approximate heap bytes held by this map
+	private long memoryEstimate;
 	
 
+	/**
+	 * Reads a map, keeping the coordinates of its nodes on the heap
+	 * @param file The osm file of the map
+	 */
 	public Data(File file) throws Exception
+	{
+		this(file, false);
+	}
+
+	/**
+	 * Reads a map
+	 * @param file The osm file of the map
+	 * @param offHeap Whether to keep the coordinates of the nodes outside the heap, for maps too
+	 * large to keep on it
+	 */
+	public Data(File file, boolean offHeap) throws Exception
 	{
 		this.file = file;
-		Nodes = new HashMap<String, Node>();
-		Reachable = new HashSet<Node>();
+		coordinates = new Coordinates(offHeap);
 		Ways = new HashSet<Way>();
 		Driveable = new HashSet<Way>();
-		nodeToWayMap = new HashMap<Node, ArrayList<Way>>();
 		parse();
-		nodeToWaySetup();
-		
+		roadGraph = new RoadGraph(Driveable, coordinates);
+		int[] reachable = new int[roadGraph.size()];
+		for(int i = 0; i < reachable.length; i++)
+		{
+			reachable[i] = roadGraph.getIndex(i);
+		}
+		reachableIndex = new NodeIndex(coordinates, reachable);
+		segmentIndex = new SegmentIndex(Driveable, coordinates);
+		memoryEstimate = estimateMemory();
 	}
 	
 
@@ -71,23 +108,51 @@ public class Data
 		return file.getName();
 	}
 	
+	/**
+	 * Accessor for the file this data object was read from
+	 * @return The osm file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+	
 	/**
 	 * Accessor for the size of this data object in nodes
 	 * @return The number of nodes in this data object
 	 */
 	public int size()
 	{
-		return Nodes.size();
+		return coordinates.nodeCount();
+	}
+	
+	/**
+	 * Accessor for the approximate heap space this data object holds, so several maps can be
+	 * kept loaded under a budget
+	 * @return The approximate number of bytes held
+	 */
+	public long memoryEstimate()
+	{
+		return memoryEstimate;
 	}
 	
 	/**
 	 * Getter for nodes
 	 * @param id the id of the desired node
-	 * @return the node with the desired id
+	 * @return the node with the desired id, or null if there is none
 	 */
 	public Node getNode(String id)
 	{
-		return Nodes.get(id);
+		int index;
+		try
+		{
+			index = coordinates.find(Long.parseLong(id));
+		}
+		catch(NumberFormatException e)
+		{
+			return null;
+		}
+		return index < 0 ? null : new Node(coordinates, index);
 	}
 	
 	/**
@@ -128,11 +193,45 @@ public class Data
 	
 	/**
 	 * Accessor for an iterator of the nodes contained by the data
-	 * @return An iterator that iterates over the nodes in the hashmap
+	 * @return An iterator that iterates over the nodes in the order they were read
 	 */
 	public Iterator<Node> nodeIterator()
 	{
-		return Nodes.values().iterator();
+		return new Iterator<Node>()
+				{
+					private int next = skipRepeated(0);
+
+					public boolean hasNext()
+					{
+						return next < coordinates.size();
+					}
+
+					public Node next()
+					{
+						if(!hasNext())
+							throw new NoSuchElementException();
+						Node n = new Node(coordinates, next);
+						next = skipRepeated(next+1);
+						return n;
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+	}
+
+	/**
+	 * Finds the first number from i on whose node isn't repeated later in the file
+	 */
+	private int skipRepeated(int i)
+	{
+		while(i < coordinates.size() && !coordinates.isCurrent(i))
+		{
+			i++;
+		}
+		return i;
 	}
 	
 	/**
@@ -144,6 +243,17 @@ public class Data
 		return Ways.iterator();
 	}
 	
+	private long estimateMemory()
+	{
+		long wayNodes = 0;
+		for(Way way : Ways)
+		{
+			wayNodes += way.size();
+		}
+		return coordinates.heapUsed() + NODE_BYTES*coordinates.size() + WAY_NODE_BYTES*wayNodes
+				+ REACHABLE_BYTES*roadGraph.size();
+	}
+	
 	/**
 	 * Method to get the closest reachable node to a point
 	 * @param Lat the lat of the point
@@ -152,59 +262,78 @@ public class Data
 	 */
 	public Node nodeClosest(Point2D point)
 	{
-		Iterator<Node> it = Reachable.iterator();
-		double dist = Double.POSITIVE_INFINITY;
-		Node close = null;
-		while(it.hasNext())
-		{
-			Node n = it.next();
-			double thisDist = n.calcDist(point);
-			if(thisDist < dist)
-			{
-				close = n;
-				dist = thisDist;
-			}
-		}
-		return close;
-		
+		return reachableIndex.nearest(point);
 	}
 	
+	/**
+	 * Method to get the closest point on a driveable way to a point, which may lie between nodes
+	 * @param point The point, with x as longitude and y as latitude
+	 * @return The closest point on a driveable segment
+	 */
+	public Snap snap(Point2D point)
+	{
+		return segmentIndex.nearest(point);
+	}
 	
 	/**
-	 * Method to find the ways that a a reachable node belongs to
-	 * @return An arraylist of driveable ways this node belongs to. 
-	 * @param n The node being examined
-	 * @precondition n belongs to at least 1 driveable way
+	 * Accessor for the spatial index over the segments of the driveable ways
+	 * @return The index of the driveable segments
 	 */
-	public ArrayList<Way> nodeToDriveable(Node n)
+	public SegmentIndex getSegmentIndex()
+	{
+		return segmentIndex;
+	}
+	
+	/**
+	 * Accessor for the coordinates of every node of this map, which structures built over the
+	 * map read instead of keeping their own
+	 * @return The coordinates, numbered as in Node.getIndex
+	 */
+	public Coordinates getCoordinates()
 	{
-		return nodeToWayMap.get(n);
+		return coordinates;
 	}
 	
 	/**
-	 * Adds all driveable nodes to their parent ways on initialization
+	 * Accessor for the driveable network as numbered adjacency arrays
+	 * @return The road graph of this map
 	 */
-	private void nodeToWaySetup()
+	public RoadGraph getRoadGraph()
 	{
-		
-		Iterator<Way> wayIt = Driveable.iterator();
-		while(wayIt.hasNext())
+		return roadGraph;
+	}
+	
+	/**
+	 * Accessor for the spatial index over the reachable nodes, which also answers
+	 * k-nearest and radius queries
+	 * @return The index of the reachable nodes
+	 */
+	public NodeIndex getReachableIndex()
+	{
+		return reachableIndex;
+	}
+	
+	
+	/**
+	 * Method to find the ways that a a reachable node belongs to
+	 * @return An arraylist of driveable ways this node belongs to. 
+	 * @param n The node being examined
+	 * @precondition n belongs to at least 1 driveable way
+	 */
+	public ArrayList<Way> nodeToDriveable(Node n)
+	{
+		int id = roadGraph.id(n);
+		if(id < 0)
+			return null;
+		ArrayList<Way> parents = new ArrayList<Way>();
+		for(int e = roadGraph.first(id); e < roadGraph.first(id+1); e++)
 		{
-			Way way = wayIt.next();
-			
-			Iterator<Node> nodeIt = way.nodeIterator();
-			while(nodeIt.hasNext())
+			if(!parents.contains(roadGraph.way(e)))
 			{
-				Node node = nodeIt.next();
-				ArrayList<Way> parents = nodeToWayMap.get(node);
-				if(parents == null)
-				{
-					parents = new ArrayList<Way>();
-					nodeToWayMap.put(node, parents);
-				}
-				parents.add(way);
+				parents.add(roadGraph.way(e));
 			}
 		}
+		return parents;
 	}
 	
 	
@@ -258,7 +387,27 @@ public class Data
 	 */
 	public Iterator<Node> reachableIterator()
 	{
-		return Reachable.iterator();
+		return new Iterator<Node>()
+				{
+					private int next;
+
+					public boolean hasNext()
+					{
+						return next < roadGraph.size();
+					}
+
+					public Node next()
+					{
+						if(!hasNext())
+							throw new NoSuchElementException();
+						return roadGraph.getNode(next++);
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
 	}
 	
 	/**
@@ -310,7 +459,9 @@ public class Data
      */
     class OSMHandler extends DefaultHandler {
 
-    	private ArrayList<Node> wayConstruct = new ArrayList<Node>();
+    	// The numbers of the nodes of the current way
+    	private int[] wayConstruct = new int[16];
+    	private int wayLength;
     	private String wayId;
     	private HashMap<String, String> tags;
     	
@@ -366,8 +517,7 @@ public class Data
             	String id = atts.getValue("id");
             	String lat = atts.getValue("lat");
             	String lon = atts.getValue("lon");
-            	Node node = new Node(Double.parseDouble(lat), Double.parseDouble(lon), id);
-            	Nodes.put(id, node);
+            	coordinates.add(Long.parseLong(id), Double.parseDouble(lat), Double.parseDouble(lon));
             }
             if(qName.equals("bounds"))
             {
@@ -384,7 +534,16 @@ public class Data
             }
             if(qName.equals("nd"))
             {
-            	wayConstruct.add(Nodes.get(atts.getValue("ref")));
+            	// Ways of a file cut out of a larger map can refer to nodes left out of it
+            	int index = coordinates.find(Long.parseLong(atts.getValue("ref")));
+            	if(index >= 0)
+            	{
+            		if(wayLength == wayConstruct.length)
+            		{
+            			wayConstruct = Arrays.copyOf(wayConstruct, 2*wayLength);
+            		}
+            		wayConstruct[wayLength++] = index;
+            	}
             }
             if(qName.equals("tag"))
             {
@@ -399,19 +558,13 @@ public class Data
         
         private void finishCurrentObj()
         {
-        	Way way = new Way(wayConstruct, wayId, tags);
+        	Way way = new Way(coordinates, Arrays.copyOf(wayConstruct, wayLength), wayId, tags);
         	Ways.add(way);
         	if(way.getType()>=1)
         	{
         		Driveable.add(way);
-        		Iterator<Node> it = way.nodeIterator();
-        		while(it.hasNext())
-        		{
-        			Node n = it.next();
-        			Reachable.add(n);
-        		}
         	}
-        	wayConstruct = new ArrayList<Node>();
+        	wayLength = 0;
         	wayId = null;
         }
 
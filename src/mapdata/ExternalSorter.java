@@ -0,0 +1,427 @@
+package mapdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts records of a fixed number of longs by their first long, with more records than fit in
+ * memory. Records are gathered in an array until it is full, which is sorted and written to a
+ * run file, and the runs are merged as the sorted records are read. When there are too many
+ * runs to merge at once, groups of them are merged into longer runs first. Records with equal
+ * keys come out in no particular order
+ * @author williamloughlin
+ *
+ */
+class ExternalSorter {
+
+	// Bytes buffered for each run file being written or read
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private int width;
+	private File dir;
+	private long[] buffer;
+	// Longs in the buffer
+	private int filled;
+	// Longs the buffer may grow to
+	private int capacity;
+	private ArrayList<File> runs;
+	private long count;
+	private int maxRuns;
+
+	/**
+	 * @param width The number of longs in a record
+	 * @param memory The number of bytes of heap to gather and merge records in
+	 * @param dir Where to write the run files
+	 */
+	ExternalSorter(int width, long memory, File dir)
+	{
+		this.width = width;
+		this.dir = dir;
+		// Half for gathering records, half for the buffers of the runs being merged
+		long records = Math.max(1, memory/2/(8*width));
+		capacity = (int)Math.min(records*width, Integer.MAX_VALUE/width*width);
+		// Grown as records are added, so small inputs don't take the whole budget
+		buffer = new long[Math.min(capacity, 1024*width)];
+		maxRuns = (int)Math.max(2, memory/2/BUFFER_SIZE);
+		runs = new ArrayList<File>();
+	}
+
+	/**
+	 * Adds a record
+	 * @param record The longs of the record, of which the first width are used
+	 * @throws IOException If a run can't be written
+	 */
+	void add(long... record) throws IOException
+	{
+		if(filled == buffer.length)
+		{
+			if(buffer.length < capacity)
+			{
+				buffer = Arrays.copyOf(buffer, (int)Math.min(capacity, 2L*buffer.length));
+			}
+			else
+			{
+				spill();
+			}
+		}
+		System.arraycopy(record, 0, buffer, filled, width);
+		filled += width;
+		count++;
+	}
+
+	/**
+	 * Accessor for the number of records added
+	 * @return The number of records
+	 */
+	long count()
+	{
+		return count;
+	}
+
+	/**
+	 * Accessor for the number of runs written so far
+	 * @return The number of run files, including those merged into longer ones
+	 */
+	int runCount()
+	{
+		return runs.size();
+	}
+
+	/**
+	 * Finishes adding records and starts reading them back in order. The sorter can't be added
+	 * to after this
+	 * @return The records in order of their first long
+	 * @throws IOException If the runs can't be written or read
+	 */
+	Records sort() throws IOException
+	{
+		sortBuffer(0, filled/width-1);
+		if(runs.isEmpty())
+		{
+			// Everything fit in memory
+			final long[] sorted = buffer;
+			final int end = filled;
+			buffer = null;
+			return new Records()
+					{
+						private int position;
+
+						boolean next(long[] record)
+						{
+							if(position >= end)
+								return false;
+							System.arraycopy(sorted, position, record, 0, width);
+							position += width;
+							return true;
+						}
+
+						void close()
+						{
+						}
+					};
+		}
+		spill();
+		buffer = null;
+		ArrayList<File> pending = new ArrayList<File>(runs);
+		while(pending.size() > maxRuns)
+		{
+			ArrayList<File> merged = new ArrayList<File>();
+			for(int from = 0; from < pending.size(); from += maxRuns)
+			{
+				List<File> group = pending.subList(from, Math.min(pending.size(), from+maxRuns));
+				Merge merge = new Merge(group);
+				File run = File.createTempFile("run", ".bin", dir);
+				run.deleteOnExit();
+				RunWriter out = new RunWriter(run);
+				long[] record = new long[width];
+				while(merge.next(record))
+				{
+					out.write(record, 0, width);
+				}
+				out.close();
+				merge.close();
+				for(File done : group)
+				{
+					done.delete();
+				}
+				merged.add(run);
+				runs.add(run);
+			}
+			pending = merged;
+		}
+		return new Merge(pending);
+	}
+
+	/**
+	 * Deletes the run files
+	 */
+	void delete()
+	{
+		for(File run : runs)
+		{
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * Sorts the gathered records and writes them to a new run
+	 */
+	private void spill() throws IOException
+	{
+		sortBuffer(0, filled/width-1);
+		File run = File.createTempFile("run", ".bin", dir);
+		run.deleteOnExit();
+		RunWriter out = new RunWriter(run);
+		for(int i = 0; i < filled; i += width)
+		{
+			out.write(buffer, i, width);
+		}
+		out.close();
+		runs.add(run);
+		filled = 0;
+	}
+
+	/**
+	 * Quicksorts records lo to hi of the buffer in place, recursing on the smaller side
+	 */
+	private void sortBuffer(int lo, int hi)
+	{
+		while(hi-lo > 16)
+		{
+			// Median of three as the pivot
+			int mid = (lo+hi) >>> 1;
+			if(key(mid) < key(lo))
+				swap(mid, lo);
+			if(key(hi) < key(lo))
+				swap(hi, lo);
+			if(key(hi) < key(mid))
+				swap(hi, mid);
+			long pivot = key(mid);
+			int i = lo;
+			int j = hi;
+			while(i <= j)
+			{
+				while(key(i) < pivot)
+					i++;
+				while(key(j) > pivot)
+					j--;
+				if(i <= j)
+				{
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if(j-lo < hi-i)
+			{
+				sortBuffer(lo, j);
+				lo = i;
+			}
+			else
+			{
+				sortBuffer(i, hi);
+				hi = j;
+			}
+		}
+		for(int i = lo+1; i <= hi; i++)
+		{
+			for(int j = i; j > lo && key(j) < key(j-1); j--)
+			{
+				swap(j, j-1);
+			}
+		}
+	}
+
+	private long key(int record)
+	{
+		return buffer[record*width];
+	}
+
+	private void swap(int a, int b)
+	{
+		int x = a*width;
+		int y = b*width;
+		for(int k = 0; k < width; k++)
+		{
+			long t = buffer[x+k];
+			buffer[x+k] = buffer[y+k];
+			buffer[y+k] = t;
+		}
+	}
+
+	/**
+	 * Sorted records read back one at a time
+	 */
+	abstract static class Records
+	{
+		/**
+		 * Reads the next record
+		 * @param record Where to copy the longs of the record
+		 * @return false if there are no more records
+		 * @throws IOException If a run can't be read
+		 */
+		abstract boolean next(long[] record) throws IOException;
+
+		/**
+		 * Closes the run files being read
+		 */
+		abstract void close() throws IOException;
+	}
+
+	/**
+	 * Merges runs by always taking the run whose next record has the smallest key
+	 */
+	private class Merge extends Records
+	{
+		private PriorityQueue<RunReader> queue;
+		private ArrayList<RunReader> readers;
+
+		private Merge(List<File> files) throws IOException
+		{
+			readers = new ArrayList<RunReader>();
+			queue = new PriorityQueue<RunReader>(Math.max(1, files.size()), new Comparator<RunReader>()
+					{
+						public int compare(RunReader a, RunReader b)
+						{
+							return Long.compare(a.record[0], b.record[0]);
+						}
+					});
+			for(File file : files)
+			{
+				RunReader reader = new RunReader(file, width);
+				readers.add(reader);
+				if(reader.advance())
+				{
+					queue.add(reader);
+				}
+			}
+		}
+
+		boolean next(long[] record) throws IOException
+		{
+			RunReader reader = queue.poll();
+			if(reader == null)
+				return false;
+			System.arraycopy(reader.record, 0, record, 0, width);
+			if(reader.advance())
+			{
+				queue.add(reader);
+			}
+			return true;
+		}
+
+		void close() throws IOException
+		{
+			for(RunReader reader : readers)
+			{
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes longs to a run file through a buffer
+	 */
+	private static class RunWriter
+	{
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private ByteBuffer out;
+
+		private RunWriter(File run) throws IOException
+		{
+			file = new RandomAccessFile(run, "rw");
+			channel = file.getChannel();
+			out = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		private void write(long[] values, int offset, int length) throws IOException
+		{
+			for(int i = offset; i < offset+length; i++)
+			{
+				if(!out.hasRemaining())
+				{
+					flush();
+				}
+				out.putLong(values[i]);
+			}
+		}
+
+		private void flush() throws IOException
+		{
+			out.flip();
+			while(out.hasRemaining())
+			{
+				channel.write(out);
+			}
+			out.clear();
+		}
+
+		private void close() throws IOException
+		{
+			flush();
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the records of a run file through a buffer
+	 */
+	private static class RunReader
+	{
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private ByteBuffer in;
+		private long[] record;
+
+		private RunReader(File run, int width) throws IOException
+		{
+			file = new RandomAccessFile(run, "r");
+			channel = file.getChannel();
+			in = ByteBuffer.allocate(BUFFER_SIZE);
+			in.flip();
+			record = new long[width];
+		}
+
+		/**
+		 * Reads the next record into record
+		 * @return false at the end of the run
+		 */
+		private boolean advance() throws IOException
+		{
+			for(int i = 0; i < record.length; i++)
+			{
+				if(in.remaining() < 8)
+				{
+					in.compact();
+					while(in.position() < 8 && channel.read(in) >= 0)
+					{
+					}
+					in.flip();
+					if(in.remaining() < 8)
+					{
+						if(i == 0 && in.remaining() == 0)
+							return false;
+						throw new IOException("Run ends in the middle of a record");
+					}
+				}
+				record[i] = in.getLong();
+			}
+			return true;
+		}
+
+		private void close() throws IOException
+		{
+			file.close();
+		}
+	}
+}
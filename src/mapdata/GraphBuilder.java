@@ -0,0 +1,582 @@
+package mapdata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Builds the GraphFile of an OSM file without holding the map in memory, for maps too large
+ * to load as Data. The file is read once, with node coordinates and the edges of the driveable
+ * ways written to sorted runs on disk, then the edges are joined with the nodes by sorting them
+ * and reading both in order of node id:
+ *
+ *   1. edges sorted by the id of the node they leave, read alongside the nodes sorted by id, number
+ *      the nodes with edges in order of id and write them to the graph
+ *   2. edges sorted by the id of the node they lead to, read alongside the numbered nodes in the
+ *      graph, get the numbers and coordinates of their ends and so their lengths
+ *   3. edges sorted by the number of the node they leave are written to the graph in order
+ *
+ * Every step reads its input in order, and the heap taken by the sorts stays under a fixed
+ * limit however large the map is. As in Data, a way is driveable if Way.typeOf its highway tag
+ * is 1 or more, and references to nodes that aren't in the file are left out
+ * @author williamloughlin
+ *
+ */
+public class GraphBuilder {
+
+	// Bytes buffered for each part of the graph being written
+	private static final int BUFFER_SIZE = 1 << 16;
+	// Longest name kept, in UTF-8 bytes, so its length fits in the unsigned short before it
+	private static final int MAX_NAME = 0xffff;
+
+	private long memory;
+	private File tempDir;
+
+	private long nodesRead;
+	private long waysRead;
+	private int runs;
+
+	/**
+	 * @param memory The number of bytes of heap the sorts may take between them
+	 * @param tempDir Where to write the sorted runs, which need about 100 bytes for every node
+	 * and way reference of the map
+	 */
+	public GraphBuilder(long memory, File tempDir)
+	{
+		this.memory = memory;
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * Builds the graph of a map
+	 * @param osm The OSM file to read
+	 * @param out The graph file to write, which is replaced
+	 * @throws IOException If the files can't be read or written
+	 * @throws SAXException If the OSM file isn't valid XML
+	 */
+	public void build(File osm, File out) throws IOException, SAXException
+	{
+		nodesRead = 0;
+		waysRead = 0;
+		runs = 0;
+		// The first two sorts are filled at once, then read while the next one is filled
+		ExternalSorter nodes = new ExternalSorter(2, memory/4, tempDir);
+		ExternalSorter edges = new ExternalSorter(3, memory/4, tempDir);
+		ExternalSorter byTarget = null;
+		ExternalSorter bySource = null;
+		File wayFile = File.createTempFile("ways", ".bin", tempDir);
+		File nameFile = File.createTempFile("names", ".bin", tempDir);
+		wayFile.deleteOnExit();
+		nameFile.deleteOnExit();
+		RandomAccessFile graph = new RandomAccessFile(out, "rw");
+		try
+		{
+			graph.setLength(0);
+			FileChannel channel = graph.getChannel();
+			Writer ways = new Writer(new RandomAccessFile(wayFile, "rw").getChannel(), 0);
+			Writer names = new Writer(new RandomAccessFile(nameFile, "rw").getChannel(), 0);
+			try
+			{
+				parse(osm, nodes, edges, ways, names);
+			}
+			finally
+			{
+				ways.close();
+				names.close();
+			}
+
+			byTarget = new ExternalSorter(4, memory/2, tempDir);
+			int nodeCount = numberNodes(nodes, edges, byTarget, channel);
+			runs += nodes.runCount() + edges.runCount();
+			nodes.delete();
+			edges.delete();
+
+			bySource = new ExternalSorter(4, memory/2, tempDir);
+			measureEdges(byTarget, bySource, channel, nodeCount);
+			runs += byTarget.runCount();
+			byTarget.delete();
+
+			long edgeCount = bySource.count();
+			writeEdges(bySource, channel, nodeCount);
+			runs += bySource.runCount();
+			bySource.delete();
+
+			// The ways and their names follow the edges as they were written
+			long wayCount = wayFile.length()/GraphFile.WAY_SIZE;
+			long position = GraphFile.waysOffset(nodeCount, edgeCount);
+			position += copy(wayFile, channel, position);
+			copy(nameFile, channel, position);
+
+			ByteBuffer header = ByteBuffer.allocate(GraphFile.HEADER_SIZE);
+			header.putInt(GraphFile.MAGIC).putInt(GraphFile.VERSION);
+			header.putLong(nodeCount).putLong(edgeCount).putLong(wayCount);
+			header.flip();
+			write(channel, header, 0);
+		}
+		finally
+		{
+			graph.close();
+			nodes.delete();
+			edges.delete();
+			if(byTarget != null)
+				byTarget.delete();
+			if(bySource != null)
+				bySource.delete();
+			wayFile.delete();
+			nameFile.delete();
+		}
+	}
+
+	/**
+	 * Accessor for the number of nodes in the last map built
+	 * @return The number of nodes read, reachable or not
+	 */
+	public long nodesRead()
+	{
+		return nodesRead;
+	}
+
+	/**
+	 * Accessor for the number of ways in the last map built
+	 * @return The number of ways read, driveable or not
+	 */
+	public long waysRead()
+	{
+		return waysRead;
+	}
+
+	/**
+	 * Accessor for the number of sorted runs written while building the last map
+	 * @return The number of run files, 0 if every sort fit in memory
+	 */
+	public int runCount()
+	{
+		return runs;
+	}
+
+	/**
+	 * Reads the OSM file, adding a record of id and coordinates for every node, a record of the
+	 * ids of its ends and the number of its way for each direction of every driveable segment,
+	 * and writing every driveable way to the way and name files
+	 */
+	private void parse(File osm, final ExternalSorter nodes, final ExternalSorter edges, final Writer ways,
+			final Writer names) throws IOException, SAXException
+	{
+		final long[] record = new long[3];
+		DefaultHandler handler = new DefaultHandler()
+				{
+					private long[] refs = new long[256];
+					private int refCount;
+					private boolean inWay;
+					private String highway;
+					private String name;
+					private int wayNumber;
+
+					public void startElement(String uri, String localName, String qName, Attributes atts)
+							throws SAXException
+					{
+						try
+						{
+							if(qName.equals("node"))
+							{
+								int lat = Coordinates.toFixed(Double.parseDouble(atts.getValue("lat")));
+								int lon = Coordinates.toFixed(Double.parseDouble(atts.getValue("lon")));
+								record[0] = Long.parseLong(atts.getValue("id"));
+								record[1] = (long)lat << 32 | lon & 0xffffffffL;
+								nodes.add(record);
+								nodesRead++;
+							}
+							else if(qName.equals("way"))
+							{
+								inWay = true;
+								refCount = 0;
+								highway = null;
+								name = null;
+							}
+							else if(inWay && qName.equals("nd"))
+							{
+								if(refCount == refs.length)
+								{
+									refs = Arrays.copyOf(refs, 2*refCount);
+								}
+								refs[refCount++] = Long.parseLong(atts.getValue("ref"));
+							}
+							else if(inWay && qName.equals("tag"))
+							{
+								if("highway".equals(atts.getValue("k")))
+									highway = atts.getValue("v");
+								else if("name".equals(atts.getValue("k")))
+									name = atts.getValue("v");
+							}
+						}
+						catch(IOException e)
+						{
+							throw new SAXException(e);
+						}
+					}
+
+					public void endElement(String uri, String localName, String qName) throws SAXException
+					{
+						if(!qName.equals("way"))
+							return;
+						inWay = false;
+						waysRead++;
+						int type = Way.typeOf(highway);
+						if(type < 1)
+							return;
+						try
+						{
+							for(int i = 1; i < refCount; i++)
+							{
+								if(refs[i-1] != refs[i])
+								{
+									record[0] = refs[i-1];
+									record[1] = refs[i];
+									record[2] = wayNumber;
+									edges.add(record);
+									record[0] = refs[i];
+									record[1] = refs[i-1];
+									edges.add(record);
+								}
+							}
+							long nameOffset = 0;
+							if(name != null)
+							{
+								byte[] bytes = name.getBytes(GraphFile.UTF8);
+								int length = Math.min(bytes.length, MAX_NAME);
+								nameOffset = names.position()+1;
+								names.putShort(length);
+								names.put(bytes, length);
+							}
+							ways.putLong(nameOffset << 8 | type & 0xff);
+							wayNumber++;
+						}
+						catch(IOException e)
+						{
+							throw new SAXException(e);
+						}
+					}
+				};
+		InputStream stream = new FileInputStream(osm);
+		try
+		{
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setValidating(false);
+			XMLReader reader = factory.newSAXParser().getXMLReader();
+			reader.setContentHandler(handler);
+			reader.parse(new InputSource(stream));
+		}
+		catch(ParserConfigurationException e)
+		{
+			throw new SAXException(e);
+		}
+		catch(SAXException e)
+		{
+			if(e.getException() instanceof IOException)
+				throw (IOException)e.getException();
+			throw e;
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * Step 1. Numbers every node that has an edge and writes it to the graph, then adds a record
+	 * of the id of the node each edge leads to, the number of the node it leaves, its way and
+	 * the coordinates of the node it leaves
+	 * @return The number of nodes written
+	 */
+	private int numberNodes(ExternalSorter nodes, ExternalSorter edges, ExternalSorter byTarget,
+			FileChannel graph) throws IOException
+	{
+		ExternalSorter.Records nodeRecords = nodes.sort();
+		ExternalSorter.Records edgeRecords = edges.sort();
+		Writer out = new Writer(graph, GraphFile.HEADER_SIZE);
+		int count = 0;
+		try
+		{
+			long[] node = new long[2];
+			long[] edge = new long[3];
+			long[] record = new long[4];
+			boolean moreNodes = nodeRecords.next(node);
+			long source = 0;
+			int number = -1;
+			boolean first = true;
+			while(edgeRecords.next(edge))
+			{
+				if(first || edge[0] != source)
+				{
+					first = false;
+					source = edge[0];
+					while(moreNodes && node[0] < source)
+					{
+						moreNodes = nodeRecords.next(node);
+					}
+					number = -1;
+					if(moreNodes && node[0] == source)
+					{
+						if(count == Integer.MAX_VALUE-1)
+							throw new IOException("Too many nodes for a graph file");
+						number = count++;
+						out.putLong(node[0]);
+						out.putLong(node[1]);
+					}
+				}
+				if(number >= 0)
+				{
+					record[0] = edge[1];
+					record[1] = number;
+					record[2] = edge[2];
+					record[3] = node[1];
+					byTarget.add(record);
+				}
+			}
+		}
+		finally
+		{
+			out.flush();
+			nodeRecords.close();
+			edgeRecords.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Step 2. Finds the number and coordinates of the node each edge leads to from the nodes
+	 * already in the graph, and adds a record of the numbers of both ends, the way and the length
+	 * of each edge whose ends are both in the graph
+	 */
+	private void measureEdges(ExternalSorter byTarget, ExternalSorter bySource, FileChannel graph,
+			int nodeCount) throws IOException
+	{
+		ExternalSorter.Records edgeRecords = byTarget.sort();
+		Reader in = new Reader(graph, GraphFile.HEADER_SIZE);
+		try
+		{
+			long[] edge = new long[4];
+			long[] record = new long[4];
+			int number = -1;
+			long id = Long.MIN_VALUE;
+			long coordinates = 0;
+			while(edgeRecords.next(edge))
+			{
+				while(id < edge[0] && number < nodeCount-1)
+				{
+					number++;
+					id = in.getLong();
+					coordinates = in.getLong();
+				}
+				if(id != edge[0])
+					continue;
+				long from = edge[3];
+				double length = Coordinates.distance(Coordinates.toDegrees((int)(from >> 32)),
+						Coordinates.toDegrees((int)from), Coordinates.toDegrees((int)(coordinates >> 32)),
+						Coordinates.toDegrees((int)coordinates));
+				record[0] = edge[1];
+				record[1] = number;
+				record[2] = edge[2];
+				record[3] = Double.doubleToLongBits(length);
+				bySource.add(record);
+			}
+		}
+		finally
+		{
+			edgeRecords.close();
+		}
+	}
+
+	/**
+	 * Step 3. Writes the edges in order of the node they leave, and where each node's edges start
+	 */
+	private void writeEdges(ExternalSorter bySource, FileChannel graph, int nodeCount) throws IOException
+	{
+		ExternalSorter.Records edgeRecords = bySource.sort();
+		Writer first = new Writer(graph, GraphFile.firstOffset(nodeCount));
+		Writer out = new Writer(graph, GraphFile.edgesOffset(nodeCount));
+		try
+		{
+			long[] edge = new long[4];
+			long index = 0;
+			int next = 0;
+			while(edgeRecords.next(edge))
+			{
+				for(; next <= edge[0]; next++)
+				{
+					first.putLong(index);
+				}
+				out.putInt((int)edge[1]);
+				out.putInt((int)edge[2]);
+				out.putLong(edge[3]);
+				index++;
+			}
+			for(; next <= nodeCount; next++)
+			{
+				first.putLong(index);
+			}
+		}
+		finally
+		{
+			first.flush();
+			out.flush();
+			edgeRecords.close();
+		}
+	}
+
+	/**
+	 * Appends a file to the graph
+	 * @return The number of bytes copied
+	 */
+	private static long copy(File from, FileChannel to, long position) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(from, "r");
+		try
+		{
+			FileChannel in = file.getChannel();
+			long size = in.size();
+			for(long done = 0; done < size;)
+			{
+				done += in.transferTo(done, size-done, to.position(position+done));
+			}
+			return size;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Writes to a file from a position through a buffer, so several parts of the graph can be
+	 * written at once
+	 */
+	private static class Writer
+	{
+		private FileChannel channel;
+		private long position;
+		private ByteBuffer buffer;
+
+		private Writer(FileChannel channel, long position)
+		{
+			this.channel = channel;
+			this.position = position;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		/**
+		 * Accessor for the position the next byte will be written at
+		 */
+		private long position()
+		{
+			return position + buffer.position();
+		}
+
+		private void putLong(long v) throws IOException
+		{
+			make(8);
+			buffer.putLong(v);
+		}
+
+		private void putInt(int v) throws IOException
+		{
+			make(4);
+			buffer.putInt(v);
+		}
+
+		private void putShort(int v) throws IOException
+		{
+			make(2);
+			buffer.putShort((short)v);
+		}
+
+		private void put(byte[] bytes, int length) throws IOException
+		{
+			for(int i = 0; i < length; i++)
+			{
+				make(1);
+				buffer.put(bytes[i]);
+			}
+		}
+
+		private void make(int bytes) throws IOException
+		{
+			if(buffer.remaining() < bytes)
+			{
+				flush();
+			}
+		}
+
+		private void flush() throws IOException
+		{
+			buffer.flip();
+			int length = buffer.remaining();
+			write(channel, buffer, position);
+			position += length;
+			buffer.clear();
+		}
+
+		private void close() throws IOException
+		{
+			flush();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads longs from a position of a file through a buffer
+	 */
+	private static class Reader
+	{
+		private FileChannel channel;
+		private long position;
+		private ByteBuffer buffer;
+
+		private Reader(FileChannel channel, long position)
+		{
+			this.channel = channel;
+			this.position = position;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.flip();
+		}
+
+		private long getLong() throws IOException
+		{
+			if(buffer.remaining() < 8)
+			{
+				buffer.compact();
+				while(buffer.position() < 8)
+				{
+					int n = channel.read(buffer, position);
+					if(n < 0)
+						throw new IOException("Graph ends early");
+					position += n;
+				}
+				buffer.flip();
+			}
+			return buffer.getLong();
+		}
+	}
+}
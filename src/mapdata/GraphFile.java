@@ -0,0 +1,317 @@
+package mapdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The driveable network of a map in a binary file, read through memory mapping so a graph
+ * larger than the heap can be searched without loading it. Nodes are numbered in order of
+ * their OSM ids and the edges leaving node i are edges first(i) to first(i+1)-1, as in
+ * RoadGraph. The file is written by GraphBuilder, big endian, as
+ *
+ *   header  int MAGIC, int VERSION, long node count, long edge count, long way count
+ *   nodes   for each node its OSM id as a long, then its latitude and longitude as ints of
+ *           ten millionths of a degree
+ *   first   for each node and once more at the end, the long index of its first edge
+ *   edges   for each edge the int number of the node it leads to, the int number of its way and
+ *           its length in miles as a double
+ *   ways    for each driveable way a long of the offset of its name in the names plus one, 0
+ *           for no name, shifted left a byte over its type
+ *   names   each name as an unsigned short length in UTF-8 bytes, then the bytes
+ * @author williamloughlin
+ *
+ */
+public class GraphFile {
+
+	// "GPSG"
+	public static final int MAGIC = 0x47505347;
+	public static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+	static final int NODE_SIZE = 16;
+	static final int FIRST_SIZE = 8;
+	static final int EDGE_SIZE = 16;
+	static final int WAY_SIZE = 8;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Bytes mapped at once, a multiple of every record size so no record is split between maps
+	private static final long CHUNK = 1L << 30;
+
+	private RandomAccessFile file;
+	private int nodes;
+	private long edges;
+	private int ways;
+
+	private Section nodeSection;
+	private Section firstSection;
+	private Section edgeSection;
+	private Section waySection;
+	private Section nameSection;
+
+	private GraphFile(File f) throws IOException
+	{
+		file = new RandomAccessFile(f, "r");
+		try
+		{
+			if(file.readInt() != MAGIC)
+				throw new IOException("Not a graph file");
+			int version = file.readInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported graph version " + version);
+			long nodeCount = file.readLong();
+			edges = file.readLong();
+			long wayCount = file.readLong();
+			if(nodeCount < 0 || nodeCount >= Integer.MAX_VALUE || wayCount < 0
+					|| wayCount >= Integer.MAX_VALUE || edges < 0)
+				throw new IOException("Malformed graph file");
+			nodes = (int)nodeCount;
+			ways = (int)wayCount;
+
+			FileChannel channel = file.getChannel();
+			long waysOffset = waysOffset(nodes, edges);
+			long namesLength = channel.size()-waysOffset-(long)WAY_SIZE*ways;
+			if(namesLength < 0)
+				throw new IOException("Graph file ends early");
+			nodeSection = new Section(channel, HEADER_SIZE, (long)NODE_SIZE*nodes);
+			firstSection = new Section(channel, firstOffset(nodes), (long)FIRST_SIZE*(nodes+1));
+			edgeSection = new Section(channel, edgesOffset(nodes), EDGE_SIZE*edges);
+			waySection = new Section(channel, waysOffset, (long)WAY_SIZE*ways);
+			nameSection = new Section(channel, waysOffset+(long)WAY_SIZE*ways, namesLength);
+		}
+		catch(IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a graph file
+	 * @param f The file
+	 * @return The graph
+	 * @throws IOException If the file can't be read or isn't a graph file
+	 */
+	public static GraphFile open(File f) throws IOException
+	{
+		return new GraphFile(f);
+	}
+
+	static long firstOffset(long nodes)
+	{
+		return HEADER_SIZE + NODE_SIZE*nodes;
+	}
+
+	static long edgesOffset(long nodes)
+	{
+		return firstOffset(nodes) + FIRST_SIZE*(nodes+1);
+	}
+
+	static long waysOffset(long nodes, long edges)
+	{
+		return edgesOffset(nodes) + EDGE_SIZE*edges;
+	}
+
+	/**
+	 * Accessor for the number of nodes in the graph
+	 * @return The number of nodes
+	 */
+	public int size()
+	{
+		return nodes;
+	}
+
+	/**
+	 * Accessor for the number of edges, counting each direction of a road
+	 * @return The number of edges
+	 */
+	public long edgeCount()
+	{
+		return edges;
+	}
+
+	/**
+	 * Accessor for the number of driveable ways
+	 * @return The number of ways
+	 */
+	public int wayCount()
+	{
+		return ways;
+	}
+
+	/**
+	 * Accessor for the OSM id of a node
+	 * @param i The number of the node
+	 * @return The id of the node
+	 */
+	public long getId(int i)
+	{
+		return nodeSection.getLong((long)NODE_SIZE*i);
+	}
+
+	/**
+	 * Accessor for the latitude of a node
+	 * @param i The number of the node
+	 * @return The latitude in degrees
+	 */
+	public double getLat(int i)
+	{
+		return Coordinates.toDegrees(nodeSection.getInt((long)NODE_SIZE*i+8));
+	}
+
+	/**
+	 * Accessor for the longitude of a node
+	 * @param i The number of the node
+	 * @return The longitude in degrees
+	 */
+	public double getLon(int i)
+	{
+		return Coordinates.toDegrees(nodeSection.getInt((long)NODE_SIZE*i+12));
+	}
+
+	/**
+	 * Finds the number of a node from its OSM id
+	 * @param id The id of the node
+	 * @return The number of the node, or -1 if it isn't in the graph
+	 */
+	public int number(long id)
+	{
+		int lo = 0;
+		int hi = nodes-1;
+		while(lo <= hi)
+		{
+			int mid = (lo+hi) >>> 1;
+			long midId = getId(mid);
+			if(midId < id)
+				lo = mid+1;
+			else if(midId > id)
+				hi = mid-1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Accessor for the first edge leaving a node
+	 * @param i The number of the node
+	 * @return The index of the first edge, the edges of the node end at first(i+1)
+	 */
+	public long first(int i)
+	{
+		return firstSection.getLong((long)FIRST_SIZE*i);
+	}
+
+	/**
+	 * Accessor for the node an edge leads to
+	 * @param e The index of the edge
+	 * @return The number of the node at the end of the edge
+	 */
+	public int target(long e)
+	{
+		return edgeSection.getInt(EDGE_SIZE*e);
+	}
+
+	/**
+	 * Accessor for the way an edge is part of
+	 * @param e The index of the edge
+	 * @return The number of the way
+	 */
+	public int way(long e)
+	{
+		return edgeSection.getInt(EDGE_SIZE*e+4);
+	}
+
+	/**
+	 * Accessor for the length of an edge
+	 * @param e The index of the edge
+	 * @return The length of the edge in miles
+	 */
+	public double length(long e)
+	{
+		return edgeSection.getDouble(EDGE_SIZE*e+8);
+	}
+
+	/**
+	 * Accessor for the type of a way, as in Way.getType
+	 * @param k The number of the way
+	 * @return The type of the way
+	 */
+	public int wayType(int k)
+	{
+		return (byte)waySection.getLong((long)WAY_SIZE*k);
+	}
+
+	/**
+	 * Accessor for the name of a way
+	 * @param k The number of the way
+	 * @return The name of the way, or null if it has none
+	 */
+	public String wayName(int k)
+	{
+		long offset = (waySection.getLong((long)WAY_SIZE*k) >>> 8) - 1;
+		if(offset < 0)
+			return null;
+		int length = (nameSection.getByte(offset) & 0xff) << 8 | nameSection.getByte(offset+1) & 0xff;
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++)
+		{
+			bytes[i] = nameSection.getByte(offset+2+i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Closes the file. The mapped sections stay readable until they are garbage collected
+	 * @throws IOException If the file can't be closed
+	 */
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	/**
+	 * A part of the file mapped in chunks, since one map can't be larger than 2 GB
+	 */
+	private static class Section
+	{
+		private MappedByteBuffer[] chunks;
+
+		private Section(FileChannel channel, long offset, long length) throws IOException
+		{
+			if(offset+length > channel.size())
+				throw new IOException("Graph file ends early");
+			chunks = new MappedByteBuffer[(int)((length+CHUNK-1)/CHUNK)];
+			for(int i = 0; i < chunks.length; i++)
+			{
+				long start = i*CHUNK;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset+start, Math.min(CHUNK, length-start));
+				chunks[i].order(ByteOrder.BIG_ENDIAN);
+			}
+		}
+
+		private byte getByte(long position)
+		{
+			return chunks[(int)(position/CHUNK)].get((int)(position%CHUNK));
+		}
+
+		private int getInt(long position)
+		{
+			return chunks[(int)(position/CHUNK)].getInt((int)(position%CHUNK));
+		}
+
+		private long getLong(long position)
+		{
+			return chunks[(int)(position/CHUNK)].getLong((int)(position%CHUNK));
+		}
+
+		private double getDouble(long position)
+		{
+			return chunks[(int)(position/CHUNK)].getDouble((int)(position%CHUNK));
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package mapdata;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table from the OSM ids of nodes to their numbers in a map's coordinates, in
+ * primitive arrays so a map doesn't keep a string and an entry object for every node. The id of
+ * each number is kept as well. Filled from one thread; once it is filled any number of threads
+ * can read it
+ * @author williamloughlin
+ *
+ */
+class IdTable {
+
+	// Slots are kept at most half full so probe sequences stay short
+	private static final int MIN_SLOTS = 16;
+
+	// The id of each number
+	private long[] ids;
+	// Number+1 of the id hashed to each slot, 0 for empty slots
+	private int[] slots;
+	private int mask;
+	// The number of distinct ids
+	private int size;
+
+	IdTable()
+	{
+		ids = new long[MIN_SLOTS];
+		slots = new int[MIN_SLOTS];
+		mask = MIN_SLOTS-1;
+	}
+
+	/**
+	 * Gives an id a number. An id given a number before is moved to the new number, so a node
+	 * repeated in a file is read as it was last written
+	 * @param id The id
+	 * @param number The number, one more than the last number given
+	 */
+	void put(long id, int number)
+	{
+		if(number == ids.length)
+		{
+			ids = Arrays.copyOf(ids, 2*number);
+		}
+		ids[number] = id;
+		if(2*(size+1) > slots.length)
+		{
+			grow();
+		}
+		int slot = slot(id);
+		if(slots[slot] == 0)
+		{
+			size++;
+		}
+		slots[slot] = number+1;
+	}
+
+	/**
+	 * Finds the number of an id
+	 * @param id The id
+	 * @return The number of the id, or -1 if it hasn't been given one
+	 */
+	int get(long id)
+	{
+		return slots[slot(id)]-1;
+	}
+
+	/**
+	 * Accessor for the id of a number
+	 * @param number The number
+	 * @return The id given the number
+	 */
+	long getId(int number)
+	{
+		return ids[number];
+	}
+
+	/**
+	 * Accessor for the number of distinct ids
+	 * @return The number of ids given a number, each counted once however often it was given one
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Accessor for the heap taken by the table
+	 * @return The number of bytes in the arrays of the table
+	 */
+	long memoryUsed()
+	{
+		return 8L*ids.length + 4L*slots.length;
+	}
+
+	/**
+	 * Finds the slot that holds an id, or the empty slot it would go in
+	 */
+	private int slot(long id)
+	{
+		int slot = hash(id) & mask;
+		while(slots[slot] != 0 && ids[slots[slot]-1] != id)
+		{
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow()
+	{
+		int[] old = slots;
+		slots = new int[2*old.length];
+		mask = slots.length-1;
+		for(int entry : old)
+		{
+			if(entry != 0)
+			{
+				slots[slot(ids[entry-1])] = entry;
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of an id, since the ids of a file are mostly consecutive
+	 */
+	private static int hash(long id)
+	{
+		long h = id*0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
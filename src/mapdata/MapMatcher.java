@@ -0,0 +1,518 @@
+package mapdata;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Matches traces of gps fixes to the ways that were most likely traveled, using a hidden markov
+ * model over the road segments near each fix and the Viterbi algorithm.
+ *
+ * A fix is more likely to come from a close segment than a far one, and moving between two
+ * segments is more likely when the distance along the roads is close to the straight line
+ * distance between the fixes. Only a fixed window of fixes is kept per trace. Once the window
+ * is full the oldest fix is decided from the best path so far and its way is reported, so
+ * memory stays bounded no matter how long the trace is.
+ *
+ * A matcher can be shared between threads, each trace keeps its own state. The scratch space
+ * of the road distance searches is as large as the map, so it belongs to the thread rather than
+ * the trace, and many traces can be matched at once without each holding a copy.
+ * @author williamloughlin
+ *
+ */
+public class MapMatcher {
+
+	// Standard deviation of gps error in miles, about 10 meters
+	private static final double SIGMA = 0.006;
+	// How quickly the likelihood of a transition falls as the road distance exceeds the straight
+	// line distance between fixes, in miles
+	private static final double BETA = 0.01;
+
+	private RoadGraph graph;
+	private SegmentIndex index;
+
+	private double radius;
+	private int candidates;
+	private int window;
+
+	// Search scratch space of each thread matching traces
+	private ThreadLocal<Search> scratch;
+	// Threads matchAll runs on, started by the first call and kept for later ones
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Creates a matcher with a 0.03 mile search radius, five candidate roads per fix and a
+	 * window of twenty fixes
+	 * @param data The map to match traces against
+	 */
+	public MapMatcher(Data data)
+	{
+		this(data, 0.03, 5, 20);
+	}
+
+	/**
+	 * @param data The map to match traces against
+	 * @param radius The distance in miles around each fix to look for roads
+	 * @param candidates The most roads considered for each fix
+	 * @param window The number of fixes kept before the oldest one is decided
+	 */
+	public MapMatcher(Data data, double radius, int candidates, int window)
+	{
+		graph = data.getRoadGraph();
+		index = data.getSegmentIndex();
+		this.radius = radius;
+		this.candidates = candidates;
+		this.window = Math.max(1, window);
+		scratch = new ThreadLocal<Search>()
+				{
+					protected Search initialValue()
+					{
+						return new Search();
+					}
+				};
+	}
+
+	/**
+	 * Starts matching a new trace
+	 * @param listener Notified of each way as soon as it is decided
+	 * @return The trace, to be fed fixes in order
+	 */
+	public Trace newTrace(MatchListener listener)
+	{
+		return new Trace(listener);
+	}
+
+	/**
+	 * Matches a whole trace
+	 * @param fixes The fixes of the trace in order, with x as longitude and y as latitude
+	 * @return The ways traveled, in order
+	 */
+	public ArrayList<Way> match(List<? extends Point2D> fixes)
+	{
+		final ArrayList<Way> ways = new ArrayList<Way>();
+		Trace trace = newTrace(new MatchListener()
+				{
+					public void wayMatched(Way way)
+					{
+						ways.add(way);
+					}
+				});
+		for(Point2D fix : fixes)
+		{
+			trace.add(fix);
+		}
+		trace.finish();
+		return ways;
+	}
+
+	/**
+	 * Matches many traces in parallel
+	 * @param traces The traces to match
+	 * @param threads The number of threads to match them on
+	 * @return The ways traveled by each trace, in the same order as the traces
+	 */
+	public ArrayList<ArrayList<Way>> matchAll(List<? extends List<? extends Point2D>> traces, int threads)
+			throws InterruptedException, ExecutionException
+	{
+		ThreadPoolExecutor pool = executor(Math.max(1, threads));
+		ArrayList<Future<ArrayList<Way>>> futures = new ArrayList<Future<ArrayList<Way>>>();
+		for(final List<? extends Point2D> trace : traces)
+		{
+			futures.add(pool.submit(new Callable<ArrayList<Way>>()
+					{
+						public ArrayList<Way> call()
+						{
+							return match(trace);
+						}
+					}));
+		}
+		ArrayList<ArrayList<Way>> result = new ArrayList<ArrayList<Way>>();
+		for(Future<ArrayList<Way>> f : futures)
+		{
+			result.add(f.get());
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the threads matchAll runs on, starting them the first time and resizing them if a
+	 * different number is asked for
+	 */
+	private synchronized ThreadPoolExecutor executor(int threads)
+	{
+		if(executor == null)
+		{
+			executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(threads, new ThreadFactory()
+					{
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, "MapMatcher");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		else if(threads > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}
+		else if(threads < executor.getMaximumPoolSize())
+		{
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+		return executor;
+	}
+
+	/**
+	 * Stops the threads matchAll runs on. They are daemons, so this is only needed to free them
+	 * before the matcher is dropped
+	 */
+	public synchronized void shutdown()
+	{
+		if(executor != null)
+		{
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * The candidate roads of a single fix and the best score of a path ending at each of them
+	 */
+	private static class Step
+	{
+		private Snap[] snaps;
+		private double[] score;
+		// Index of the candidate in the previous step on the best path, -1 if this starts a path
+		private int[] back;
+
+		private int best()
+		{
+			int best = 0;
+			for(int i = 1; i < score.length; i++)
+			{
+				if(score[i] > score[best])
+					best = i;
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * The state of matching one trace. Not thread safe, each thread should use its own traces
+	 * @author williamloughlin
+	 *
+	 */
+	public class Trace
+	{
+		private MatchListener listener;
+		private ArrayDeque<Step> steps;
+		private Point2D lastFix;
+		private Way lastWay;
+
+		private Trace(MatchListener listener)
+		{
+			this.listener = listener;
+			steps = new ArrayDeque<Step>();
+		}
+
+		/**
+		 * Adds the next fix of the trace. Fixes with no road within the search radius are ignored
+		 * @param fix The location, with x as longitude and y as latitude
+		 */
+		public void add(Point2D fix)
+		{
+			ArrayList<Snap> near = index.candidates(fix, radius, candidates);
+			if(near.isEmpty())
+			{
+				return;
+			}
+			Step step = new Step();
+			step.snaps = near.toArray(new Snap[near.size()]);
+			step.score = new double[step.snaps.length];
+			step.back = new int[step.snaps.length];
+			Arrays.fill(step.score, Double.NEGATIVE_INFINITY);
+			Arrays.fill(step.back, -1);
+
+			Step prev = steps.peekLast();
+			if(prev != null)
+			{
+				double straight = distance(lastFix, fix);
+				double limit = 2*straight + 4*radius;
+				Search search = scratch.get();
+				for(int i = 0; i < prev.snaps.length; i++)
+				{
+					if(prev.score[i] == Double.NEGATIVE_INFINITY)
+						continue;
+					search.search(prev.snaps[i], limit);
+					for(int j = 0; j < step.snaps.length; j++)
+					{
+						double road = search.roadDistance(prev.snaps[i], step.snaps[j]);
+						if(road > limit)
+							continue;
+						double score = prev.score[i] - Math.abs(road-straight)/BETA;
+						if(score > step.score[j])
+						{
+							step.score[j] = score;
+							step.back[j] = i;
+						}
+					}
+					search.reset();
+				}
+			}
+
+			boolean connected = false;
+			for(int j = 0; j < step.snaps.length; j++)
+			{
+				if(step.score[j] != Double.NEGATIVE_INFINITY)
+					connected = true;
+			}
+			if(!connected)
+			{
+				// No way to get here from the previous fixes, so decide them and start over
+				flush();
+				Arrays.fill(step.score, 0);
+				Arrays.fill(step.back, -1);
+			}
+			for(int j = 0; j < step.snaps.length; j++)
+			{
+				double d = step.snaps[j].getDistance()/SIGMA;
+				step.score[j] -= 0.5*d*d;
+			}
+
+			steps.addLast(step);
+			lastFix = fix;
+			if(steps.size() > window)
+			{
+				decideOldest();
+			}
+		}
+
+		/**
+		 * Decides the fixes still in the window once the trace has ended
+		 */
+		public void finish()
+		{
+			flush();
+		}
+
+		/**
+		 * Accessor for the number of fixes waiting to be decided
+		 * @return The number of fixes in the window
+		 */
+		public int pending()
+		{
+			return steps.size();
+		}
+
+		/**
+		 * Follows the best path back from the newest fix and reports the way of the oldest fix
+		 */
+		private void decideOldest()
+		{
+			Iterator<Step> it = steps.descendingIterator();
+			Step step = it.next();
+			int j = step.best();
+			while(it.hasNext())
+			{
+				j = step.back[j];
+				step = it.next();
+			}
+			emit(step.snaps[j].getWay());
+			steps.removeFirst();
+		}
+
+		/**
+		 * Follows the best path back from the newest fix and reports the ways of every fix in
+		 * the window
+		 */
+		private void flush()
+		{
+			if(steps.isEmpty())
+			{
+				return;
+			}
+			Way[] decided = new Way[steps.size()];
+			Iterator<Step> it = steps.descendingIterator();
+			Step step = it.next();
+			int j = step.best();
+			int k = decided.length-1;
+			decided[k] = step.snaps[j].getWay();
+			while(it.hasNext())
+			{
+				j = step.back[j];
+				step = it.next();
+				decided[--k] = step.snaps[j].getWay();
+			}
+			for(Way way : decided)
+			{
+				emit(way);
+			}
+			steps.clear();
+		}
+
+		private void emit(Way way)
+		{
+			if(way != lastWay)
+			{
+				lastWay = way;
+				listener.wayMatched(way);
+			}
+		}
+	}
+
+	/**
+	 * Scratch space for the road distance searches of one thread, as large as the graph and
+	 * reset after each search through the list of nodes it touched
+	 */
+	private class Search
+	{
+		private double[] dist;
+		private int[] touched;
+		private int touchedCount;
+		private int[] heapNodes;
+		private double[] heapKeys;
+		private int heapSize;
+
+		private Search()
+		{
+			dist = new double[graph.size()];
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			touched = new int[64];
+			heapNodes = new int[64];
+			heapKeys = new double[64];
+		}
+
+		/**
+		 * Calculates the distance along the roads between two snapped points, using the
+		 * distances from the last search, which must have started at the first point
+		 */
+		private double roadDistance(Snap from, Snap to)
+		{
+			double length = to.getFrom().calcDist(to.getTo().getPoint());
+			double best = Math.min(dist(to.getFrom()) + to.getFraction()*length,
+					dist(to.getTo()) + (1-to.getFraction())*length);
+			if(from.sameSegment(to))
+			{
+				double along = from.getFrom().equals(to.getFrom()) ? to.getFraction() : 1-to.getFraction();
+				best = Math.min(best, Math.abs(from.getFraction()-along)*length);
+			}
+			return best;
+		}
+
+		private double dist(Node n)
+		{
+			int id = graph.id(n);
+			return id < 0 ? Double.POSITIVE_INFINITY : dist[id];
+		}
+
+		/**
+		 * Dijkstra's algorithm from both ends of the segment of a snapped point, stopping at
+		 * the limit. Leaves the distance to each node it reached in dist
+		 */
+		private void search(Snap from, double limit)
+		{
+			double length = from.getFrom().calcDist(from.getTo().getPoint());
+			offer(graph.id(from.getFrom()), from.getFraction()*length);
+			offer(graph.id(from.getTo()), (1-from.getFraction())*length);
+			while(heapSize > 0)
+			{
+				double key = heapKeys[0];
+				int node = pop();
+				if(key > dist[node] || key > limit)
+					continue;
+				for(int e = graph.first(node); e < graph.first(node+1); e++)
+				{
+					offer(graph.target(e), key + graph.length(e));
+				}
+			}
+		}
+
+		/**
+		 * Lowers the distance of a node and queues it if the new distance is shorter
+		 */
+		private void offer(int node, double key)
+		{
+			if(node < 0 || key >= dist[node])
+				return;
+			if(dist[node] == Double.POSITIVE_INFINITY)
+			{
+				if(touchedCount == touched.length)
+					touched = Arrays.copyOf(touched, touchedCount*2);
+				touched[touchedCount++] = node;
+			}
+			dist[node] = key;
+			if(heapSize == heapNodes.length)
+			{
+				heapNodes = Arrays.copyOf(heapNodes, heapSize*2);
+				heapKeys = Arrays.copyOf(heapKeys, heapSize*2);
+			}
+			int i = heapSize++;
+			while(i > 0 && heapKeys[(i-1)/2] > key)
+			{
+				heapNodes[i] = heapNodes[(i-1)/2];
+				heapKeys[i] = heapKeys[(i-1)/2];
+				i = (i-1)/2;
+			}
+			heapNodes[i] = node;
+			heapKeys[i] = key;
+		}
+
+		/**
+		 * Removes the node with the smallest key from the heap
+		 */
+		private int pop()
+		{
+			int top = heapNodes[0];
+			int lastNode = heapNodes[--heapSize];
+			double lastKey = heapKeys[heapSize];
+			int i = 0;
+			while(2*i+1 < heapSize)
+			{
+				int child = 2*i+1;
+				if(child+1 < heapSize && heapKeys[child+1] < heapKeys[child])
+					child++;
+				if(heapKeys[child] >= lastKey)
+					break;
+				heapNodes[i] = heapNodes[child];
+				heapKeys[i] = heapKeys[child];
+				i = child;
+			}
+			heapNodes[i] = lastNode;
+			heapKeys[i] = lastKey;
+			return top;
+		}
+
+		/**
+		 * Clears the distances left by the last search
+		 */
+		private void reset()
+		{
+			for(int i = 0; i < touchedCount; i++)
+			{
+				dist[touched[i]] = Double.POSITIVE_INFINITY;
+			}
+			touchedCount = 0;
+			heapSize = 0;
+		}
+	}
+
+	/**
+	 * Calculates the straight line distance between two points the same way Node.calcDist does
+	 */
+	private static double distance(Point2D a, Point2D b)
+	{
+		return Coordinates.distance(a.getY(), a.getX(), b.getY(), b.getX());
+	}
+}
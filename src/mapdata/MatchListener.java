@@ -0,0 +1,15 @@
+package mapdata;
+
+/**
+ * Callback used by the MapMatcher to hand back the ways a trace was matched to
+ * @author williamloughlin
+ *
+ */
+public interface MatchListener {
+
+	/**
+	 * Called once for each way the trace travels along, in the order they are traveled
+	 * @param way The next way of the trace
+	 */
+	public void wayMatched(Way way);
+}
@@ -3,33 +3,55 @@ package mapdata;
 import java.awt.geom.Point2D;
 
 /**
- * Class used to represent a geographic point. Immutable
+ * Class used to represent a geographic point. A map doesn't keep an object for each of its
+ * nodes; their ids and coordinates are kept in the map's Coordinates, and a node of a map is a
+ * short lived handle holding only its number there, made when one is asked for. Two handles for
+ * the same number are equal. Immutable
  * @author williamloughlin
  *
  */
 
 public class Node {
 
-	private double Latitude;
-	private double Longitude;
+	// Where the id and coordinates of this node are kept and its number there
+	private Coordinates coordinates;
+	private int index;
 	
+	// The id of a node that isn't part of a map, null for the nodes of a map
 	private String Id;
 	
 	
+	/**
+	 * Constructor for a node that isn't part of a map, which keeps its own coordinates
+	 * @param lat The latitude
+	 * @param lon The longitude
+	 * @param id The id of the node
+	 */
 	public Node(double lat, double lon, String id)
 	{
-		Latitude = lat;
-		Longitude = lon;
+		coordinates = Coordinates.single(lat, lon);
 		Id = id;
 	}
 	
+	/**
+	 * Constructor for a node of a map, whose id and coordinates have been added to the map's
+	 * coordinates
+	 * @param coordinates The coordinates of the map
+	 * @param index The number of the node's coordinates
+	 */
+	public Node(Coordinates coordinates, int index)
+	{
+		this.coordinates = coordinates;
+		this.index = index;
+	}
+	
 	/**
 	 * Accessor for the Latitude of this node
 	 * @return The latitude of this node
 	 */
 	public double getLat()
 	{
-		return Latitude;
+		return coordinates.getLat(index);
 	}
 	
 	/**
@@ -38,7 +60,17 @@ public class Node {
 	 */
 	public double getLon()
 	{
-		return Longitude;
+		return coordinates.getLon(index);
+	}
+	
+	/**
+	 * Accessor for the number of this node's coordinates, for reading them straight from the
+	 * coordinates of its map
+	 * @return The number of the node in Data.getCoordinates, or 0 for a node that isn't part of a map
+	 */
+	public int getIndex()
+	{
+		return index;
 	}
 	
 	/**
@@ -47,7 +79,18 @@ public class Node {
 	 */
 	public String getId()
 	{
-		return Id;
+		return Id != null ? Id : Long.toString(coordinates.getId(index));
+	}
+	
+	/**
+	 * Method that tests whether this is the node with a number in a map's coordinates
+	 * @param coordinates The coordinates of the map
+	 * @param index The number of the node
+	 * @return True if this node is that node
+	 */
+	boolean is(Coordinates coordinates, int index)
+	{
+		return this.coordinates == coordinates && this.index == index && Id == null;
 	}
 	
 	/**
@@ -57,16 +100,14 @@ public class Node {
 	@Override
 	public int hashCode()
 	{
-		int h = 0;
-		for(int i = 0; i < Id.length(); i++)
-		{
-			h = h * 31 + Id.charAt(i);
-		}
-		return h;
+		if(Id != null)
+			return Id.hashCode();
+		return 31*System.identityHashCode(coordinates) + index;
 	}
 	
 	/**
-	 * Overrides the equals method
+	 * Overrides the equals method. Nodes of a map are equal if they have the same number in the
+	 * same coordinates, and nodes that aren't part of a map if they have the same id
 	 * @return Whether another node is identical to this node
 	 */
 	@Override
@@ -84,7 +125,10 @@ public class Node {
 		{
 			return false;
 		}
-		return Id.equals(((Node)other).getId());
+		Node node = (Node)other;
+		if(Id != null)
+			return Id.equals(node.Id);
+		return node.is(coordinates, index);
 	}
 	
 	
@@ -94,7 +138,7 @@ public class Node {
 	 */
 	public Point2D.Double getPoint()
 	{
-		return new Point2D.Double(Longitude, Latitude);
+		return new Point2D.Double(getLon(), getLat());
 	}
 	
 	/**
@@ -104,13 +148,7 @@ public class Node {
 	 */
 	public double calcDist(Point2D other)
 	{
-		double otherLat = other.getY();
-		double otherLon = other.getX();
-		double avgLat = (Latitude + otherLat)/2;
-		
-		double diffX = (Longitude-otherLon)*Math.cos(Math.PI*avgLat/180)*69;
-		double diffY = (Latitude - otherLat)*69;
-		return Math.sqrt(diffX*diffX+diffY*diffY);
+		return Coordinates.distance(getLat(), getLon(), other.getY(), other.getX());
 	}
 	
 	
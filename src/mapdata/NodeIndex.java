@@ -0,0 +1,319 @@
+package mapdata;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Uniform grid over the projected coordinates of a set of nodes. Built once when a map is loaded
+ * and used to find the nodes nearest to a point without scanning every node.
+ *
+ * Coordinates are projected to miles with the cosine of the map's middle latitude, so distances
+ * agree with Node.calcDist to within a fraction of a percent over the area of a map.
+ * @author williamloughlin
+ *
+ */
+public class NodeIndex {
+
+	// Average number of nodes the grid aims to put in each cell
+	private static final int NODES_PER_CELL = 2;
+
+	private double cos;
+	private double minX;
+	private double minY;
+	private double cellSize;
+	private int columns;
+	private int rows;
+
+	// Nodes of cell c are nodes[cellStart[c]] to nodes[cellStart[c+1]-1]
+	private int[] cellStart;
+	// The number of each node in the coordinates
+	private Coordinates coordinates;
+	private int[] nodes;
+	private double[] xs;
+	private double[] ys;
+
+	/**
+	 * @param coordinates The coordinates of the map the nodes belong to
+	 * @param points The numbers of the nodes there
+	 */
+	public NodeIndex(Coordinates coordinates, int[] points)
+	{
+		this.coordinates = coordinates;
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		for(int n : points)
+		{
+			minLat = Math.min(minLat, coordinates.getLat(n));
+			maxLat = Math.max(maxLat, coordinates.getLat(n));
+			minLon = Math.min(minLon, coordinates.getLon(n));
+			maxLon = Math.max(maxLon, coordinates.getLon(n));
+		}
+		if(points.length == 0)
+		{
+			minLat = maxLat = minLon = maxLon = 0;
+		}
+		cos = Math.cos(Math.PI*(minLat+maxLat)/360);
+		minX = projectX(minLon);
+		minY = projectY(minLat);
+		double width = Math.max(projectX(maxLon)-minX, 1e-9);
+		double height = Math.max(projectY(maxLat)-minY, 1e-9);
+
+		int cells = Math.max(1, points.length/NODES_PER_CELL);
+		cellSize = Math.max(Math.sqrt(width*height/cells), 1e-6);
+		columns = (int)(width/cellSize)+1;
+		rows = (int)(height/cellSize)+1;
+
+		// Counting sort of the nodes by cell
+		int[] cellOf = new int[points.length];
+		cellStart = new int[columns*rows+1];
+		int i = 0;
+		for(int n : points)
+		{
+			cellOf[i] = cell(column(projectX(coordinates.getLon(n))), row(projectY(coordinates.getLat(n))));
+			cellStart[cellOf[i]+1]++;
+			i++;
+		}
+		for(int c = 0; c < columns*rows; c++)
+		{
+			cellStart[c+1] += cellStart[c];
+		}
+		int[] fill = new int[columns*rows];
+		nodes = new int[points.length];
+		xs = new double[points.length];
+		ys = new double[points.length];
+		i = 0;
+		for(int n : points)
+		{
+			int slot = cellStart[cellOf[i]] + fill[cellOf[i]]++;
+			nodes[slot] = n;
+			xs[slot] = projectX(coordinates.getLon(n));
+			ys[slot] = projectY(coordinates.getLat(n));
+			i++;
+		}
+	}
+
+	/**
+	 * Accessor for the number of nodes in this index
+	 * @return The number of nodes in this index
+	 */
+	public int size()
+	{
+		return nodes.length;
+	}
+
+	/**
+	 * Method to get the closest node to a point
+	 * @param point The point, with x as longitude and y as latitude
+	 * @return The node closest to the point, null if the index is empty
+	 */
+	public Node nearest(Point2D point)
+	{
+		double x = projectX(point.getX());
+		double y = projectY(point.getY());
+		int col = column(x);
+		int row = row(y);
+
+		int best = -1;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for(int r = 0; ; r++)
+		{
+			for(int c = col-r; c <= col+r; c++)
+			{
+				for(int w = row-r; w <= row+r; w++)
+				{
+					// Only visit the outer ring of cells, the inner ones were visited already
+					if(c != col-r && c != col+r && w != row-r && w != row+r)
+						continue;
+					if(c < 0 || c >= columns || w < 0 || w >= rows)
+						continue;
+					int cell = cell(c, w);
+					for(int j = cellStart[cell]; j < cellStart[cell+1]; j++)
+					{
+						double dx = xs[j]-x;
+						double dy = ys[j]-y;
+						double d = dx*dx+dy*dy;
+						if(d < bestDist)
+						{
+							bestDist = d;
+							best = j;
+						}
+					}
+				}
+			}
+			if(ringsExhausted(col, row, r) || reachedBound(x, y, col, row, r, bestDist))
+				return best < 0 ? null : node(best);
+		}
+	}
+
+	/**
+	 * Method to get the closest nodes to a point
+	 * @param point The point, with x as longitude and y as latitude
+	 * @param k The number of nodes wanted
+	 * @return Up to k nodes ordered from closest to farthest
+	 */
+	public ArrayList<Node> nearest(Point2D point, int k)
+	{
+		final double x = projectX(point.getX());
+		final double y = projectY(point.getY());
+		int col = column(x);
+		int row = row(y);
+
+		// Max heap on distance so the farthest of the current k is dropped first
+		PriorityQueue<Integer> found = new PriorityQueue<Integer>(Math.max(1, k), new Comparator<Integer>()
+				{
+					public int compare(Integer a, Integer b)
+					{
+						return Double.compare(distSq(b, x, y), distSq(a, x, y));
+					}
+				});
+		if(k > 0)
+		{
+			for(int r = 0; ; r++)
+			{
+				for(int c = col-r; c <= col+r; c++)
+				{
+					for(int w = row-r; w <= row+r; w++)
+					{
+						if(c != col-r && c != col+r && w != row-r && w != row+r)
+							continue;
+						if(c < 0 || c >= columns || w < 0 || w >= rows)
+							continue;
+						int cell = cell(c, w);
+						for(int j = cellStart[cell]; j < cellStart[cell+1]; j++)
+						{
+							if(found.size() < k)
+							{
+								found.add(j);
+							}
+							else if(distSq(j, x, y) < distSq(found.peek(), x, y))
+							{
+								found.poll();
+								found.add(j);
+							}
+						}
+					}
+				}
+				double bound = found.size() < k ? Double.POSITIVE_INFINITY : distSq(found.peek(), x, y);
+				if(ringsExhausted(col, row, r) || reachedBound(x, y, col, row, r, bound))
+					break;
+			}
+		}
+		ArrayList<Node> result = new ArrayList<Node>(found.size());
+		while(!found.isEmpty())
+		{
+			result.add(node(found.poll()));
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Method to get every node within a distance of a point
+	 * @param point The point, with x as longitude and y as latitude
+	 * @param radius The distance in miles
+	 * @return The nodes within the radius, in no particular order
+	 */
+	public ArrayList<Node> withinRadius(Point2D point, double radius)
+	{
+		double x = projectX(point.getX());
+		double y = projectY(point.getY());
+		double radiusSq = radius*radius;
+		ArrayList<Node> result = new ArrayList<Node>();
+		int fromCol = column(x-radius);
+		int toCol = column(x+radius);
+		int fromRow = row(y-radius);
+		int toRow = row(y+radius);
+		for(int c = fromCol; c <= toCol; c++)
+		{
+			for(int w = fromRow; w <= toRow; w++)
+			{
+				int cell = cell(c, w);
+				for(int j = cellStart[cell]; j < cellStart[cell+1]; j++)
+				{
+					if(distSq(j, x, y) <= radiusSq)
+						result.add(node(j));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Projects a longitude onto the x axis of the grid
+	 * @param lon The longitude
+	 * @return The projected x coordinate in miles
+	 */
+	private Node node(int slot)
+	{
+		return new Node(coordinates, nodes[slot]);
+	}
+
+	private double projectX(double lon)
+	{
+		return lon*cos*69;
+	}
+
+	/**
+	 * Projects a latitude onto the y axis of the grid
+	 * @param lat The latitude
+	 * @return The projected y coordinate in miles
+	 */
+	private double projectY(double lat)
+	{
+		return lat*69;
+	}
+
+	private int column(double x)
+	{
+		return Math.max(0, Math.min(columns-1, (int)Math.floor((x-minX)/cellSize)));
+	}
+
+	private int row(double y)
+	{
+		return Math.max(0, Math.min(rows-1, (int)Math.floor((y-minY)/cellSize)));
+	}
+
+	private int cell(int column, int row)
+	{
+		return row*columns+column;
+	}
+
+	private double distSq(int j, double x, double y)
+	{
+		double dx = xs[j]-x;
+		double dy = ys[j]-y;
+		return dx*dx+dy*dy;
+	}
+
+	/**
+	 * Tests whether the rings searched so far cover the whole grid
+	 */
+	private boolean ringsExhausted(int col, int row, int r)
+	{
+		return col-r <= 0 && row-r <= 0 && col+r >= columns-1 && row+r >= rows-1;
+	}
+
+	/**
+	 * Tests whether every node outside the rings searched so far is farther away than a bound.
+	 * Sides of the searched box that reach the edge of the grid have nothing beyond them
+	 * @param bound The squared distance that a node would have to beat
+	 */
+	private boolean reachedBound(double x, double y, int col, int row, int r, double bound)
+	{
+		double gap = Double.POSITIVE_INFINITY;
+		if(col-r > 0)
+			gap = Math.min(gap, x-(minX+(col-r)*cellSize));
+		if(col+r < columns-1)
+			gap = Math.min(gap, minX+(col+r+1)*cellSize-x);
+		if(row-r > 0)
+			gap = Math.min(gap, y-(minY+(row-r)*cellSize));
+		if(row+r < rows-1)
+			gap = Math.min(gap, minY+(row+r+1)*cellSize-y);
+		return gap*gap >= bound;
+	}
+}
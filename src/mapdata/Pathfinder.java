@@ -1,25 +1,24 @@
 package mapdata;
 
 import java.util.ArrayList;
-
-
-
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-
-import java.util.Iterator;
-
-
 
 /**
  * Class used to calculate the shortest path between two points using Dijkstra's algorithm
- * and construct a route object
+ * and construct a route object. Every search runs over the numbered nodes and flat edge arrays
+ * of the RoadGraph, with routes from or to the middle of a segment adding a virtual node at
+ * each end that is joined to the graph only for that search
  * 
  * @author williamloughlin
  *
  */
 public class Pathfinder {
 
+	// Ids of the nodes created when routing from or to a point in the middle of a segment
+	private static final String START_ID = "virtual start";
+	private static final String END_ID = "virtual end";
+
 	private Data data;
 
 	public Pathfinder(Data data) {
@@ -27,510 +26,431 @@ public class Pathfinder {
 	}
 	
 	/**
-	 * Method implementing dijksrta's algorithm using a Fibonacci tree
+	 * Method implementing dijkstra's algorithm over the road graph with no time limit
 	 * @param start The beginning node
 	 * @param end The end node
-	 * @return A route representing the shortest path from start to end
+	 * @return A route representing the shortest path from start to end, or null if there is none
 	 */
 	public Route getBestPath(Node start, Node end) 
 	{
-		
-		FibonacciHeap<Node> tree = new FibonacciHeap<Node>();
-		ArrayList<Node> path = new ArrayList<Node>();
-		
-		HashMap<Node, Node> predecessor = new HashMap<Node, Node>();
-		
-		int remaining = 0;
+		return getBestPath(start, end, 0);
+	}
 	
-
-		Iterator<Node> it = data.reachableIterator();
-		while (it.hasNext()) 
+	/**
+	 * Method implementing dijkstra's algorithm with an optional time budget. The search stops
+	 * early if the calling thread is interrupted, and returns null in that case. If the budget
+	 * runs out before the end is reached, the route to the settled node closest to the end is
+	 * returned instead and is marked as incomplete.
+	 * @param start The beginning node
+	 * @param end The end node
+	 * @param budget The maximum time to search in milliseconds, or 0 for no limit
+	 * @return A route representing the shortest path from start to end, the best partial route
+	 * if the budget ran out, or null if there is no route or the search was interrupted
+	 */
+	public Route getBestPath(Node start, Node end, long budget) 
+	{
+		RoadGraph graph = data.getRoadGraph();
+		int source = graph.id(start);
+		int target = graph.id(end);
+		if (source < 0 || target < 0)
+			return null;
+		return new GraphSearch(graph, null, null).route(source, target, budget);
+	}
+	
+	/**
+	 * Method to find the shortest path between two points on the road network, which may be in
+	 * the middle of segments. Virtual nodes are placed at both points and joined to the ends of
+	 * their segments for the duration of the search
+	 * @param from The point to start at
+	 * @param to The point to end at
+	 * @param budget The maximum time to search in milliseconds, or 0 for no limit
+	 * @return A route representing the shortest path between the points, the best partial route
+	 * if the budget ran out, or null if there is none or the search was interrupted
+	 */
+	public Route getBestPath(Snap from, Snap to, long budget)
+	{
+		RoadGraph graph = data.getRoadGraph();
+		GraphSearch search = new GraphSearch(graph, from.toNode(START_ID), to.toNode(END_ID));
+		int start = search.virtualStart();
+		int end = search.virtualEnd();
+		search.addEdge(start, graph.id(from.getFrom()), from.getWay());
+		search.addEdge(start, graph.id(from.getTo()), from.getWay());
+		search.addEdge(graph.id(to.getFrom()), end, to.getWay());
+		search.addEdge(graph.id(to.getTo()), end, to.getWay());
+		if (from.sameSegment(to))
 		{
-			tree.put(it.next(), Double.POSITIVE_INFINITY);
-			remaining++;
+			search.addEdge(start, end, from.getWay());
 		}
-		tree.decreaseKey(start, 0.0);
+		return search.route(start, end, budget);
+	}
+	
+	/**
+	 * Method to find the shortest path between two points on the road network with no time limit
+	 * @param from The point to start at
+	 * @param to The point to end at
+	 * @return A route representing the shortest path between the points
+	 */
+	public Route getBestPath(Snap from, Snap to)
+	{
+		return getBestPath(from, to, 0);
+	}
+	
+	/**
+	 * Finds the length of the shortest path from one node to each of several others with a single
+	 * search over the road graph, for filling in distance tables. The search stops as soon as
+	 * every end has been reached
+	 * @param start The node to start at
+	 * @param ends The nodes to find the distances to
+	 * @return The distance in miles to each end, in the same order, or infinity for ends that
+	 * can't be reached
+	 */
+	public double[] getDistances(Node start, Node[] ends)
+	{
+		RoadGraph graph = data.getRoadGraph();
+		double[] result = new double[ends.length];
+		Arrays.fill(result, Double.POSITIVE_INFINITY);
+		int source = graph.id(start);
+		if (source < 0)
+			return result;
 
-		while (remaining > 0) 
+		GraphSearch search = new GraphSearch(graph, null, null);
+		boolean[] wanted = new boolean[search.dist.length];
+		int remaining = 0;
+		int[] endIds = new int[ends.length];
+		for (int i = 0; i < ends.length; i++)
 		{
-			
-			double dist = tree.minValue();
-			Node current = tree.extractMin();
-			
-			if (current == null)
-				return null;
-				
-			if (current.equals(end))
-				break;
-
-			ArrayList<Node> adj = data.getAdjacentNodes(current);
-			for (Iterator<Node> it3 = adj.iterator(); it3.hasNext();) 
+			endIds[i] = graph.id(ends[i]);
+			if (endIds[i] >= 0 && !wanted[endIds[i]])
 			{
-				Node next = it3.next();
-				if(tree.decreaseKey(next, dist + current.calcDist(next.getPoint())))
-					predecessor.put(next, current);
-				
+				wanted[endIds[i]] = true;
+				remaining++;
 			}
-			remaining--;
 		}
 
-		if (tree.valueOf(end) == Double.POSITIVE_INFINITY) 
+		search.run(source, wanted, remaining, 0, -1);
+		for (int i = 0; i < ends.length; i++)
 		{
-			return null;
-		} 
-		else 
-		{
-			Node n = end;
-			while (!n.equals(start)) 
-			{
-				path.add(n);
-				n = predecessor.get(n);
-			}
-			path.add(start);
-			Collections.reverse(path);
-			
-			return new Route(path, makeDirections(path));
+			if (endIds[i] >= 0)
+				result[i] = search.dist[endIds[i]];
 		}
-
+		return result;
 	}
 	
 	/**
-	 * Method to construct the directions for each segments of a calculated route
+	 * Method to construct a route from a calculated path in a single pass, grouping consecutive
+	 * edges that lie on the same way into one instruction
 	 * @param path the arraylist of nodes that constitutes the route
-	 * @return An arraylist of Directions for each segment
+	 * @param ways the way of each edge of the path, so ways.get(i) connects path.get(i) and path.get(i+1)
+	 * @param complete whether the path reaches the requested destination
+	 * @return The route along the path
 	 */
-	private ArrayList<String> makeDirections(ArrayList<Node> path)
+	private Route makeRoute(ArrayList<Node> path, ArrayList<Way> ways, boolean complete)
 	{
-		ArrayList<String> segments = new ArrayList<String>();
-		double totalDist = 0;
-		Node segStart = path.get(0);
-		Node prev = null;
-		Way currentWay = data.getSharedWay(segStart, path.get(1));
-		for(Node node : path)
+		double[] lats = new double[path.size()];
+		double[] lons = new double[path.size()];
+		for(int i = 0; i < path.size(); i++)
 		{
-			if(prev != null)
-			{
-				Way sharedWay = data.getSharedWay(prev, node);
-				if(sharedWay != currentWay)
-				{
-					double segDist = data.getWayLength(segStart, prev);
-					segDist = Math.round(segDist*100);
-					segDist = segDist/100;
-					totalDist += segDist;
-					if(currentWay.getName() != null)
-					{
-						segments.add(currentWay.getName() + ": " + segDist + " miles.");
-					}
-					else
-					{
-						segments.add("Unkown Street: " + segDist + " miles.");	
-					}
-
-					segStart = prev;
-				
-				}
-				currentWay = sharedWay;
-			}
-			
-			prev = node;
+			lats[i] = path.get(i).getLat();
+			lons[i] = path.get(i).getLon();
 		}
-		currentWay = data.getSharedWay(segStart, prev);
-		double finalDist = data.getWayLength(segStart, prev);
-		finalDist = Math.round(finalDist*100);
-		finalDist = finalDist/100;
-		if(currentWay.getName() != null)
+		
+		int instructions = 1;
+		for(int i = 1; i < ways.size(); i++)
 		{
-			segments.add(currentWay.getName() + ": " + finalDist + " miles.");
+			if(ways.get(i) != ways.get(i-1))
+				instructions++;
 		}
-		else
+		int[] starts = new int[instructions];
+		String[] names = new String[instructions];
+		int k = 0;
+		for(int i = 0; i < ways.size(); i++)
 		{
-			segments.add("Unkown Street: " + finalDist + " miles.");
+			if(i == 0 || ways.get(i) != ways.get(i-1))
+			{
+				starts[k] = i;
+				names[k] = ways.get(i).getName();
+				k++;
+			}
 		}
-		segments.add("Total: " + (totalDist+finalDist) + " miles.");
-		
-		return segments;
+		return new Route(lats, lons, starts, names, complete);
 	}
 	
 
 	/**
-	 * Data structure to allow log(n) access of the node with the smallest value.
-	 * Coded specifically to represent the value of an object with a double as to avoid the 
-	 * necessity of a comparitor
+	 * One run of Dijkstra's algorithm over the road graph, plus the virtual start and end nodes
+	 * of a search between points in the middle of segments and the few edges joining them to
+	 * the graph
 	 * @author williamloughlin
 	 *
-	 * @param <K> The type of object to be organized by this tree
 	 */
-	private class FibonacciHeap<K> 
+	private class GraphSearch
 	{
+		// Most edges a search adds, two from the start, two into the end and one between them
+		private static final int MAX_EXTRA = 5;
 		
-		private TreeNode Min;
-		private DoublyLinkedList<TreeNode> roots;
-		private int size;
+		private RoadGraph graph;
+		// The virtual start and end nodes, numbered after the nodes of the graph, or null
+		private Node start;
+		private Node end;
 		
-		private HashMap<K, TreeNode> map;
+		// Edges added for this search only, by the numbers of the nodes they join
+		private int[] extraFrom = new int[MAX_EXTRA];
+		private int[] extraTo = new int[MAX_EXTRA];
+		private double[] extraLength = new double[MAX_EXTRA];
+		private Way[] extraWay = new Way[MAX_EXTRA];
+		private int extras;
 		
-		public FibonacciHeap()
-		{
-			Min = null;
-			roots = new DoublyLinkedList<TreeNode>();
-			map = new HashMap<K, TreeNode>();
-			size = 0;
-		}
+		private double[] dist;
+		private boolean[] settled;
+		// The edge each node was reached along, the index of an edge of the graph or -k-1 for
+		// added edge k, and the node it was reached from
+		private int[] via;
+		private int[] from;
+		private BinaryHeap heap;
+		
+		// False if the time budget ran out before every wanted node was settled
+		private boolean complete;
+		// The settled node closest in a straight line to the node the search is heading for
+		private int closest;
 		
 		/**
-		 * Puts an object into this tree by adding it to the list of roots and adjusting the 
-		 * min if necessary
-		 * @param key The object to be put in
-		 * @param value The priority of this object
+		 * @param graph The road graph
+		 * @param start The virtual start node, or null if the search starts on the graph
+		 * @param end The virtual end node, or null if the search ends on the graph
 		 */
-		public void put(K key, double value)
+		private GraphSearch(RoadGraph graph, Node start, Node end)
 		{
-			TreeNode newNode = new TreeNode(key, value, 0);
-			map.put(key, newNode);
-			roots.addFirst(newNode);
-			if(Min == null || value < Min.value)
-			{
-				Min = newNode;
-			}
-			size++;
+			this.graph = graph;
+			this.start = start;
+			this.end = end;
+			int size = graph.size() + 2;
+			dist = new double[size];
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			settled = new boolean[size];
+			complete = true;
 		}
 		
-		/**
-		 * Accessor for the priority of a key
-		 * @param key The object 
-		 * @return The priority of the object
-		 * @precondition The object is in the tree
-		 */
-		public double valueOf(K key)
+		private int virtualStart()
 		{
-			return map.get(key).value;
+			return graph.size();
 		}
 		
-		/**
-		 * Accessor for the priority of the minimum key
-		 * @return the priority of the minimum key
-		 */
-		public double minValue()
+		private int virtualEnd()
 		{
-			return Min.value;
+			return graph.size()+1;
 		}
 		
 		/**
-		 * Extracts the object with the highest priority from the tree and recalculates an new highest
-		 * priority object
-		 * @return The object with the highest priority
+		 * Adds an edge that only exists for this search, unless an end of it isn't on the graph
+		 * @param a The number of the node the edge leaves from
+		 * @param b The number of the node the edge goes to
+		 * @param way The way the edge is part of
 		 */
-		public K extractMin()
+		private void addEdge(int a, int b, Way way)
 		{
-			TreeNode temp = Min;
-			roots.remove(Min);
-			for(Iterator<TreeNode> it = temp.children.iterator(); it.hasNext();)
-			{
-				TreeNode n = it.next();
-				n.parent = null;
-				roots.addFirst(n);
-			}
-			consolidate();
-			TreeNode newMin = null;
-			for(Iterator<TreeNode> it = roots.iterator(); it.hasNext();)
-			{
-				TreeNode current = it.next();
-				if(newMin == null || current.value < newMin.value)
-				{
-					newMin = current;
-				}
-			}
-			Min = newMin;
-			return temp.key;
-			
-			
+			if (a < 0 || b < 0)
+				return;
+			extraFrom[extras] = a;
+			extraTo[extras] = b;
+			extraLength[extras] = Coordinates.distance(lat(a), lon(a), lat(b), lon(b));
+			extraWay[extras] = way;
+			extras++;
+		}
+		
+		private Node node(int n)
+		{
+			return n < graph.size() ? graph.getNode(n) : n == virtualStart() ? start : end;
+		}
+		
+		private double lat(int n)
+		{
+			return n < graph.size() ? graph.getLat(n) : node(n).getLat();
+		}
+		
+		private double lon(int n)
+		{
+			return n < graph.size() ? graph.getLon(n) : node(n).getLon();
+		}
+		
+		private Way way(int edge)
+		{
+			return edge >= 0 ? graph.way(edge) : extraWay[-edge-1];
 		}
 		
 		/**
-		 * Reduces the number of roots to log(n) by merging roots with the same degree into a 
-		 * single tree
+		 * Finds the shortest path between two nodes, or as far towards the end as the budget allows
+		 * @param source The number of the node to start at
+		 * @param target The number of the node to end at
+		 * @param budget The maximum time to search in milliseconds, or 0 for no limit
+		 * @return The route, the best partial route if the budget ran out, or null if there is
+		 * no route or the search was interrupted
 		 */
-		private void consolidate()
+		private Route route(int source, int target, long budget)
 		{
-			FibonacciHeap.TreeNode[] store = new FibonacciHeap.TreeNode[size];
-			Iterator<TreeNode> it = roots.iterator();
-			while(it.hasNext())
+			long deadline = budget > 0 ? System.nanoTime() + budget*1000000 : 0;
+			boolean[] wanted = new boolean[dist.length];
+			wanted[target] = true;
+			via = new int[dist.length];
+			from = new int[dist.length];
+			if (!run(source, wanted, 1, deadline, target))
+				return null;
+			int last = target;
+			if (!settled[target])
 			{
-				mergeRoots(it.next(), store);
+				if (complete || closest == source)
+					return null;
+				last = closest;
 			}
 			
-			roots = new DoublyLinkedList<TreeNode>();
-			for(TreeNode n : store)
+			ArrayList<Node> path = new ArrayList<Node>();
+			ArrayList<Way> pathWays = new ArrayList<Way>();
+			for (int n = last; n != source; n = from[n])
 			{
-				if(n != null)
-					roots.addFirst(n);
+				path.add(node(n));
+				pathWays.add(way(via[n]));
 			}
+			path.add(node(source));
+			Collections.reverse(path);
+			Collections.reverse(pathWays);
+			return makeRoute(path, pathWays, complete);
 		}
 		
 		/**
-		 * recursivley merges roots with other roots of the same degree
-		 * @param root The root to be merged
-		 * @param store The temporary array to hold the roots with merging is taking place
+		 * Runs the search until every wanted node is settled or no more can be reached. The
+		 * thread being interrupted and the deadline are checked every 256 nodes
+		 * @param source The number of the node to start at
+		 * @param wanted Which nodes the search is for
+		 * @param remaining The number of wanted nodes
+		 * @param deadline The value of System.nanoTime to stop at, or 0 for no limit
+		 * @param towards The node whose closest settled node is kept for when the deadline
+		 * passes, or -1 if there is no deadline
+		 * @return false if the thread was interrupted
 		 */
-		private void mergeRoots(TreeNode root, FibonacciHeap.TreeNode[] store)
+		private boolean run(int source, boolean[] wanted, int remaining, long deadline, int towards)
 		{
-			if(store[root.degree] == null)
+			heap = new BinaryHeap();
+			dist[source] = 0;
+			heap.push(source, 0);
+			closest = source;
+			double closestDist = Double.POSITIVE_INFINITY;
+			int popped = 0;
+			while (remaining > 0 && !heap.isEmpty())
 			{
-				store[root.degree] = root;
-			}
-			else
-			{
-				TreeNode prev = store[root.degree];
-				if(prev.value < root.value)
+				int current = heap.pop();
+				if (settled[current])
+					continue;
+				if ((++popped & 0xFF) == 0)
 				{
-					prev.children.addFirst(root);
-					root.parent = prev;
-					store[prev.degree] = null;
-					prev.degree++;
-					mergeRoots(prev, store);
+					if (Thread.currentThread().isInterrupted())
+						return false;
+					if (deadline != 0 && System.nanoTime() > deadline)
+					{
+						complete = false;
+						return true;
+					}
 				}
-				else
+				settled[current] = true;
+				if (wanted[current])
+					remaining--;
+				if (deadline != 0)
 				{
-					root.children.addFirst(prev);
-					prev.parent = root;
-					store[prev.degree] = null;
-					root.degree++;
-					mergeRoots(root, store);
+					double toEnd = Coordinates.distance(lat(current), lon(current), lat(towards), lon(towards));
+					if (toEnd < closestDist)
+					{
+						closest = current;
+						closestDist = toEnd;
+					}
+				}
+				if (current < graph.size())
+				{
+					for (int e = graph.first(current); e < graph.first(current+1); e++)
+					{
+						relax(current, graph.target(e), graph.length(e), e);
+					}
+				}
+				for (int k = 0; k < extras; k++)
+				{
+					if (extraFrom[k] == current)
+						relax(current, extraTo[k], extraLength[k], -k-1);
 				}
-			}
-		
-		}
-			
-		/**
-		 * Decreases the priority of a key if the given priority is lower than its current priority
-		 * and reheapifies if necessary
-		 * @param key The object to be reduced
-		 * @param newValue The new priority
-		 * @return true if the new priority is less than the old priority
-		 */
-		public boolean decreaseKey(K key, double newValue)
-		{
-			TreeNode n = map.get(key);
-			if(n.value <= newValue)
-			{
-				return false;
-			}
-			n.value = newValue;
-			if(n.parent != null && n.parent.value > newValue)
-			{
-				// mark
-				n.parent.children.remove(n);
-				mark(n.parent);
-				n.parent = null;
-				roots.addFirst(n);
-			}
-			if(Min.value > newValue)
-			{
-				Min = n;
 			}
 			return true;
 		}
 		
 		/**
-		 * method to mark nodes or cut nodes that have already been marked to preserve the 
-		 * properties of the Fibonacci tree
-		 * @param The node to mark
-		 */
-		private void mark(TreeNode n)
-		{
-			Iterator<TreeNode> it = roots.iterator();
-			while(it.hasNext())
-			{
-				if(it.next() == n)
-					return;
-			}
-			if(n.marked == false)
-			{
-				n.marked = true;
-			}
-			else 
-			{
-				n.parent.children.remove(n);
-				mark(n.parent);
-				n.parent = null;
-				roots.addFirst(n);
-				n.degree = 0;
-			}
-		}
-
-		/**
-		 * Objects representing nodes in the fibonacci heap
-		 * 
-		 * @author williamloughlin
-		 *
+		 * Lowers the distance of a node if it is shorter through an edge from the current node
 		 */
-		private class TreeNode
+		private void relax(int current, int next, double length, int edge)
 		{
-			private K key;
-			private double value;
-			private boolean marked;
-			private DoublyLinkedList<TreeNode> children;
-			private int degree;
-			private TreeNode parent;
-			
-			public TreeNode(K key, double value, int degree)
+			double d = dist[current] + length;
+			if (d < dist[next])
 			{
-				this.key = key;
-				this.value = value;
-				marked = false;
-				children = new DoublyLinkedList<TreeNode>();
-				this.degree = degree;
-				parent = null;
+				dist[next] = d;
+				heap.push(next, d);
+				if (via != null)
+				{
+					via[next] = edge;
+					from[next] = current;
+				}
 			}
 		}
 	}
 	
 	/**
-	 * Class used to link roots and children in the fibonacci heap
-	 * Doesn't support all methods of a typical list, just the ones that I thought would be
-	 * useful for the heap
+	 * Min heap of graph node numbers, used for searches over the road graph. A node is pushed
+	 * again instead of having its key decreased, and stale entries are skipped when popped
 	 * @author williamloughlin
 	 *
-	 * @param <E>
 	 */
-	private class DoublyLinkedList<E>  {
-
+	private static class BinaryHeap
+	{
+		private int[] nodes = new int[64];
+		private double[] keys = new double[64];
 		private int size;
-		private Node sent;
-		
-		public DoublyLinkedList()
-		{
-			size = 0;
-			sent = new Node(null, null, null);
-			sent.next = sent;
-			sent.prev = sent;
-		}
-		
-		/**
-		 * Adds an element to the list
-		 * @param element The element to be added
-		 */
-		public void addFirst(E element)
-		{
-			Node sec = sent.next;
-			Node newNode = new Node(element, sec, sent);
-			sec.prev = newNode;
-			sent.next = newNode;
-			size++;
-		}
-		
-		/**
-		 * Iterator access
-		 * @return An iterator over the objects in this list
-		 */
-		public Iterator<E> iterator()
-		{
-			return new DLLIterator();
-		}
-		
-		/**
-		 * Removes an object from the list in 0(n) time
-		 * @param e The object to remove
-		 */
-		public void remove(E e)
-		{
-			Iterator<E> it = new DLLIterator();
-			while(it.hasNext())
-			{
-				if(it.next() == e)
-				{
-					it.remove();
-					size--;
-					return;
-				}
-			}
-			
-		}
 		
-		/**
-		 * Method to concatanate lists. Not used
-		 * @param other The other list to be added
-		 */
-		public void concatanate(DoublyLinkedList<E> other)
+		private boolean isEmpty()
 		{
-			Node otherSent = other.sent;
-			Node otherFirst = otherSent.next;
-			Node otherLast = otherSent.prev;
-			otherFirst.prev = sent.prev;
-			otherLast.next = sent;
-			sent.prev = otherLast;
-			otherSent.next = null;
-			otherSent.prev = null;
-			size += other.size;
+			return size == 0;
 		}
 		
-		/**
-		 * Accessor for the size of this list
-		 * @return The size of the list
-		 */
-		public int size()
+		private void push(int node, double key)
 		{
-			return size;
-		}
-
-		/**
-		 * Iterator over the objects in a doubly linked list
-		 * @author williamloughlin
-		 *
-		 */
-		private class DLLIterator implements Iterator<E>
-		{
-			
-			private Node current;
-			
-			public DLLIterator()
+			if (size == nodes.length)
 			{
-				current = sent;
+				nodes = Arrays.copyOf(nodes, 2*size);
+				keys = Arrays.copyOf(keys, 2*size);
 			}
-
-			@Override
-			public boolean hasNext() {
-				
-				return current.next.element != null;
-			}
-
-			@Override
-			public E next() {
-				
-				current = current.next;
-				return current.element;
-			}
-			
-			@Override
-			public void remove()
+			int i = size++;
+			while (i > 0 && keys[(i-1)/2] > key)
 			{
-				Node newCurrent = current.prev;
-				current.prev.next = current.next;
-				current.next.prev = current.prev;
-				current.next = null;
-				current.prev = null;
-				current = newCurrent;
+				nodes[i] = nodes[(i-1)/2];
+				keys[i] = keys[(i-1)/2];
+				i = (i-1)/2;
 			}
-			
+			nodes[i] = node;
+			keys[i] = key;
 		}
-
-		/**
-		 * Node in the doubly linked list
-		 * @author williamloughlin
-		 *
-		 */
-		private class Node
+		
+		private int pop()
 		{
-			private E element;
-			private Node next;
-			private Node prev;
-			
-			private Node(E e, Node next, Node prev)
+			int top = nodes[0];
+			int node = nodes[--size];
+			double key = keys[size];
+			int i = 0;
+			while (2*i+1 < size)
 			{
-				element = e;
-				this.next = next;
-				this.prev = prev;
+				int child = 2*i+1;
+				if (child+1 < size && keys[child+1] < keys[child])
+					child++;
+				if (keys[child] >= key)
+					break;
+				nodes[i] = nodes[child];
+				keys[i] = keys[child];
+				i = child;
 			}
+			nodes[i] = node;
+			keys[i] = key;
+			return top;
 		}
 	}
 }
@@ -0,0 +1,181 @@
+package mapdata;
+
+import java.util.Arrays;
+
+/**
+ * Reads and writes routes in the encoded polyline format used by web maps: each coordinate is
+ * rounded to five decimal places, stored as the difference from the one before, and written
+ * five bits at a time as printable characters. Points are encoded and decoded one at a time,
+ * so a polyline never has to be held as arrays of coordinates
+ * @author williamloughlin
+ *
+ */
+public class Polyline {
+
+	private static final double PRECISION = 1e5;
+
+	private Polyline()
+	{
+	}
+
+	/**
+	 * Appends the encoded vertices of a route
+	 * @param route The route
+	 * @param out What to append the polyline to
+	 */
+	public static void encode(Route route, StringBuilder out)
+	{
+		Encoder encoder = new Encoder(out);
+		for(int i = 0; i < route.size(); i++)
+		{
+			encoder.add(route.getLat(i), route.getLon(i));
+		}
+	}
+
+	/**
+	 * Decodes every point of a polyline
+	 * @param polyline The encoded polyline
+	 * @return The latitudes of the points then their longitudes
+	 * @throws IllegalArgumentException If the polyline is cut off or has invalid characters
+	 */
+	public static double[][] decode(CharSequence polyline)
+	{
+		double[] lats = new double[16];
+		double[] lons = new double[16];
+		int count = 0;
+		Decoder decoder = new Decoder(polyline);
+		while(decoder.next())
+		{
+			if(count == lats.length)
+			{
+				lats = Arrays.copyOf(lats, 2*count);
+				lons = Arrays.copyOf(lons, 2*count);
+			}
+			lats[count] = decoder.getLat();
+			lons[count] = decoder.getLon();
+			count++;
+		}
+		return new double[][] {Arrays.copyOf(lats, count), Arrays.copyOf(lons, count)};
+	}
+
+	/**
+	 * Writes points to a polyline as they are added
+	 * @author williamloughlin
+	 *
+	 */
+	public static class Encoder
+	{
+		private StringBuilder out;
+		private long lastLat;
+		private long lastLon;
+
+		/**
+		 * @param out What to append the points to
+		 */
+		public Encoder(StringBuilder out)
+		{
+			this.out = out;
+		}
+
+		/**
+		 * Appends the next point
+		 * @param lat The latitude of the point
+		 * @param lon The longitude of the point
+		 */
+		public void add(double lat, double lon)
+		{
+			long fixedLat = Math.round(lat*PRECISION);
+			long fixedLon = Math.round(lon*PRECISION);
+			encodeValue(fixedLat-lastLat);
+			encodeValue(fixedLon-lastLon);
+			lastLat = fixedLat;
+			lastLon = fixedLon;
+		}
+
+		/**
+		 * Appends one signed difference, low bits first, with the sign moved into the lowest bit
+		 */
+		private void encodeValue(long value)
+		{
+			long v = value < 0 ? ~(value << 1) : value << 1;
+			while(v >= 0x20)
+			{
+				out.append((char)((0x20 | (v & 0x1f)) + 63));
+				v >>= 5;
+			}
+			out.append((char)(v + 63));
+		}
+	}
+
+	/**
+	 * Reads the points of a polyline one at a time
+	 * @author williamloughlin
+	 *
+	 */
+	public static class Decoder
+	{
+		private CharSequence polyline;
+		private int position;
+		private long lat;
+		private long lon;
+
+		/**
+		 * @param polyline The encoded polyline
+		 */
+		public Decoder(CharSequence polyline)
+		{
+			this.polyline = polyline;
+		}
+
+		/**
+		 * Moves to the next point
+		 * @return false if there are no more points
+		 * @throws IllegalArgumentException If the polyline is cut off or has invalid characters
+		 */
+		public boolean next()
+		{
+			if(position >= polyline.length())
+				return false;
+			lat += decodeValue();
+			lon += decodeValue();
+			return true;
+		}
+
+		/**
+		 * Accessor for the latitude of the current point
+		 * @return The latitude, to five decimal places
+		 */
+		public double getLat()
+		{
+			return lat/PRECISION;
+		}
+
+		/**
+		 * Accessor for the longitude of the current point
+		 * @return The longitude, to five decimal places
+		 */
+		public double getLon()
+		{
+			return lon/PRECISION;
+		}
+
+		private long decodeValue()
+		{
+			long v = 0;
+			int shift = 0;
+			int chunk;
+			do
+			{
+				if(position >= polyline.length())
+					throw new IllegalArgumentException("Polyline ends in the middle of a value");
+				chunk = polyline.charAt(position++) - 63;
+				if(chunk < 0 || chunk > 0x3f || shift > 60)
+					throw new IllegalArgumentException("Invalid polyline at character " + (position-1));
+				v |= (long)(chunk & 0x1f) << shift;
+				shift += 5;
+			}
+			while(chunk >= 0x20);
+			return (v & 1) != 0 ? ~(v >>> 1) : v >>> 1;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package mapdata;
+
+/**
+ * Callback used by the RegionManager when it drops a loaded map
+ * @author williamloughlin
+ *
+ */
+public interface RegionListener {
+
+	/**
+	 * Called when a map is dropped to keep the loaded maps within their budget, so anything
+	 * built from the map can be dropped with it
+	 * @param data The map that was dropped
+	 */
+	public void regionEvicted(Data data);
+}
@@ -0,0 +1,566 @@
+package mapdata;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Keeps several maps loaded at once so switching between them doesn't reparse them. Maps are
+ * added as files, and only the bounds at the head of each file are read until the map is
+ * wanted. Loaded maps are kept while their estimated size fits in a heap budget, and the least
+ * recently used ones are dropped when it doesn't, though the most recently used map is always
+ * kept. Maps can be loaded in the background before they are wanted, one at a time so loading
+ * doesn't compete with the map in use
+ * @author williamloughlin
+ *
+ */
+public class RegionManager {
+
+	// Half the heap the JVM may grow to, leaving the rest for everything built from the maps
+	public static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory()/2;
+
+	private long budget;
+	// Whether maps keep the coordinates of their nodes outside the heap
+	private boolean offHeap;
+	// Every map added, in the order they were added
+	private ArrayList<Region> regions;
+	// Maps that are loaded or loading, from least to most recently used
+	private LinkedHashMap<File, Region> resident;
+	private ExecutorService loader;
+	private ArrayList<RegionListener> listeners;
+
+	/**
+	 * @param budget The number of bytes of heap the loaded maps may take between them
+	 */
+	public RegionManager(long budget)
+	{
+		this(budget, false);
+	}
+
+	/**
+	 * @param budget The number of bytes of heap the loaded maps may take between them
+	 * @param offHeap Whether maps keep the coordinates of their nodes outside the heap, where
+	 * they don't count against the budget
+	 */
+	public RegionManager(long budget, boolean offHeap)
+	{
+		this.budget = budget;
+		this.offHeap = offHeap;
+		regions = new ArrayList<Region>();
+		resident = new LinkedHashMap<File, Region>(16, 0.75f, true);
+		listeners = new ArrayList<RegionListener>();
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "RegionManager");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Adds a map that can be loaded, reading its bounds but nothing else
+	 * @param file The osm file of the map
+	 * @throws IOException If the file can't be read
+	 */
+	public void add(File file) throws IOException
+	{
+		Region region = new Region(file.getAbsoluteFile());
+		synchronized(this)
+		{
+			if(find(region.file) != null)
+				return;
+		}
+		readBounds(region);
+		synchronized(this)
+		{
+			if(find(region.file) == null)
+			{
+				regions.add(region);
+			}
+		}
+	}
+
+	/**
+	 * Adds a map that has already been loaded
+	 * @param data The map
+	 */
+	public void add(Data data)
+	{
+		Region region = new Region(data.getFile().getAbsoluteFile());
+		region.minLat = data.minLat();
+		region.minLon = data.minLon();
+		region.maxLat = data.maxLat();
+		region.maxLon = data.maxLon();
+		synchronized(this)
+		{
+			Region existing = find(region.file);
+			if(existing != null)
+			{
+				if(existing.loading != null)
+					return;
+				region = existing;
+			}
+			else
+			{
+				regions.add(region);
+			}
+			region.loading = new Loaded(data);
+			resident.put(region.file, region);
+		}
+		trim();
+	}
+
+	/**
+	 * Gets a map, loading it if it isn't loaded, or waiting for it if it is loading in the
+	 * background. The map becomes the most recently used
+	 * @param file The osm file of the map, which is added if it hasn't been
+	 * @return The loaded map
+	 * @throws Exception If the map can't be loaded
+	 */
+	public Data get(File file) throws Exception
+	{
+		FutureTask<Data> task = start(file);
+		if(!task.isDone())
+		{
+			// Load here rather than wait for the loader, unless the loader has already started
+			task.run();
+		}
+		Data data;
+		try
+		{
+			data = task.get();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+		trim();
+		return data;
+	}
+
+	/**
+	 * Starts loading a map in the background if it isn't loaded, without making it the most
+	 * recently used once it is
+	 * @param file The osm file of the map, which is added if it hasn't been
+	 * @return The loading map
+	 */
+	public Future<Data> prefetch(File file)
+	{
+		Region region;
+		synchronized(this)
+		{
+			region = find(file.getAbsoluteFile());
+			if(region != null && region.loading != null)
+				return region.loading;
+		}
+		try
+		{
+			add(file);
+		}
+		catch(IOException e)
+		{
+			// Found again when the map itself fails to load
+		}
+		synchronized(this)
+		{
+			region = find(file.getAbsoluteFile());
+			if(region == null)
+			{
+				region = new Region(file.getAbsoluteFile());
+				regions.add(region);
+			}
+			if(region.loading == null)
+			{
+				region.loading = new Load(region);
+				// Put with the least recently used so a map loaded ahead of time doesn't push out
+				// the one in use
+				LinkedHashMap<File, Region> order = new LinkedHashMap<File, Region>(16, 0.75f, true);
+				order.put(region.file, region);
+				order.putAll(resident);
+				resident = order;
+				final FutureTask<Data> task = region.loading;
+				loader.execute(new Runnable()
+						{
+							public void run()
+							{
+								task.run();
+								trim();
+							}
+						});
+			}
+			return region.loading;
+		}
+	}
+
+	/**
+	 * Finds the map that covers a point. Where maps overlap the smallest is picked, since it is
+	 * likely the most detailed
+	 * @param point The point, with x as longitude and y as latitude
+	 * @return The osm file of the map, or null if no map covers the point
+	 */
+	public synchronized File regionFor(Point2D point)
+	{
+		Region best = null;
+		for(Region region : regions)
+		{
+			if(region.contains(point.getY(), point.getX())
+					&& (best == null || region.area() < best.area()))
+			{
+				best = region;
+			}
+		}
+		return best == null ? null : best.file;
+	}
+
+	/**
+	 * Gets the map that covers a point, loading it if needed
+	 * @param point The point, with x as longitude and y as latitude
+	 * @return The map, or null if no map covers the point
+	 * @throws Exception If the map can't be loaded
+	 */
+	public Data get(Point2D point) throws Exception
+	{
+		File file = regionFor(point);
+		return file == null ? null : get(file);
+	}
+
+	/**
+	 * Accessor for the maps that have been added
+	 * @return The osm files of the maps, in the order they were added
+	 */
+	public synchronized ArrayList<File> getRegions()
+	{
+		ArrayList<File> files = new ArrayList<File>();
+		for(Region region : regions)
+		{
+			files.add(region.file);
+		}
+		return files;
+	}
+
+	/**
+	 * Gets the bounds of a map, whether or not it is loaded
+	 * @param file The osm file of the map
+	 * @return The minimum latitude, minimum longitude, maximum latitude and maximum longitude of
+	 * the map, or null if it hasn't been added
+	 */
+	public synchronized double[] getBounds(File file)
+	{
+		Region region = find(file.getAbsoluteFile());
+		if(region == null)
+			return null;
+		return new double[] {region.minLat, region.minLon, region.maxLat, region.maxLon};
+	}
+
+	/**
+	 * Gets a map only if it is already loaded, without changing which was used most recently
+	 * @param file The osm file of the map
+	 * @return The map, or null if it isn't loaded
+	 */
+	public synchronized Data getIfLoaded(File file)
+	{
+		Region region = find(file.getAbsoluteFile());
+		return region == null ? null : loaded(region);
+	}
+
+	/**
+	 * Accessor for the estimated size of the loaded maps
+	 * @return The estimated number of bytes the loaded maps take between them
+	 */
+	public synchronized long memoryUsed()
+	{
+		long used = 0;
+		for(Region region : resident.values())
+		{
+			Data data = loaded(region);
+			if(data != null)
+			{
+				used += data.memoryEstimate();
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Accessor for the heap budget of the loaded maps
+	 * @return The budget in bytes
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Adds a listener told when maps are dropped
+	 * @param listener The listener
+	 */
+	public synchronized void addRegionListener(RegionListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 * @param listener The listener
+	 */
+	public synchronized void removeRegionListener(RegionListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Stops loading in the background. Maps already loaded can still be got
+	 */
+	public void shutdown()
+	{
+		loader.shutdownNow();
+	}
+
+	/**
+	 * Finds or starts the load of a map and makes it the most recently used
+	 */
+	private FutureTask<Data> start(File file)
+	{
+		while(true)
+		{
+			prefetch(file);
+			synchronized(this)
+			{
+				Region region = find(file.getAbsoluteFile());
+				// Unless it was dropped again in between
+				if(region.loading != null)
+				{
+					resident.get(region.file);
+					return region.loading;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the least recently used maps until the rest fit in the budget
+	 */
+	private void trim()
+	{
+		ArrayList<Data> evicted = new ArrayList<Data>();
+		ArrayList<RegionListener> told;
+		synchronized(this)
+		{
+			long used = memoryUsed();
+			Iterator<Map.Entry<File, Region>> it = resident.entrySet().iterator();
+			// The last map is the most recently used, which is never dropped
+			for(int left = resident.size(); used > budget && left > 1; left--)
+			{
+				Region region = it.next().getValue();
+				Data data = loaded(region);
+				if(data != null)
+				{
+					it.remove();
+					region.loading = null;
+					used -= data.memoryEstimate();
+					evicted.add(data);
+				}
+			}
+			told = new ArrayList<RegionListener>(listeners);
+		}
+		for(Data data : evicted)
+		{
+			for(RegionListener listener : told)
+			{
+				listener.regionEvicted(data);
+			}
+		}
+	}
+
+	private Region find(File file)
+	{
+		for(Region region : regions)
+		{
+			if(region.file.equals(file))
+				return region;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the map of a region if it has finished loading
+	 */
+	private static Data loaded(Region region)
+	{
+		FutureTask<Data> loading = region.loading;
+		if(loading == null || !loading.isDone())
+			return null;
+		try
+		{
+			return loading.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch(ExecutionException e)
+		{
+			return null;
+		}
+		catch(CancellationException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the bounds element at the head of an osm file, stopping at the first element after
+	 * it so the rest of the file isn't parsed
+	 */
+	private static void readBounds(final Region region) throws IOException
+	{
+		final SAXException stop = new SAXException("Bounds read");
+		InputStream stream = new FileInputStream(region.file);
+		try
+		{
+			XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+			reader.setContentHandler(new DefaultHandler()
+					{
+						public void startElement(String uri, String localName, String qName, Attributes atts)
+								throws SAXException
+						{
+							if(qName.equals("bounds"))
+							{
+								region.minLat = Double.parseDouble(atts.getValue("minlat"));
+								region.minLon = Double.parseDouble(atts.getValue("minlon"));
+								region.maxLat = Double.parseDouble(atts.getValue("maxlat"));
+								region.maxLon = Double.parseDouble(atts.getValue("maxlon"));
+								throw stop;
+							}
+							if(qName.equals("node") || qName.equals("way"))
+								throw stop;
+						}
+					});
+			reader.parse(new InputSource(stream));
+		}
+		catch(SAXException e)
+		{
+			if(e != stop)
+				throw new IOException("Can't read the bounds of " + region.file, e);
+		}
+		catch(Exception e)
+		{
+			throw new IOException("Can't read the bounds of " + region.file, e);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * A map that has been added, and its load if it is loaded or loading
+	 */
+	private static class Region
+	{
+		private File file;
+		private double minLat;
+		private double minLon;
+		private double maxLat;
+		private double maxLon;
+		private FutureTask<Data> loading;
+
+		private Region(File file)
+		{
+			this.file = file;
+		}
+
+		private boolean contains(double lat, double lon)
+		{
+			return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon;
+		}
+
+		private double area()
+		{
+			return (maxLat-minLat)*(maxLon-minLon);
+		}
+	}
+
+	/**
+	 * Loads a map, forgetting the load if it fails
+	 */
+	private class Load extends FutureTask<Data>
+	{
+		private Region region;
+
+		private Load(final Region region)
+		{
+			super(new Callable<Data>()
+					{
+						public Data call() throws Exception
+						{
+							return new Data(region.file, offHeap);
+						}
+					});
+			this.region = region;
+		}
+
+		protected void done()
+		{
+			if(loaded(region) == null)
+			{
+				// So the next get tries again
+				synchronized(RegionManager.this)
+				{
+					if(region.loading == this)
+					{
+						region.loading = null;
+						resident.remove(region.file);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A map that was loaded before it was added
+	 */
+	private static class Loaded extends FutureTask<Data>
+	{
+		private Loaded(final Data data)
+		{
+			super(new Callable<Data>()
+					{
+						public Data call()
+						{
+							return data;
+						}
+					});
+			run();
+		}
+	}
+}
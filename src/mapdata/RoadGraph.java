@@ -0,0 +1,221 @@
+package mapdata;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact adjacency structure over the driveable ways. Every reachable node is numbered and the
+ * edges leaving node i are edges first(i) to first(i+1)-1, stored in flat arrays so searches
+ * don't have to go through the ways the node is part of and scan them for neighbours. The
+ * coordinates of the nodes are read from the coordinates of the map, through the number of each
+ * node there, so they aren't copied. Immutable
+ * @author williamloughlin
+ *
+ */
+public class RoadGraph {
+
+	private Coordinates coordinates;
+	// The number in this graph of each number in the coordinates, -1 for nodes off the roads
+	private int[] ids;
+	// The number of each node in the coordinates
+	private int[] index;
+
+	private int[] firstEdge;
+	private int[] targets;
+	private double[] lengths;
+	private Way[] edgeWays;
+
+	/**
+	 * @param driveable The driveable ways
+	 * @param coordinates The coordinates of the map the nodes of the ways belong to
+	 */
+	public RoadGraph(Collection<Way> driveable, Coordinates coordinates)
+	{
+		this.coordinates = coordinates;
+		ids = new int[coordinates.size()];
+		Arrays.fill(ids, -1);
+		index = new int[16];
+		int size = 0;
+		int edges = 0;
+		for(Way way : driveable)
+		{
+			for(int i = 0; i < way.size(); i++)
+			{
+				int n = way.getIndex(i);
+				if(ids[n] < 0)
+				{
+					if(size == index.length)
+					{
+						index = Arrays.copyOf(index, 2*size);
+					}
+					index[size] = n;
+					ids[n] = size++;
+				}
+				if(i > 0 && way.getIndex(i-1) != n)
+				{
+					edges += 2;
+				}
+			}
+		}
+		index = Arrays.copyOf(index, size);
+
+		// Count the edges of each node, then fill them in behind the running offsets
+		firstEdge = new int[size+1];
+		for(Way way : driveable)
+		{
+			for(int i = 1; i < way.size(); i++)
+			{
+				int prev = way.getIndex(i-1);
+				int n = way.getIndex(i);
+				if(prev != n)
+				{
+					firstEdge[ids[prev]+1]++;
+					firstEdge[ids[n]+1]++;
+				}
+			}
+		}
+		for(int i = 0; i < size; i++)
+		{
+			firstEdge[i+1] += firstEdge[i];
+		}
+		targets = new int[edges];
+		lengths = new double[edges];
+		edgeWays = new Way[edges];
+		int[] fill = new int[size];
+		for(Way way : driveable)
+		{
+			for(int i = 1; i < way.size(); i++)
+			{
+				int prev = way.getIndex(i-1);
+				int n = way.getIndex(i);
+				if(prev != n)
+				{
+					int a = ids[prev];
+					int b = ids[n];
+					double length = calcDist(a, b);
+					addEdge(a, b, length, way, fill);
+					addEdge(b, a, length, way, fill);
+				}
+			}
+		}
+	}
+
+	private void addEdge(int from, int to, double length, Way way, int[] fill)
+	{
+		int e = firstEdge[from] + fill[from]++;
+		targets[e] = to;
+		lengths[e] = length;
+		edgeWays[e] = way;
+	}
+
+	/**
+	 * Accessor for the number of nodes in the graph
+	 * @return The number of reachable nodes
+	 */
+	public int size()
+	{
+		return index.length;
+	}
+
+	/**
+	 * Accessor for the number of the node in this graph
+	 * @param n The node
+	 * @return The number of the node, or -1 if it is not on a driveable way
+	 */
+	public int id(Node n)
+	{
+		int i = n.getIndex();
+		return n.is(coordinates, i) ? ids[i] : -1;
+	}
+
+	/**
+	 * Accessor for a node by its number
+	 * @param id The number of the node
+	 * @return The node
+	 */
+	public Node getNode(int id)
+	{
+		return new Node(coordinates, index[id]);
+	}
+
+	/**
+	 * Accessor for the number of a node in the coordinates of the map
+	 * @param id The number of the node in this graph
+	 * @return The number of the node's coordinates
+	 */
+	public int getIndex(int id)
+	{
+		return index[id];
+	}
+
+	/**
+	 * Accessor for the latitude of a node by its number
+	 * @param id The number of the node
+	 * @return The latitude of the node
+	 */
+	public double getLat(int id)
+	{
+		return coordinates.getLat(index[id]);
+	}
+
+	/**
+	 * Accessor for the longitude of a node by its number
+	 * @param id The number of the node
+	 * @return The longitude of the node
+	 */
+	public double getLon(int id)
+	{
+		return coordinates.getLon(index[id]);
+	}
+
+	/**
+	 * Calculates the straight line distance between two nodes the same way Node.calcDist does
+	 * @param a The number of one node
+	 * @param b The number of the other
+	 * @return The distance in miles
+	 */
+	public double calcDist(int a, int b)
+	{
+		return coordinates.calcDist(index[a], index[b]);
+	}
+
+	/**
+	 * Accessor for the first edge leaving a node
+	 * @param id The number of the node
+	 * @return The index of the first edge, the edges of the node end at first(id+1)
+	 */
+	public int first(int id)
+	{
+		return firstEdge[id];
+	}
+
+	/**
+	 * Accessor for the node an edge leads to
+	 * @param e The index of the edge
+	 * @return The number of the node at the end of the edge
+	 */
+	public int target(int e)
+	{
+		return targets[e];
+	}
+
+	/**
+	 * Accessor for the length of an edge
+	 * @param e The index of the edge
+	 * @return The length of the edge in miles
+	 */
+	public double length(int e)
+	{
+		return lengths[e];
+	}
+
+	/**
+	 * Accessor for the way an edge is part of
+	 * @param e The index of the edge
+	 * @return The way the edge is part of
+	 */
+	public Way way(int e)
+	{
+		return edgeWays[e];
+	}
+}
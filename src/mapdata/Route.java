@@ -2,114 +2,423 @@ package mapdata;
 
 import java.awt.geom.Point2D;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 
 
 /**
- * An array of nodes that represents a path from one destination to another
- * Can determine whether a location is on or off this route using information from a 
+ * A path from one destination to another, stored as parallel arrays of the latitude, longitude
+ * and distance from the start of each vertex, so progress along the route can be looked up with
+ * a binary search
+ * Can determine whether a location is on or off this route using information from a
  * gps device
  * @author williamloughlin
  *
  */
 public class Route {
-	
-	// Difference in degrees the onRoute method will tolerate
-	public static double TOLERANCE = 10;
 
-	private ArrayList<Node> Nodes;
-	private ArrayList<String> Directions;
+	// Farthest a location can be from the route, in miles, and still count as on it
+	public static final double OFF_ROUTE = 0.01;
+	// How far ahead of the last position on the route, in miles, onRoute looks for the user
+	public static final double LOOK_AHEAD = 0.25;
+
+	private double[] lats;
+	private double[] lons;
+	// distances[i] is the distance in miles from the start of the route to vertex i
+	private double[] distances;
+
+	// instructionStarts[k] is the index of the first segment covered by instruction k
+	private int[] instructionStarts;
+	private String[] instructionNames;
+
+	// The segment the user was last seen on and how far along the route they were, which only
+	// ever move forwards
 	private int currentIndex;
+	private double currentAlong;
+	// Scratch space for closestSegment in onRoute
+	private double[] closest = new double[2];
+
+	// False if the search ran out of time and this route stops short of the destination
+	private boolean complete;
+
 
-	
 	/**
-	 * Constructor takes an arrayList of nodes and uses it to construct a full path
-	 * @param nodes The nodes on this route
-	 * @param directions The printout for each segment of this route
+	 * Constructor takes the coordinates of the path and the segments at which each instruction
+	 * begins and uses them to construct a full path
+	 * @param lats The latitude of each vertex on this route
+	 * @param lons The longitude of each vertex on this route
+	 * @param instructionStarts The index of the first segment of each instruction, in increasing order
+	 * @param instructionNames The name of the way each instruction follows, null if it has none
+	 * @param complete Whether this route reaches the requested destination
 	 */
-	public Route(ArrayList<Node> nodes, ArrayList<String> directions)
+	public Route(double[] lats, double[] lons, int[] instructionStarts, String[] instructionNames,
+			boolean complete)
 	{
-		Nodes = nodes;
-		Directions = directions;
+		this.lats = lats;
+		this.lons = lons;
+		this.instructionStarts = instructionStarts;
+		this.instructionNames = instructionNames;
+		this.complete = complete;
 		currentIndex = 0;
+
+		distances = new double[lats.length];
+		for(int i = 1; i < lats.length; i++)
+		{
+			distances[i] = distances[i-1] + segmentLength(i-1);
+		}
+	}
+
+	/**
+	 * Constructor for a route read back with its distances, which are used as they are instead
+	 * of being worked out again
+	 * @param lats The latitude of each vertex on this route
+	 * @param lons The longitude of each vertex on this route
+	 * @param distances The distance in miles from the start of the route to each vertex
+	 * @param instructionStarts The index of the first segment of each instruction, in increasing order
+	 * @param instructionNames The name of the way each instruction follows, null if it has none
+	 * @param complete Whether this route reaches the requested destination
+	 */
+	Route(double[] lats, double[] lons, double[] distances, int[] instructionStarts,
+			String[] instructionNames, boolean complete)
+	{
+		this.lats = lats;
+		this.lons = lons;
+		this.distances = distances;
+		this.instructionStarts = instructionStarts;
+		this.instructionNames = instructionNames;
+		this.complete = complete;
+		currentIndex = 0;
+	}
+
+	/**
+	 * Accessor for whether this route reaches the requested destination
+	 * @return false if the search was cut short and this is the best route found so far
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Accessor for the number of vertices on this route
+	 * @return The number of vertices on this route
+	 */
+	public int size()
+	{
+		return lats.length;
+	}
+
+	/**
+	 * Accessor for the latitude of a vertex
+	 * @param i The index of the vertex
+	 * @return The latitude of the vertex
+	 */
+	public double getLat(int i)
+	{
+		return lats[i];
+	}
+
+	/**
+	 * Accessor for the longitude of a vertex
+	 * @param i The index of the vertex
+	 * @return The longitude of the vertex
+	 */
+	public double getLon(int i)
+	{
+		return lons[i];
+	}
+
+	/**
+	 * Copies the coordinates of every vertex, for converting them all at once
+	 * @param lons Filled with the longitudes of the vertices, at least size() long
+	 * @param lats Filled with the latitudes of the vertices, at least size() long
+	 */
+	public void getCoordinates(double[] lons, double[] lats)
+	{
+		System.arraycopy(this.lons, 0, lons, 0, this.lons.length);
+		System.arraycopy(this.lats, 0, lats, 0, this.lats.length);
+	}
+
+	/**
+	 * Accessor for the distance from the start of the route to a vertex
+	 * @param i The index of the vertex
+	 * @return The distance along the route in miles
+	 */
+	public double getDistance(int i)
+	{
+		return distances[i];
+	}
+
+	/**
+	 * Accessor for the total length of this route
+	 * @return The length of the route in miles
+	 */
+	public double getLength()
+	{
+		return distances[distances.length-1];
+	}
+
+	/**
+	 * Accessor for the number of instructions in the directions of this route
+	 * @return The number of instructions, not counting the total
+	 */
+	public int instructionCount()
+	{
+		return instructionStarts.length;
+	}
+
+	/**
+	 * Accessor for the first segment an instruction covers
+	 * @param k The index of the instruction
+	 * @return The index of the segment, which runs from vertex i to vertex i+1
+	 */
+	public int instructionStart(int k)
+	{
+		return instructionStarts[k];
+	}
+
+	/**
+	 * Accessor for the name of the way an instruction follows
+	 * @param k The index of the instruction
+	 * @return The name of the way, or null if it has none
+	 */
+	public String instructionName(int k)
+	{
+		return instructionNames[k];
+	}
+
+	/**
+	 * Returns the printout for a single instruction
+	 * @param k The index of the instruction
+	 * @return The name of the way followed and the distance it is followed for
+	 */
+	public String getInstruction(int k)
+	{
+		String name = instructionNames[k];
+		if(name == null)
+		{
+			name = "Unkown Street";
+		}
+		return name + ": " + instructionLength(k) + " miles.";
+	}
+
+	/**
+	 * Finds the segment a given distance along the route lies on
+	 * @param along The distance from the start of the route in miles
+	 * @return The index of the segment, which runs from vertex i to vertex i+1
+	 */
+	public int segmentAt(double along)
+	{
+		int i = Arrays.binarySearch(distances, along);
+		if(i < 0)
+		{
+			i = -i-2;
+		}
+		return Math.max(0, Math.min(i, lats.length-2));
+	}
+
+	/**
+	 * Finds the instruction being followed a given distance along the route
+	 * @param along The distance from the start of the route in miles
+	 * @return The index of the instruction
+	 */
+	public int instructionAt(double along)
+	{
+		int k = Arrays.binarySearch(instructionStarts, segmentAt(along));
+		if(k < 0)
+		{
+			k = -k-2;
+		}
+		return k;
+	}
+
+	/**
+	 * Finds the next instruction after a given distance along the route
+	 * @param along The distance from the start of the route in miles
+	 * @return The index of the next instruction, or -1 if the last instruction is being followed
+	 */
+	public int nextInstruction(double along)
+	{
+		int k = instructionAt(along)+1;
+		return k < instructionStarts.length ? k : -1;
+	}
+
+	/**
+	 * Calculates the distance left to travel
+	 * @param along The distance from the start of the route in miles
+	 * @return The distance to the end of the route in miles
+	 */
+	public double distanceRemaining(double along)
+	{
+		return Math.max(0, getLength()-along);
+	}
+
+	/**
+	 * Finds the location a given distance along the route
+	 * @param along The distance from the start of the route in miles
+	 * @return The point at that distance, with x as longitude and y as latitude, the only vertex
+	 * of a route with no segments
+	 */
+	public Point2D positionAt(double along)
+	{
+		if(lats.length < 2)
+		{
+			return new Point2D.Double(lons[0], lats[0]);
+		}
+		int i = segmentAt(along);
+		double length = distances[i+1]-distances[i];
+		double t = length > 0 ? (along-distances[i])/length : 0;
+		t = Math.max(0, Math.min(1, t));
+		return new Point2D.Double(lons[i]+t*(lons[i+1]-lons[i]), lats[i]+t*(lats[i+1]-lats[i]));
 	}
-	
+
 	/**
-	 * Accessor for an iterator over the nodes in this route
-	 * @return An iterator over the nodes of this route
+	 * Calculates how far along the route a location is, measured on the segment currently
+	 * being traveled
+	 * @param loc The location of the user
+	 * @return The distance from the start of the route in miles, 0 for a route with no segments
 	 */
-	public Iterator<Node> nodeIterator()
+	public double distanceAlong(Point2D loc)
 	{
-		return Nodes.iterator();
+		if(lats.length < 2)
+		{
+			return 0;
+		}
+		int i = Math.min(currentIndex, lats.length-2);
+		double cos = Math.cos(Math.PI*lats[i]/180);
+		double dx = (lons[i+1]-lons[i])*cos;
+		double dy = lats[i+1]-lats[i];
+		double px = (loc.getX()-lons[i])*cos;
+		double py = loc.getY()-lats[i];
+		double lengthSq = dx*dx+dy*dy;
+		double t = lengthSq > 0 ? (px*dx+py*dy)/lengthSq : 0;
+		t = Math.max(0, Math.min(1, t));
+		return distances[i]+t*(distances[i+1]-distances[i]);
 	}
-	
+
 	/**
 	 * Returns the printout for each segment in a list
 	 */
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder();
-		for(String s : Directions)
+		double total = 0;
+		for(int k = 0; k < instructionStarts.length; k++)
 		{
-			sb.append(s+"\n");
-
+			sb.append(getInstruction(k)+"\n");
+			total += instructionLength(k);
 		}
+		sb.append("Total: " + total + " miles.\n");
 		return sb.toString();
 	}
-	
+
 	/**
 	 * Method that checks whether the user is currently on or off the route
-	 * Calculates the distance from the users location to the line formed by the segment they are
-	 * currently traveling on
+	 * Looks for the closest point to the user on the segments from the one they were last seen on
+	 * to LOOK_AHEAD miles further along, so short segments passed between two fixes don't count
+	 * as leaving the route. Moves the user's position on the route forwards to that point if they
+	 * are on it
 	 * @param location The current location of the user
 	 * @return True if the user is on route, false otherwise
 	 */
 	public boolean onRoute(Point2D loc)
 	{
-		Node from = Nodes.get(currentIndex);
-		Node to = Nodes.get(currentIndex+1);
-		
-		if(to.calcDist(loc) < 0.009)
+		if(lats.length < 2)
 		{
-			if(currentIndex == Nodes.size()-1)
-			{
-				return true;
-			}
-			currentIndex++;
-			return true;
+			return calcDist(0, loc) <= OFF_ROUTE;
 		}
-		
-		double fromX = from.getLon();
-		double fromY = from.getLat();
-		double toX = to.getLon();
-		double toY = to.getLat();
-		double locX = loc.getX();
-		double locY = loc.getY();
-		
-		double m = (toY-fromY)/(toX-fromX);
-		double perpM = -1/m;
-		
-		double b = fromY-m*fromX;
-		double perpB = locY-perpM*locX;
-		
-		double interX = -(b-perpB)/(m-perpM);
-		double interY = m*interX+b;
-		
-		double avgLat = (loc.getY()+interY)/2;
-		
-		double diffX = (locX-interX)*Math.cos(Math.PI*avgLat/180)*69;
-		double diffY = (locY-interY)*69;
-		double dist = Math.sqrt(diffX*diffX+diffY*diffY);
-		
-		if(dist > 0.01)
+		int i = closestSegment(loc.getY(), loc.getX(), currentIndex, currentAlong+LOOK_AHEAD, closest);
+		if(closest[0] > OFF_ROUTE)
 		{
 			return false;
 		}
-		else
+		// Never move backwards along the route because of noise
+		if(closest[1] > currentAlong)
+		{
+			currentAlong = closest[1];
+			currentIndex = i;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the closest point on part of the route to a location. Distances are measured in
+	 * a projection local to the location, so segments in any direction are handled the same
+	 * @param lat The latitude of the location
+	 * @param lon The longitude of the location
+	 * @param first The first segment to look at
+	 * @param limit How far along the route in miles the last segment looked at may start, segments
+	 * after the first that start farther along are skipped
+	 * @param result Filled with the distance in miles from the location to the closest point, then
+	 * how far along the route the closest point is in miles
+	 * @return The index of the segment the closest point is on
+	 */
+	public int closestSegment(double lat, double lon, int first, double limit, double[] result)
+	{
+		if(lats.length < 2)
+		{
+			// A route with no segments is just its vertex
+			result[0] = calcDist(0, new Point2D.Double(lon, lat));
+			result[1] = 0;
+			return 0;
+		}
+		double cos = Math.cos(Math.PI*lat/180);
+		double bestDistSq = Double.POSITIVE_INFINITY;
+		double bestAlong = distances[first];
+		int best = first;
+		for(int i = first; i < lats.length-1 && (i == first || distances[i] <= limit); i++)
 		{
-			return true;
+			double dx = (lons[i+1]-lons[i])*cos;
+			double dy = lats[i+1]-lats[i];
+			double px = (lon-lons[i])*cos;
+			double py = lat-lats[i];
+			double lengthSq = dx*dx+dy*dy;
+			double t = lengthSq > 0 ? (px*dx+py*dy)/lengthSq : 0;
+			t = Math.max(0, Math.min(1, t));
+			double ex = px-t*dx;
+			double ey = py-t*dy;
+			double distSq = ex*ex+ey*ey;
+			if(distSq < bestDistSq)
+			{
+				bestDistSq = distSq;
+				best = i;
+				bestAlong = distances[i]+t*(distances[i+1]-distances[i]);
+			}
 		}
-		
+		result[0] = Math.sqrt(bestDistSq)*69;
+		result[1] = bestAlong;
+		return best;
+	}
+
+	/**
+	 * Calculates the length of an instruction, rounded to the hundredth of a mile as it is printed
+	 * @param k The index of the instruction
+	 * @return The rounded length in miles
+	 */
+	private double instructionLength(int k)
+	{
+		int end = k+1 < instructionStarts.length ? instructionStarts[k+1] : lats.length-1;
+		double dist = Math.round((distances[end]-distances[instructionStarts[k]])*100);
+		return dist/100;
+	}
+
+	/**
+	 * Calculates the length of a segment the same way Node.calcDist does
+	 * @param i The index of the segment
+	 * @return The length of the segment in miles
+	 */
+	private double segmentLength(int i)
+	{
+		return calcDist(i, new Point2D.Double(lons[i+1], lats[i+1]));
+	}
+
+	/**
+	 * Calculates the distance from a vertex to a point the same way Node.calcDist does
+	 * @param i The index of the vertex
+	 * @param other The point
+	 * @return The distance in miles
+	 */
+	private double calcDist(int i, Point2D other)
+	{
+		return Coordinates.distance(lats[i], lons[i], other.getY(), other.getX());
 	}
 }
@@ -0,0 +1,208 @@
+package mapdata;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs route queries on a background thread so the caller never waits on the pathfinder.
+ * Only the most recent query matters, so submitting a new one cancels whatever is still
+ * running, and results of superseded queries are never handed to their listener.
+ * @author williamloughlin
+ *
+ */
+public class RouteEngine {
+
+	private Data data;
+	private ExecutorService executor;
+	
+	private Future<Route> pending;
+	// The most recently submitted query, kept after it finishes so it can be waited on
+	private Future<Route> latest;
+	// Incremented for every query so a finished query can tell if it has been superseded
+	private long generation;
+	
+	// Time budget for each query in milliseconds, 0 for no limit
+	private long budget;
+	
+	// Number of queries cancelled before they finished
+	private long superseded;
+	
+	public RouteEngine(Data data)
+	{
+		this.data = data;
+		budget = 0;
+		generation = 0;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "RouteEngine");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+	
+	/**
+	 * Sets the time budget for queries submitted after this call. When a query runs out of time
+	 * the best route found so far is returned
+	 * @param millis The budget in milliseconds, 0 for no limit
+	 */
+	public synchronized void setTimeBudget(long millis)
+	{
+		budget = millis;
+	}
+	
+	/**
+	 * Starts computing a route from start to end, cancelling any query still in flight
+	 * @param start The beginning node
+	 * @param end The end node
+	 * @param listener Notified on the worker thread with the result unless the query is superseded
+	 * @return A future for the route, which can be cancelled by the caller
+	 */
+	public synchronized Future<Route> submit(final Node start, final Node end, final RouteListener listener)
+	{
+		final long queryBudget = budget;
+		return submit(new Callable<Route>()
+				{
+					public Route call()
+					{
+						return new Pathfinder(data).getBestPath(start, end, queryBudget);
+					}
+				}, listener);
+	}
+	
+	/**
+	 * Starts computing a route between two points on the road network, which may be in the
+	 * middle of segments, cancelling any query still in flight
+	 * @param from The point to start at
+	 * @param to The point to end at
+	 * @param listener Notified on the worker thread with the result unless the query is superseded
+	 * @return A future for the route, which can be cancelled by the caller
+	 */
+	public synchronized Future<Route> submit(final Snap from, final Snap to, final RouteListener listener)
+	{
+		final long queryBudget = budget;
+		return submit(new Callable<Route>()
+				{
+					public Route call()
+					{
+						return new Pathfinder(data).getBestPath(from, to, queryBudget);
+					}
+				}, listener);
+	}
+	
+	/**
+	 * Runs a query on the worker thread, superseding the one in flight
+	 * @param query Computes the route
+	 * @param listener Notified with the result unless the query is superseded
+	 * @return A future for the route
+	 */
+	private Future<Route> submit(final Callable<Route> query, final RouteListener listener)
+	{
+		cancel();
+		final long id = generation;
+		latest = pending = executor.submit(new Callable<Route>()
+				{
+					public Route call() throws Exception
+					{
+						Route route = query.call();
+						if(Thread.currentThread().isInterrupted())
+						{
+							return null;
+						}
+						synchronized(RouteEngine.this)
+						{
+							if(id != generation)
+							{
+								return null;
+							}
+							pending = null;
+						}
+						if(listener != null)
+						{
+							listener.routeFound(route);
+						}
+						return route;
+					}
+				});
+		return pending;
+	}
+	
+	/**
+	 * Cancels the query in flight, if any. Its listener will not be notified
+	 */
+	public synchronized void cancel()
+	{
+		generation++;
+		if(pending != null)
+		{
+			if(!pending.isDone())
+			{
+				superseded++;
+			}
+			pending.cancel(true);
+			pending = null;
+		}
+	}
+	
+	/**
+	 * Accessor for whether a query is still being computed
+	 * @return true if a submitted query has neither finished nor been cancelled
+	 */
+	public synchronized boolean isPending()
+	{
+		return pending != null && !pending.isDone();
+	}
+	
+	/**
+	 * Waits until the most recently submitted query has finished, after its listener has been
+	 * told, or until it has been cancelled
+	 */
+	public void await() throws InterruptedException
+	{
+		Future<Route> query;
+		synchronized(this)
+		{
+			query = latest;
+		}
+		if(query == null)
+			return;
+		try
+		{
+			query.get();
+		}
+		catch(CancellationException e)
+		{
+			// Superseded, its listener is never told
+		}
+		catch(ExecutionException e)
+		{
+			// The search failed, there is nothing to wait for
+		}
+	}
+	
+	/**
+	 * Accessor for the number of queries dropped because a newer query replaced them or they
+	 * were cancelled
+	 * @return The number of queries that never reached their listener
+	 */
+	public synchronized long superseded()
+	{
+		return superseded;
+	}
+	
+	/**
+	 * Cancels any query in flight and stops the worker thread
+	 */
+	public synchronized void shutdown()
+	{
+		cancel();
+		executor.shutdownNow();
+	}
+}
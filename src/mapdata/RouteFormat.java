@@ -0,0 +1,298 @@
+package mapdata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compact binary form of a route for sending between processes. Every number is a variable
+ * length integer of seven bits a byte, and signed numbers have their sign moved into the lowest
+ * bit, so small differences take one or two bytes. A route is written as
+ *
+ *   int    MAGIC, then a byte of VERSION
+ *   the length in bytes of the rest of the route
+ *   byte   1 if the route is complete, otherwise 0
+ *   vertex count, then for each vertex the change in latitude and longitude from the one before
+ *     in ten millionths of a degree
+ *   for each vertex after the first the change in distance from the start in millionths of a mile
+ *   instruction count, then for each instruction the change in its first segment from the one
+ *     before and the length of its name in UTF-8 bytes plus one, 0 for no name, then the name
+ *
+ * Any number of routes can be written to a stream one after another and read back one at a time
+ * @author williamloughlin
+ *
+ */
+public class RouteFormat {
+
+	// "GPSR"
+	public static final int MAGIC = 0x47505352;
+	public static final int VERSION = 1;
+
+	private static final double COORDINATE_SCALE = 1e7;
+	private static final double DISTANCE_SCALE = 1e6;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private RouteFormat()
+	{
+	}
+
+	/**
+	 * Writes a route
+	 * @param route The route
+	 * @param out The stream to write to
+	 * @throws IOException If the stream can't be written
+	 */
+	public static void write(Route route, OutputStream out) throws IOException
+	{
+		Buffer body = new Buffer(16 + 8*route.size());
+		body.write(route.isComplete() ? 1 : 0);
+
+		int n = route.size();
+		body.writeVarint(n);
+		long lastLat = 0;
+		long lastLon = 0;
+		for(int i = 0; i < n; i++)
+		{
+			long lat = Math.round(route.getLat(i)*COORDINATE_SCALE);
+			long lon = Math.round(route.getLon(i)*COORDINATE_SCALE);
+			body.writeSigned(lat-lastLat);
+			body.writeSigned(lon-lastLon);
+			lastLat = lat;
+			lastLon = lon;
+		}
+		// Rounded from the start each time so errors don't add up along the route
+		long lastDistance = 0;
+		for(int i = 1; i < n; i++)
+		{
+			long distance = Math.round(route.getDistance(i)*DISTANCE_SCALE);
+			body.writeVarint(distance-lastDistance);
+			lastDistance = distance;
+		}
+
+		int instructions = route.instructionCount();
+		body.writeVarint(instructions);
+		int lastStart = 0;
+		for(int k = 0; k < instructions; k++)
+		{
+			body.writeVarint(route.instructionStart(k)-lastStart);
+			lastStart = route.instructionStart(k);
+			String name = route.instructionName(k);
+			if(name == null)
+			{
+				body.writeVarint(0);
+			}
+			else
+			{
+				byte[] bytes = name.getBytes(UTF8);
+				body.writeVarint(bytes.length+1);
+				body.write(bytes);
+			}
+		}
+
+		Buffer header = new Buffer(16);
+		header.writeInt(MAGIC);
+		header.write(VERSION);
+		header.writeVarint(body.length);
+		out.write(header.bytes, 0, header.length);
+		out.write(body.bytes, 0, body.length);
+	}
+
+	/**
+	 * Reads the next route
+	 * @param in The stream to read from
+	 * @return The route, or null if the stream ended before it
+	 * @throws IOException If the stream can't be read, ends in the middle of a route or doesn't
+	 * hold a route
+	 */
+	public static Route read(InputStream in) throws IOException
+	{
+		byte[] header = new byte[5];
+		int first = in.read();
+		if(first < 0)
+			return null;
+		header[0] = (byte)first;
+		readFully(in, header, 1, 4);
+		Buffer head = new Buffer(header);
+		if(head.readInt() != MAGIC)
+			throw new IOException("Not a route");
+		int version = head.read();
+		if(version != VERSION)
+			throw new IOException("Unsupported route version " + version);
+		long length = 0;
+		for(int shift = 0; ; shift += 7)
+		{
+			int b = in.read();
+			if(b < 0)
+				throw new EOFException("Route ends early");
+			if(shift > 28)
+				throw new IOException("Malformed route");
+			length |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				break;
+		}
+		if(length > Integer.MAX_VALUE)
+			throw new IOException("Malformed route");
+		byte[] bytes = new byte[(int)length];
+		readFully(in, bytes, 0, bytes.length);
+		Buffer body = new Buffer(bytes);
+
+		boolean complete = body.read() != 0;
+		// Every vertex and instruction takes at least a byte, which bounds the counts of a bad route
+		long n = body.readVarint();
+		if(n > bytes.length)
+			throw new IOException("Malformed route");
+		double[] lats = new double[(int)n];
+		double[] lons = new double[(int)n];
+		long lat = 0;
+		long lon = 0;
+		for(int i = 0; i < n; i++)
+		{
+			lat += body.readSigned();
+			lon += body.readSigned();
+			lats[i] = lat/COORDINATE_SCALE;
+			lons[i] = lon/COORDINATE_SCALE;
+		}
+		double[] distances = new double[(int)n];
+		long distance = 0;
+		for(int i = 1; i < n; i++)
+		{
+			distance += body.readVarint();
+			distances[i] = distance/DISTANCE_SCALE;
+		}
+
+		long instructions = body.readVarint();
+		if(instructions > bytes.length)
+			throw new IOException("Malformed route");
+		int[] starts = new int[(int)instructions];
+		String[] names = new String[(int)instructions];
+		int start = 0;
+		for(int k = 0; k < instructions; k++)
+		{
+			start += (int)body.readVarint();
+			starts[k] = start;
+			long nameLength = body.readVarint();
+			if(nameLength > 0)
+			{
+				names[k] = body.readString(nameLength-1);
+			}
+		}
+		return new Route(lats, lons, distances, starts, names, complete);
+	}
+
+	private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException
+	{
+		int read = 0;
+		while(read < length)
+		{
+			int n = in.read(bytes, offset+read, length-read);
+			if(n < 0)
+				throw new EOFException("Route ends early");
+			read += n;
+		}
+	}
+
+	/**
+	 * Bytes of one route, so the stream is written and read in one call instead of a byte at
+	 * a time
+	 */
+	private static class Buffer
+	{
+		private byte[] bytes;
+		private int length;
+		private int position;
+
+		private Buffer(int capacity)
+		{
+			bytes = new byte[capacity];
+		}
+
+		private Buffer(byte[] bytes)
+		{
+			this.bytes = bytes;
+			length = bytes.length;
+		}
+
+		private void write(int b)
+		{
+			if(length == bytes.length)
+			{
+				bytes = Arrays.copyOf(bytes, 2*length+16);
+			}
+			bytes[length++] = (byte)b;
+		}
+
+		private void write(byte[] b)
+		{
+			for(byte x : b)
+			{
+				write(x);
+			}
+		}
+
+		private void writeInt(int v)
+		{
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+
+		private void writeSigned(long v)
+		{
+			writeVarint((v << 1) ^ (v >> 63));
+		}
+
+		private void writeVarint(long v)
+		{
+			while((v & ~0x7fL) != 0)
+			{
+				write((int)(v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			write((int)v);
+		}
+
+		private int read() throws IOException
+		{
+			if(position >= length)
+				throw new EOFException("Route ends early");
+			return bytes[position++] & 0xff;
+		}
+
+		private int readInt() throws IOException
+		{
+			return read() << 24 | read() << 16 | read() << 8 | read();
+		}
+
+		private long readSigned() throws IOException
+		{
+			long v = readVarint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		private long readVarint() throws IOException
+		{
+			long v = 0;
+			for(int shift = 0; shift < 64; shift += 7)
+			{
+				int b = read();
+				v |= (long)(b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+					return v;
+			}
+			throw new IOException("Malformed route");
+		}
+
+		private String readString(long n) throws IOException
+		{
+			if(n > length-position)
+				throw new EOFException("Route ends early");
+			String s = new String(bytes, position, (int)n, UTF8);
+			position += (int)n;
+			return s;
+		}
+	}
+}
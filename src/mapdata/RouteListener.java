@@ -0,0 +1,15 @@
+package mapdata;
+
+/**
+ * Callback used by the RouteEngine to hand back the result of a route query
+ * @author williamloughlin
+ *
+ */
+public interface RouteListener {
+
+	/**
+	 * Called from the engine's worker thread when a query finishes without being superseded
+	 * @param route The route that was found, or null if there is no route
+	 */
+	public void routeFound(Route route);
+}
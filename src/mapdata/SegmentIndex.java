@@ -0,0 +1,343 @@
+package mapdata;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Uniform grid over the segments of the driveable ways, used to find the closest point on any
+ * road to a location. Each segment is stored in every cell its bounding box overlaps, so a
+ * query only has to look at the segments of the cells around the location.
+ *
+ * Coordinates are projected to miles with the cosine of the map's middle latitude, the same
+ * way the NodeIndex does.
+ * @author williamloughlin
+ *
+ */
+public class SegmentIndex {
+
+	private double cos;
+	private double minX;
+	private double minY;
+	private double cellSize;
+	private int columns;
+	private int rows;
+
+	// Segments overlapping cell c are cellSegments[cellStart[c]] to cellSegments[cellStart[c+1]-1]
+	private int[] cellStart;
+	private int[] cellSegments;
+
+	// Segment s runs from fromNodes[s] to toNodes[s] along ways[s], numbered as in the coordinates
+	private Way[] ways;
+	private Coordinates coordinates;
+	private int[] fromNodes;
+	private int[] toNodes;
+	private double[] fromX;
+	private double[] fromY;
+	private double[] toX;
+	private double[] toY;
+
+	/**
+	 * @param driveable The driveable ways
+	 * @param coordinates The coordinates of the map the nodes of the ways belong to
+	 */
+	public SegmentIndex(Collection<Way> driveable, Coordinates coordinates)
+	{
+		this.coordinates = coordinates;
+		int count = 0;
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		for(Way way : driveable)
+		{
+			for(int i = 0; i < way.size(); i++)
+			{
+				int n = way.getIndex(i);
+				minLat = Math.min(minLat, coordinates.getLat(n));
+				maxLat = Math.max(maxLat, coordinates.getLat(n));
+				minLon = Math.min(minLon, coordinates.getLon(n));
+				maxLon = Math.max(maxLon, coordinates.getLon(n));
+				if(i > 0 && way.getIndex(i-1) != n)
+					count++;
+			}
+		}
+		if(count == 0)
+		{
+			minLat = maxLat = minLon = maxLon = 0;
+		}
+		cos = Math.cos(Math.PI*(minLat+maxLat)/360);
+
+		ways = new Way[count];
+		fromNodes = new int[count];
+		toNodes = new int[count];
+		fromX = new double[count];
+		fromY = new double[count];
+		toX = new double[count];
+		toY = new double[count];
+		double totalLength = 0;
+		int s = 0;
+		for(Way way : driveable)
+		{
+			for(int i = 1; i < way.size(); i++)
+			{
+				int prev = way.getIndex(i-1);
+				int n = way.getIndex(i);
+				if(prev != n)
+				{
+					ways[s] = way;
+					fromNodes[s] = prev;
+					toNodes[s] = n;
+					fromX[s] = projectX(coordinates.getLon(prev));
+					fromY[s] = projectY(coordinates.getLat(prev));
+					toX[s] = projectX(coordinates.getLon(n));
+					toY[s] = projectY(coordinates.getLat(n));
+					totalLength += Math.hypot(toX[s]-fromX[s], toY[s]-fromY[s]);
+					s++;
+				}
+			}
+		}
+
+		minX = projectX(minLon);
+		minY = projectY(minLat);
+		double width = Math.max(projectX(maxLon)-minX, 1e-9);
+		double height = Math.max(projectY(maxLat)-minY, 1e-9);
+		// Cells half as long as an average segment keep both the cells per segment and the
+		// segments per cell small, as long as the grid has no more than a few cells per segment
+		cellSize = Math.max(count > 0 ? totalLength/count/2 : 1, Math.sqrt(width*height/Math.max(1, 4*count)));
+		columns = (int)(width/cellSize)+1;
+		rows = (int)(height/cellSize)+1;
+
+		cellStart = new int[columns*rows+1];
+		for(s = 0; s < count; s++)
+		{
+			for(int c = column(Math.min(fromX[s], toX[s])); c <= column(Math.max(fromX[s], toX[s])); c++)
+			{
+				for(int r = row(Math.min(fromY[s], toY[s])); r <= row(Math.max(fromY[s], toY[s])); r++)
+				{
+					cellStart[cell(c, r)+1]++;
+				}
+			}
+		}
+		for(int c = 0; c < columns*rows; c++)
+		{
+			cellStart[c+1] += cellStart[c];
+		}
+		cellSegments = new int[cellStart[columns*rows]];
+		int[] fill = new int[columns*rows];
+		for(s = 0; s < count; s++)
+		{
+			for(int c = column(Math.min(fromX[s], toX[s])); c <= column(Math.max(fromX[s], toX[s])); c++)
+			{
+				for(int r = row(Math.min(fromY[s], toY[s])); r <= row(Math.max(fromY[s], toY[s])); r++)
+				{
+					int cell = cell(c, r);
+					cellSegments[cellStart[cell] + fill[cell]++] = s;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accessor for the number of segments in this index
+	 * @return The number of segments in this index
+	 */
+	public int size()
+	{
+		return ways.length;
+	}
+
+	/**
+	 * Method to get the closest point on any road to a location
+	 * @param point The location, with x as longitude and y as latitude
+	 * @return The closest point on a driveable segment, null if there are no segments
+	 */
+	public Snap nearest(Point2D point)
+	{
+		double x = projectX(point.getX());
+		double y = projectY(point.getY());
+		int col = column(x);
+		int row = row(y);
+
+		int best = -1;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for(int r = 0; ; r++)
+		{
+			for(int c = col-r; c <= col+r; c++)
+			{
+				for(int w = row-r; w <= row+r; w++)
+				{
+					// Only visit the outer ring of cells, the inner ones were visited already
+					if(c != col-r && c != col+r && w != row-r && w != row+r)
+						continue;
+					if(c < 0 || c >= columns || w < 0 || w >= rows)
+						continue;
+					int cell = cell(c, w);
+					for(int j = cellStart[cell]; j < cellStart[cell+1]; j++)
+					{
+						int s = cellSegments[j];
+						double d = distSq(s, x, y);
+						if(d < bestDist)
+						{
+							bestDist = d;
+							best = s;
+						}
+					}
+				}
+			}
+			if(ringsExhausted(col, row, r) || reachedBound(x, y, col, row, r, bestDist))
+				break;
+		}
+		if(best < 0)
+		{
+			return null;
+		}
+		return new Snap(ways[best], node(fromNodes[best]), node(toNodes[best]), fraction(best, x, y), Math.sqrt(bestDist));
+	}
+
+	/**
+	 * Method to get the closest points on the roads near a location, at most one for each way
+	 * @param point The location, with x as longitude and y as latitude
+	 * @param radius The distance in miles to look within
+	 * @param k The most points wanted
+	 * @return Up to k points ordered from closest to farthest, each on a different way
+	 */
+	public ArrayList<Snap> candidates(Point2D point, double radius, int k)
+	{
+		double x = projectX(point.getX());
+		double y = projectY(point.getY());
+		double radiusSq = radius*radius;
+		// The closest segment of each way within the radius
+		HashMap<Way, Integer> closest = new HashMap<Way, Integer>();
+		HashMap<Way, Double> closestDist = new HashMap<Way, Double>();
+		for(int c = column(x-radius); c <= column(x+radius); c++)
+		{
+			for(int w = row(y-radius); w <= row(y+radius); w++)
+			{
+				int cell = cell(c, w);
+				for(int j = cellStart[cell]; j < cellStart[cell+1]; j++)
+				{
+					int s = cellSegments[j];
+					double d = distSq(s, x, y);
+					if(d <= radiusSq)
+					{
+						Double prev = closestDist.get(ways[s]);
+						if(prev == null || d < prev)
+						{
+							closest.put(ways[s], s);
+							closestDist.put(ways[s], d);
+						}
+					}
+				}
+			}
+		}
+		ArrayList<Snap> result = new ArrayList<Snap>(closest.size());
+		for(int s : closest.values())
+		{
+			result.add(new Snap(ways[s], node(fromNodes[s]), node(toNodes[s]), fraction(s, x, y), Math.sqrt(distSq(s, x, y))));
+		}
+		Collections.sort(result, new Comparator<Snap>()
+				{
+					public int compare(Snap a, Snap b)
+					{
+						return Double.compare(a.getDistance(), b.getDistance());
+					}
+				});
+		while(result.size() > k)
+		{
+			result.remove(result.size()-1);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds how far along a segment the closest point to a location is
+	 * @param s The segment
+	 * @param x The projected x coordinate of the location
+	 * @param y The projected y coordinate of the location
+	 * @return The fraction of the way from the start to the end of the segment, between 0 and 1
+	 */
+	private double fraction(int s, double x, double y)
+	{
+		double dx = toX[s]-fromX[s];
+		double dy = toY[s]-fromY[s];
+		double lengthSq = dx*dx+dy*dy;
+		if(lengthSq == 0)
+		{
+			return 0;
+		}
+		double t = ((x-fromX[s])*dx+(y-fromY[s])*dy)/lengthSq;
+		return Math.max(0, Math.min(1, t));
+	}
+
+	/**
+	 * Calculates the squared distance from a location to the closest point of a segment
+	 */
+	private double distSq(int s, double x, double y)
+	{
+		double t = fraction(s, x, y);
+		double dx = fromX[s]+t*(toX[s]-fromX[s])-x;
+		double dy = fromY[s]+t*(toY[s]-fromY[s])-y;
+		return dx*dx+dy*dy;
+	}
+
+	private Node node(int index)
+	{
+		return new Node(coordinates, index);
+	}
+
+	private double projectX(double lon)
+	{
+		return lon*cos*69;
+	}
+
+	private double projectY(double lat)
+	{
+		return lat*69;
+	}
+
+	private int column(double x)
+	{
+		return Math.max(0, Math.min(columns-1, (int)Math.floor((x-minX)/cellSize)));
+	}
+
+	private int row(double y)
+	{
+		return Math.max(0, Math.min(rows-1, (int)Math.floor((y-minY)/cellSize)));
+	}
+
+	private int cell(int column, int row)
+	{
+		return row*columns+column;
+	}
+
+	/**
+	 * Tests whether the rings searched so far cover the whole grid
+	 */
+	private boolean ringsExhausted(int col, int row, int r)
+	{
+		return col-r <= 0 && row-r <= 0 && col+r >= columns-1 && row+r >= rows-1;
+	}
+
+	/**
+	 * Tests whether every segment not yet seen is farther away than a bound. A segment that
+	 * was not seen overlaps none of the searched cells, so it lies outside the searched box
+	 * @param bound The squared distance that a segment would have to beat
+	 */
+	private boolean reachedBound(double x, double y, int col, int row, int r, double bound)
+	{
+		double gap = Double.POSITIVE_INFINITY;
+		if(col-r > 0)
+			gap = Math.min(gap, x-(minX+(col-r)*cellSize));
+		if(col+r < columns-1)
+			gap = Math.min(gap, minX+(col+r+1)*cellSize-x);
+		if(row-r > 0)
+			gap = Math.min(gap, y-(minY+(row-r)*cellSize));
+		if(row+r < rows-1)
+			gap = Math.min(gap, minY+(row+r+1)*cellSize-y);
+		return gap*gap >= bound;
+	}
+}
@@ -0,0 +1,176 @@
+package mapdata;
+
+import java.awt.geom.Point2D;
+
+/**
+ * The closest point on a road to some location. The point lies on the segment of a way between
+ * two consecutive nodes, at a fraction of the way from the first to the second. Immutable
+ * @author williamloughlin
+ *
+ */
+public class Snap {
+
+	private Way way;
+	private Node from;
+	private Node to;
+	private double fraction;
+	private double distance;
+
+	private double Latitude;
+	private double Longitude;
+
+	/**
+	 * @param way The way the segment belongs to
+	 * @param from The first node of the segment
+	 * @param to The second node of the segment
+	 * @param fraction How far along the segment the point is, from 0 at from to 1 at to
+	 * @param distance The distance in miles from the location that was snapped
+	 */
+	public Snap(Way way, Node from, Node to, double fraction, double distance)
+	{
+		this.way = way;
+		this.from = from;
+		this.to = to;
+		this.fraction = fraction;
+		this.distance = distance;
+		Latitude = from.getLat() + fraction*(to.getLat()-from.getLat());
+		Longitude = from.getLon() + fraction*(to.getLon()-from.getLon());
+	}
+
+	/**
+	 * Accessor for the way the snapped point is on
+	 * @return The way the snapped point is on
+	 */
+	public Way getWay()
+	{
+		return way;
+	}
+
+	/**
+	 * Accessor for the first node of the segment the snapped point is on
+	 * @return The first node of the segment
+	 */
+	public Node getFrom()
+	{
+		return from;
+	}
+
+	/**
+	 * Accessor for the second node of the segment the snapped point is on
+	 * @return The second node of the segment
+	 */
+	public Node getTo()
+	{
+		return to;
+	}
+
+	/**
+	 * Accessor for how far along the segment the snapped point is
+	 * @return 0 if the point is at the first node, 1 if it is at the second
+	 */
+	public double getFraction()
+	{
+		return fraction;
+	}
+
+	/**
+	 * Accessor for the distance from the snapped location to the road
+	 * @return The distance in miles
+	 */
+	public double getDistance()
+	{
+		return distance;
+	}
+
+	/**
+	 * Accessor for the latitude of the snapped point
+	 * @return The latitude of the snapped point
+	 */
+	public double getLat()
+	{
+		return Latitude;
+	}
+
+	/**
+	 * Accessor for the longitude of the snapped point
+	 * @return The longitude of the snapped point
+	 */
+	public double getLon()
+	{
+		return Longitude;
+	}
+
+	/**
+	 * Returns a Point2D object with the coordinates of the snapped point
+	 * @return A point2D object whose x and y are the longitude and latitude of the snapped point
+	 */
+	public Point2D.Double getPoint()
+	{
+		return new Point2D.Double(Longitude, Latitude);
+	}
+
+	/**
+	 * Creates a node that is not part of the map at the snapped point, for routing from or to it
+	 * @param id The id of the node, which must not be the id of any node in the map
+	 * @return A node at the snapped point
+	 */
+	public Node toNode(String id)
+	{
+		return new Node(Latitude, Longitude, id);
+	}
+
+	/**
+	 * Method to calculate the distance from the snapped point to another point
+	 * @param other The point
+	 * @return the distance to point in miles
+	 */
+	public double calcDist(Point2D other)
+	{
+		return Coordinates.distance(Latitude, Longitude, other.getY(), other.getX());
+	}
+
+	/**
+	 * Tests whether the snapped point is on the same segment as another
+	 * @param other The other snapped point
+	 * @return true if both points are on the segment between the same two nodes of the same way
+	 */
+	public boolean sameSegment(Snap other)
+	{
+		return way.equals(other.way) && ((from.equals(other.from) && to.equals(other.to))
+				|| (from.equals(other.to) && to.equals(other.from)));
+	}
+
+	/**
+	 * Overrides the hashCode method
+	 * @return the hashcode of this snapped point
+	 */
+	@Override
+	public int hashCode()
+	{
+		return from.hashCode()*31 + to.hashCode() + Double.valueOf(fraction).hashCode();
+	}
+
+	/**
+	 * Overrides the equals method
+	 * @return Whether another snapped point is at the same place on the same segment
+	 */
+	@Override
+	public boolean equals(Object other)
+	{
+		if(other == this)
+		{
+			return true;
+		}
+		if(other == null)
+		{
+			return false;
+		}
+		if(getClass() != other.getClass())
+		{
+			return false;
+		}
+		Snap snap = (Snap)other;
+		return way.equals(snap.way) && from.equals(snap.from) && to.equals(snap.to)
+				&& fraction == snap.fraction;
+	}
+}
@@ -2,19 +2,21 @@ package mapdata;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
- * Immutable class used to represent a way by representing it as a series of points
+ * Immutable class used to represent a way by representing it as a series of points. The points
+ * are kept as the numbers of the nodes in the coordinates of the map, and nodes are made from
+ * them as they are asked for
  * @author williamloughlin
  *
  */
 public class Way {
 
-	private ArrayList<Node> Nodes;
-	private HashSet<Node> nodeSet;
+	// Where the nodes of this way are kept and the number of each node there, in order
+	private Coordinates coordinates;
+	private int[] Nodes;
 	
 	private String Id;
 	
@@ -32,10 +34,16 @@ public class Way {
 	
 	
 
-	public Way(List<Node> nodes, String id, HashMap<String, String> tags)
+	/**
+	 * @param coordinates The coordinates of the map the nodes of the way belong to
+	 * @param nodes The numbers of the nodes of the way there, in order, kept by the way
+	 * @param id The id of the way
+	 * @param tags The tags of the way
+	 */
+	public Way(Coordinates coordinates, int[] nodes, String id, HashMap<String, String> tags)
 	{
-		Nodes = new ArrayList<Node>(nodes);
-		nodeSet = new HashSet<Node>(nodes);
+		this.coordinates = coordinates;
+		Nodes = nodes;
 		Id = id;
 		this.tags = tags;
 		setType(tags.get("highway"));
@@ -81,7 +89,57 @@ public class Way {
 	 */
 	public Iterator<Node> nodeIterator()
 	{
-		return Nodes.iterator();
+		return new Iterator<Node>()
+				{
+					private int position;
+
+					public boolean hasNext()
+					{
+						return position < Nodes.length;
+					}
+
+					public Node next()
+					{
+						if(position == Nodes.length)
+							throw new NoSuchElementException();
+						return getNode(position++);
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+	}
+	
+	/**
+	 * Accessor for the number of nodes in this way
+	 * @return The number of nodes, counting a node the way passes through twice each time
+	 */
+	public int size()
+	{
+		return Nodes.length;
+	}
+	
+	/**
+	 * Accessor for the number of a node of this way in the coordinates of its map, for reading
+	 * the way without making its nodes
+	 * @param position The position of the node in the way
+	 * @return The number of the node
+	 */
+	public int getIndex(int position)
+	{
+		return Nodes[position];
+	}
+	
+	/**
+	 * Accessor for a node of this way
+	 * @param position The position of the node in the way
+	 * @return The node
+	 */
+	public Node getNode(int position)
+	{
+		return new Node(coordinates, Nodes[position]);
 	}
 	
 	/**
@@ -91,7 +149,12 @@ public class Way {
 	 */
 	public boolean contains(Node node)
 	{
-		return nodeSet.contains(node);
+		for(int n : Nodes)
+		{
+			if(node.is(coordinates, n))
+				return true;
+		}
+		return false;
 	}
 	
 	/**
@@ -136,32 +199,43 @@ public class Way {
 	 * @param The value of the highwaytag of this way
 	 */
 	private void setType(String s)
+	{
+		Type = typeOf(s);
+	}
+	
+	/**
+	 * Finds the type of a way from its highway tag, as returned by getType
+	 * @param s The value of the highway tag, or null if there is none
+	 * @return The type, 1 or more for driveable ways
+	 */
+	public static int typeOf(String s)
 	{
 		if(s == null)
 		{
-			Type = -1;
+			return -1;
 		}
 		else if(s.equals("footpath") || s.equals("footway") || s.equals("path")
 				|| s.equals("steps") || s.equals("proposed"))
 		{
-			Type = 0;
+			return 0;
 		}
 		else if(s.equals("unclassified") || s.contains("link") || s.equals("road"))
 		{
-			Type = 1;
+			return 1;
 		}
 		else if(s.equals("residential") || s.equals("service"))
 		{
-			Type = 2;
+			return 2;
 		}
 		else if(s.equals("tertiary") || s.equals("secondary") || s.equals("primary") || s.equals("motorway"))
 		{
-			Type = 3;
+			return 3;
 		}
 		else if(s.equals("highway") || s.equals("trunk"))
 		{
-			Type = 4;
+			return 4;
 		}
+		return 0;
 	}
 	
 	
@@ -175,22 +249,19 @@ public class Way {
 	public double segmentDist(Node start, Node end)
 	{
 		double dist = 0;
-		Iterator<Node> it = Nodes.iterator();
-		Node prev = null;
 		boolean onSeg = false;
-		while(it.hasNext())
+		for(int position = 0; position < Nodes.length; position++)
 		{
-			Node n = it.next();
+			int n = Nodes[position];
 			
 			if(onSeg)
 			{
-				dist += n.calcDist(prev.getPoint());
+				dist += coordinates.calcDist(n, Nodes[position-1]);
 			}
-			if(start.equals(n) || end.equals(n))
+			if(start.is(coordinates, n) || end.is(coordinates, n))
 			{
 				onSeg = !onSeg;
 			}
-			prev = n;
 		}
 		return dist;
 	}
@@ -205,17 +276,14 @@ public class Way {
 	public Iterator<Node> getSegment(Node start, Node end)
 	{
 		ArrayList<Node> segment = new ArrayList<Node>();
-		Iterator<Node> it = Nodes.iterator();
 		boolean onSeg = false;
-		while(it.hasNext())
+		for(int n : Nodes)
 		{
-			Node n = it.next();
-			
 			if(onSeg)
 			{
-				segment.add(n);
+				segment.add(new Node(coordinates, n));
 			}
-			if(start.equals(n) || end.equals(n))
+			if(start.is(coordinates, n) || end.is(coordinates, n))
 			{
 				onSeg = !onSeg;
 			}
@@ -235,7 +303,9 @@ public class Way {
 	
 	
 	/**
-	 * Method to get the adjacent nodes of a node in this way
+	 * Method to get the adjacent nodes of a node in this way. A node the way passes through
+	 * more than once, such as the start of a loop, is adjacent to the neighbours of every
+	 * place it appears
 	 * @param node The node being examined
 	 * @return An arraylist of nodes adjacent to the parameter node
 	 * @precondition node belongs to this way
@@ -243,14 +313,18 @@ public class Way {
 	public ArrayList<Node> getAdjacentNodes(Node node)
 	{
 		ArrayList<Node> adj = new ArrayList<Node>();
-		int position = Nodes.indexOf(node);
-		if(position-1 >= 0)
-		{
-			adj.add(Nodes.get(position-1));
-		}
-		if(position+1 < Nodes.size())
+		for(int position = 0; position < Nodes.length; position++)
 		{
-			adj.add(Nodes.get(position+1));
+			if(!node.is(coordinates, Nodes[position]))
+				continue;
+			if(position-1 >= 0 && !node.is(coordinates, Nodes[position-1]))
+			{
+				adj.add(getNode(position-1));
+			}
+			if(position+1 < Nodes.length && !node.is(coordinates, Nodes[position+1]))
+			{
+				adj.add(getNode(position+1));
+			}
 		}
 		return adj;
 	}
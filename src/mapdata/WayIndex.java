@@ -0,0 +1,196 @@
+package mapdata;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * R-tree over the bounding boxes of a set of ways, bulk loaded once with sort-tile-recursive
+ * packing. Used to find the ways that could be visible in a rectangle of the map without
+ * looking at every way. Immutable
+ *
+ * The boxes of each level are stored in flat arrays. Entry i of a level covers entries
+ * i*FANOUT to (i+1)*FANOUT-1 of the level below it, and the bottom level covers the ways.
+ * @author williamloughlin
+ *
+ */
+public class WayIndex {
+
+	private static final int FANOUT = 16;
+
+	private Way[] ways;
+
+	// levels[0] holds the boxes of the ways, the last level holds the root
+	private double[][] minLon;
+	private double[][] minLat;
+	private double[][] maxLon;
+	private double[][] maxLat;
+
+	public WayIndex(Collection<Way> source)
+	{
+		final ArrayList<double[]> boxes = new ArrayList<double[]>();
+		ArrayList<Way> list = new ArrayList<Way>();
+		for(Way way : source)
+		{
+			double[] box = bounds(way);
+			if(box != null)
+			{
+				boxes.add(box);
+				list.add(way);
+			}
+		}
+
+		// Sort into vertical slices by longitude, then each slice by latitude, so that ways
+		// packed into the same entry are close together
+		Integer[] order = new Integer[list.size()];
+		for(int i = 0; i < order.length; i++)
+		{
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+				{
+					public int compare(Integer a, Integer b)
+					{
+						return Double.compare(boxes.get(a)[0]+boxes.get(a)[2], boxes.get(b)[0]+boxes.get(b)[2]);
+					}
+				});
+		int leaves = (order.length+FANOUT-1)/FANOUT;
+		int sliceSize = FANOUT*(int)Math.ceil(Math.sqrt(Math.max(1, leaves)));
+		for(int from = 0; from < order.length; from += sliceSize)
+		{
+			Arrays.sort(order, from, Math.min(order.length, from+sliceSize), new Comparator<Integer>()
+					{
+						public int compare(Integer a, Integer b)
+						{
+							return Double.compare(boxes.get(a)[1]+boxes.get(a)[3], boxes.get(b)[1]+boxes.get(b)[3]);
+						}
+					});
+		}
+
+		ways = new Way[order.length];
+		ArrayList<double[]> levelMinLon = new ArrayList<double[]>();
+		ArrayList<double[]> levelMinLat = new ArrayList<double[]>();
+		ArrayList<double[]> levelMaxLon = new ArrayList<double[]>();
+		ArrayList<double[]> levelMaxLat = new ArrayList<double[]>();
+		double[] x0 = new double[order.length];
+		double[] y0 = new double[order.length];
+		double[] x1 = new double[order.length];
+		double[] y1 = new double[order.length];
+		for(int i = 0; i < order.length; i++)
+		{
+			double[] box = boxes.get(order[i]);
+			ways[i] = list.get(order[i]);
+			x0[i] = box[0];
+			y0[i] = box[1];
+			x1[i] = box[2];
+			y1[i] = box[3];
+		}
+		levelMinLon.add(x0);
+		levelMinLat.add(y0);
+		levelMaxLon.add(x1);
+		levelMaxLat.add(y1);
+		while(x0.length > 1)
+		{
+			int parents = (x0.length+FANOUT-1)/FANOUT;
+			double[] px0 = new double[parents];
+			double[] py0 = new double[parents];
+			double[] px1 = new double[parents];
+			double[] py1 = new double[parents];
+			for(int p = 0; p < parents; p++)
+			{
+				px0[p] = py0[p] = Double.POSITIVE_INFINITY;
+				px1[p] = py1[p] = Double.NEGATIVE_INFINITY;
+				for(int c = p*FANOUT; c < Math.min(x0.length, (p+1)*FANOUT); c++)
+				{
+					px0[p] = Math.min(px0[p], x0[c]);
+					py0[p] = Math.min(py0[p], y0[c]);
+					px1[p] = Math.max(px1[p], x1[c]);
+					py1[p] = Math.max(py1[p], y1[c]);
+				}
+			}
+			x0 = px0;
+			y0 = py0;
+			x1 = px1;
+			y1 = py1;
+			levelMinLon.add(x0);
+			levelMinLat.add(y0);
+			levelMaxLon.add(x1);
+			levelMaxLat.add(y1);
+		}
+		minLon = levelMinLon.toArray(new double[0][]);
+		minLat = levelMinLat.toArray(new double[0][]);
+		maxLon = levelMaxLon.toArray(new double[0][]);
+		maxLat = levelMaxLat.toArray(new double[0][]);
+	}
+
+	/**
+	 * Calculates the bounding box of a way
+	 * @return The minimum longitude, minimum latitude, maximum longitude and maximum latitude,
+	 * or null if the way has no nodes
+	 */
+	private static double[] bounds(Way way)
+	{
+		double[] box = null;
+		for(Iterator<Node> it = way.nodeIterator(); it.hasNext();)
+		{
+			Node n = it.next();
+			if(box == null)
+			{
+				box = new double[] {n.getLon(), n.getLat(), n.getLon(), n.getLat()};
+			}
+			box[0] = Math.min(box[0], n.getLon());
+			box[1] = Math.min(box[1], n.getLat());
+			box[2] = Math.max(box[2], n.getLon());
+			box[3] = Math.max(box[3], n.getLat());
+		}
+		return box;
+	}
+
+	/**
+	 * Accessor for the number of ways in this index
+	 * @return The number of ways in this index
+	 */
+	public int size()
+	{
+		return ways.length;
+	}
+
+	/**
+	 * Finds the ways whose bounding boxes intersect a rectangle
+	 * @param area The rectangle, with x as longitude and y as latitude
+	 * @param result The list the ways are added to, which is not cleared first
+	 * @return The result list
+	 */
+	public List<Way> query(Rectangle2D area, List<Way> result)
+	{
+		if(ways.length > 0)
+		{
+			int top = minLon.length-1;
+			query(top, 0, area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), result);
+		}
+		return result;
+	}
+
+	private void query(int level, int entry, double x0, double y0, double x1, double y1, List<Way> result)
+	{
+		if(minLon[level][entry] > x1 || maxLon[level][entry] < x0
+				|| minLat[level][entry] > y1 || maxLat[level][entry] < y0)
+		{
+			return;
+		}
+		if(level == 0)
+		{
+			result.add(ways[entry]);
+			return;
+		}
+		int end = Math.min(minLon[level-1].length, (entry+1)*FANOUT);
+		for(int child = entry*FANOUT; child < end; child++)
+		{
+			query(level-1, child, x0, y0, x1, y1, result);
+		}
+	}
+}
@@ -3,11 +3,12 @@ package mapdisplay;
 import javax.swing.*;
 
 
-import mapdata.Data;
+import mapdata.RegionManager;
 
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.FilenameFilter;
 
 
 public class ApplicationFrame extends JFrame {
@@ -19,7 +20,24 @@ public class ApplicationFrame extends JFrame {
 	
 	public ApplicationFrame() throws Exception
 	{
-		mapPanel = new MapPanel(new Data(new File("Maps/usb.osm")));
+		RegionManager regions = new RegionManager(RegionManager.DEFAULT_BUDGET);
+		File first = new File("Maps/usb.osm");
+		mapPanel = new MapPanel(regions.get(first), regions);
+		// The other maps load in the background so switching to them is instant
+		File[] maps = new File("Maps").listFiles(new FilenameFilter()
+				{
+					public boolean accept(File dir, String name)
+					{
+						return name.endsWith(".osm");
+					}
+				});
+		if(maps != null)
+		{
+			for(File map : maps)
+			{
+				regions.prefetch(map);
+			}
+		}
 		directions = mapPanel.getTextDirection();
 		directions.setEditable(false);
 		setUp();
@@ -103,10 +121,78 @@ public class ApplicationFrame extends JFrame {
 				});
 		options.add(reset);
 		
+		final JButton record = new JButton("Record Trace");
+		record.addActionListener(new ActionListener()
+				{
+					public void actionPerformed(ActionEvent e)
+					{
+						if(mapPanel.isRecording())
+						{
+							mapPanel.stopRecording();
+							record.setText("Record Trace");
+							return;
+						}
+						JFileChooser fc = new JFileChooser(new File("."));
+						if(fc.showSaveDialog(null) == JFileChooser.APPROVE_OPTION)
+						{
+							try
+							{
+								mapPanel.startRecording(fc.getSelectedFile());
+								record.setText("Stop Recording");
+							} catch (Exception ex)
+							{
+								JOptionPane.showMessageDialog(null, "Could not write the trace", "", JOptionPane.ERROR_MESSAGE);
+							}
+						}
+					}
+				});
+		options.add(record);
+		
+		final JButton replay = new JButton("Replay Trace");
+		replay.addActionListener(new ActionListener()
+				{
+					public void actionPerformed(ActionEvent e)
+					{
+						JFileChooser fc = new JFileChooser(new File("."));
+						if(fc.showOpenDialog(null) == JFileChooser.APPROVE_OPTION)
+						{
+							try
+							{
+								mapPanel.getTrackingStats().clear();
+								replay.setEnabled(false);
+								mapPanel.replay(fc.getSelectedFile(), 1, new Runnable()
+										{
+											public void run()
+											{
+												replay.setEnabled(true);
+												showStats();
+											}
+										});
+							} catch (Exception ex)
+							{
+								replay.setEnabled(true);
+								JOptionPane.showMessageDialog(null, "Invalid Trace", "", JOptionPane.ERROR_MESSAGE);
+							}
+						}
+					}
+				});
+		options.add(replay);
+		
 		add(options, BorderLayout.WEST);
 		
 	}
 	
+	/**
+	 * Shows how long each stage of tracking took
+	 */
+	private void showStats()
+	{
+		JTextArea text = new JTextArea(mapPanel.getTrackingStats().toString());
+		text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		text.setEditable(false);
+		JOptionPane.showMessageDialog(this, new JScrollPane(text), "Tracking Latency", JOptionPane.INFORMATION_MESSAGE);
+	}
+	
 	/**
 	 * Runs the application
 	 * @param args
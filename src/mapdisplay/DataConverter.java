@@ -3,6 +3,7 @@ package mapdisplay;
 import java.awt.Dimension;
 
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 
 import mapdata.Data;
 
@@ -10,6 +11,10 @@ import mapdata.Data;
 /**
  * Converts information about nodes and ways into pixel coordinates that can be drawn
  * on the screen
+ *
+ * Longitudes are scaled by the cosine of the middle latitude of the map rather than the
+ * latitude of each point, so every point has a fixed position in "world" pixels for a given
+ * scale and moving the center only translates the picture
  * @author williamloughlin
  *
  */
@@ -19,14 +24,29 @@ public class DataConverter {
 	private Point2D center;
 	private Dimension panelSize;
 	
+	// Cosine of the reference latitude, used to scale every longitude
+	private double refCos;
 	
 	
 	public DataConverter(Data data, int scale, Dimension size)
 	{
-		panelSize = size;
+		this(Math.cos(Math.PI*(data.maxLat()+data.minLat())/360), scale,
+				new Point2D.Double((data.maxLon()+data.minLon())/2, (data.maxLat()+data.minLat())/2), size);
+	}
+	
+	/**
+	 * Constructor for a converter with a given reference latitude
+	 * @param refCos The cosine of the latitude longitudes are scaled at
+	 * @param scale The number of pixels per degree of latitude
+	 * @param center The point in the middle of the panel
+	 * @param size The size of the panel
+	 */
+	public DataConverter(double refCos, int scale, Point2D center, Dimension size)
+	{
+		this.refCos = refCos;
 		Scale = scale;
-		center = new Point2D.Double((data.maxLon()+data.minLon())/2, 
-				(data.maxLat()+data.minLat())/2);
+		this.center = center;
+		panelSize = size;
 	}
 	
 	/**
@@ -35,7 +55,7 @@ public class DataConverter {
 	 */
 	public Point2D degToPix(Point2D coord)
 	{
-		double X = (((panelSize.getWidth()/2)+ (Math.cos(Math.PI*coord.getY()/180)*
+		double X = (((panelSize.getWidth()/2)+ (refCos*
 				(coord.getX() - center.getX())*Scale)));
 		double Y = ((panelSize.getHeight()/2)+((center.getY() - coord.getY())*Scale));
 		return new Point2D.Double(X, Y);
@@ -50,12 +70,151 @@ public class DataConverter {
 	{
 		double Y = center.getY()-(pixs.getY()-(panelSize.getHeight()/2))/Scale;
 		double X = center.getX()+(pixs.getX()-(panelSize.getWidth()/2))/
-				(Scale*Math.cos(Math.PI*Y/180));
+				(Scale*refCos);
 		return new Point2D.Double(X, Y);
 	}
 
 	
 	
+	/**
+	 * Converts many points from degrees to pixels at once. This is the same conversion as
+	 * degToPix, reduced to a scale and an offset on each axis and applied in plain loops over
+	 * the arrays so the JIT can vectorize them
+	 * @param lons The longitudes of the points
+	 * @param lats The latitudes of the points
+	 * @param xs Filled with the x pixel coordinates
+	 * @param ys Filled with the y pixel coordinates
+	 * @param count The number of points to convert
+	 */
+	public void degToPix(double[] lons, double[] lats, double[] xs, double[] ys, int count)
+	{
+		double scaleX = refCos*Scale;
+		double offsetX = panelSize.getWidth()/2 - scaleX*center.getX();
+		double offsetY = panelSize.getHeight()/2 + Scale*center.getY();
+		for(int i = 0; i < count; i++)
+		{
+			xs[i] = offsetX + scaleX*lons[i];
+		}
+		for(int i = 0; i < count; i++)
+		{
+			ys[i] = offsetY - Scale*lats[i];
+		}
+	}
+	
+	/**
+	 * Converts many points from pixels to degrees at once, the inverse of the batch degToPix
+	 * @param xs The x pixel coordinates of the points
+	 * @param ys The y pixel coordinates of the points
+	 * @param lons Filled with the longitudes
+	 * @param lats Filled with the latitudes
+	 * @param count The number of points to convert
+	 */
+	public void pixToDeg(double[] xs, double[] ys, double[] lons, double[] lats, int count)
+	{
+		double scaleX = 1/(refCos*Scale);
+		double offsetX = center.getX() - scaleX*panelSize.getWidth()/2;
+		double scaleY = 1.0/Scale;
+		double offsetY = center.getY() + scaleY*panelSize.getHeight()/2;
+		for(int i = 0; i < count; i++)
+		{
+			lons[i] = offsetX + scaleX*xs[i];
+		}
+		for(int i = 0; i < count; i++)
+		{
+			lats[i] = offsetY - scaleY*ys[i];
+		}
+	}
+	
+	/**
+	 * Converts many points from degrees to whole world pixels at once, rounding down
+	 * @param lons The longitudes of the points
+	 * @param lats The latitudes of the points
+	 * @param xs Filled with the world x coordinates
+	 * @param ys Filled with the world y coordinates
+	 * @param count The number of points to convert
+	 */
+	public void degToWorld(double[] lons, double[] lats, int[] xs, int[] ys, int count)
+	{
+		double scaleX = refCos*Scale;
+		for(int i = 0; i < count; i++)
+		{
+			xs[i] = (int)Math.floor(scaleX*lons[i]);
+		}
+		for(int i = 0; i < count; i++)
+		{
+			ys[i] = (int)Math.floor(-Scale*lats[i]);
+		}
+	}
+	
+	/**
+	 * Method for finding the area of the map that is on screen
+	 * @param margin The number of pixels to extend the area by on each side, so that wide lines
+	 * just off screen are still included
+	 * @return A rectangle in degrees, with x as longitude and y as latitude, that contains
+	 * everything visible in the panel
+	 */
+	public Rectangle2D getVisibleBounds(int margin)
+	{
+		Rectangle2D bounds = new Rectangle2D.Double();
+		bounds.setFrameFromDiagonal(pixToDeg(new Point2D.Double(-margin, -margin)),
+				pixToDeg(new Point2D.Double(panelSize.getWidth()+margin, panelSize.getHeight()+margin)));
+		return bounds;
+	}
+	
+	/**
+	 * Accessor for the world pixel x coordinate of the left edge of the panel. A point's position
+	 * on screen is its world position minus the position of the panel's top left corner
+	 * @return The world x coordinate of the left edge of the panel
+	 */
+	public double getOriginX()
+	{
+		return refCos*center.getX()*Scale - panelSize.getWidth()/2;
+	}
+	
+	/**
+	 * Accessor for the world pixel y coordinate of the top edge of the panel
+	 * @return The world y coordinate of the top edge of the panel
+	 */
+	public double getOriginY()
+	{
+		return -center.getY()*Scale - panelSize.getHeight()/2;
+	}
+	
+	/**
+	 * Converts a longitude to a world pixel x coordinate at the current scale. Unlike
+	 * degToPix this doesn't depend on the center, so it can be cached until the scale changes
+	 * @param lon The longitude in degrees
+	 * @return The world x coordinate of the longitude
+	 */
+	public double worldX(double lon)
+	{
+		return refCos*lon*Scale;
+	}
+	
+	/**
+	 * Converts a latitude to a world pixel y coordinate at the current scale
+	 * @param lat The latitude in degrees
+	 * @return The world y coordinate of the latitude
+	 */
+	public double worldY(double lat)
+	{
+		return -lat*Scale;
+	}
+	
+	/**
+	 * Creates a converter for drawing a square area of the world at the current scale,
+	 * such as a tile
+	 * @param left The world x coordinate of the left edge of the area
+	 * @param top The world y coordinate of the top edge of the area
+	 * @param size The width and height of the area in pixels
+	 * @return A converter whose panel is the given area
+	 */
+	public DataConverter forArea(double left, double top, int size)
+	{
+		Point2D middle = new Point2D.Double((left+size/2.0)/(refCos*Scale), -(top+size/2.0)/Scale);
+		return new DataConverter(refCos, Scale, middle, new Dimension(size, size));
+	}
+	
 	/**
 	 * Allows the graphical objects to be translated across the screen when 
 	 * moved by the user
@@ -64,7 +223,7 @@ public class DataConverter {
 	 */
 	public void translate(double dx, double dy)
 	{
-		double newX = center.getX()+(dx/(Scale*Math.cos(center.getY()*Math.PI/180)));
+		double newX = center.getX()+(dx/(Scale*refCos));
 		double newY = center.getY()+(dy/Scale);
 		center.setLocation(newX, newY);
 		
@@ -108,4 +267,22 @@ public class DataConverter {
 		return Scale;
 	}
 	
+	/**
+	 * Accessor for the cosine of the latitude longitudes are scaled at
+	 * @return The cosine of the reference latitude
+	 */
+	public double getRefCos()
+	{
+		return refCos;
+	}
+	
+	/**
+	 * Accessor for the size of the panel this converter draws to
+	 * @return The size of the panel
+	 */
+	public Dimension getPanelSize()
+	{
+		return panelSize;
+	}
+	
 }
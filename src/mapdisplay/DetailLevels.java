@@ -0,0 +1,357 @@
+package mapdisplay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mapdata.Coordinates;
+import mapdata.Data;
+import mapdata.Way;
+
+/**
+ * Simplified versions of every way for drawing at low zoom. Each level keeps the nodes of a way
+ * that are needed to stay within half a pixel of the real shape at the largest scale of the
+ * level, found with Douglas-Peucker simplification. Zoomed in past the last level the ways are
+ * drawn in full. The numbers of each way's nodes in the coordinates of the map are listed one
+ * way after another, so drawing a way reads its coordinates straight from there instead of going
+ * through its nodes, without copying them. Immutable once built
+ * @author williamloughlin
+ *
+ */
+public class DetailLevels {
+
+	// Largest scale, in pixels per degree of latitude, that each level is used for
+	private static final int[] MAX_SCALES = {2500, 5000, 10000, 20000, 40000, 80000};
+	// How far in pixels a simplified way may stray from the real one
+	private static final double TOLERANCE = 0.5;
+
+	private double refCos;
+
+	// The coordinates of the map
+	private Coordinates coordinates;
+	// The number in the coordinates of the nodes of every way, each way's in order from first(way)
+	private int[] indices;
+	private HashMap<Way, Shape> shapes;
+
+	private long memoryUsed;
+
+	/**
+	 * Builds the levels for every way in a map
+	 * @param data The map
+	 * @param threads The number of threads to simplify the ways with
+	 */
+	public DetailLevels(Data data, int threads)
+	{
+		// The same reference latitude as the converter, so distances match the screen
+		refCos = Math.cos(Math.PI*(data.maxLat()+data.minLat())/360);
+		final ArrayList<Way> ways = new ArrayList<Way>();
+		for(Iterator<Way> it = data.wayIterator(); it.hasNext();)
+		{
+			ways.add(it.next());
+		}
+
+		coordinates = data.getCoordinates();
+		indices = new int[1024];
+		int size = 0;
+		shapes = new HashMap<Way, Shape>();
+		for(Way way : ways)
+		{
+			Shape shape = new Shape(size);
+			for(int i = 0; i < way.size(); i++)
+			{
+				if(size == indices.length)
+				{
+					indices = Arrays.copyOf(indices, 2*size);
+				}
+				indices[size++] = way.getIndex(i);
+			}
+			shape.count = size-shape.first;
+			shapes.put(way, shape);
+		}
+		indices = Arrays.copyOf(indices, size);
+		memoryUsed = 16 + 4L*size;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try
+		{
+			int chunk = (ways.size()+Math.max(1, threads)*4-1)/(Math.max(1, threads)*4);
+			ArrayList<Future<int[][][]>> futures = new ArrayList<Future<int[][][]>>();
+			for(int from = 0; from < ways.size(); from += chunk)
+			{
+				final int start = from;
+				final int end = Math.min(ways.size(), from+chunk);
+				futures.add(executor.submit(new Callable<int[][][]>()
+						{
+							public int[][][] call()
+							{
+								int[][][] result = new int[end-start][][];
+								for(int i = start; i < end; i++)
+								{
+									result[i-start] = simplify(shapes.get(ways.get(i)));
+								}
+								return result;
+							}
+						}));
+			}
+			int i = 0;
+			for(Future<int[][][]> f : futures)
+			{
+				for(int[][] levels : f.get())
+				{
+					Shape shape = shapes.get(ways.get(i++));
+					// Ways that can't be simplified at any level keep no levels and are drawn in full
+					if(levels[0] != null)
+					{
+						shape.levels = levels;
+						memoryUsed += size(levels);
+					}
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// Whatever isn't simplified yet is drawn in full
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Finds the level to draw at for a scale
+	 * @param scale The scale in pixels per degree of latitude
+	 * @return The level, or -1 if the ways should be drawn in full
+	 */
+	public int level(int scale)
+	{
+		for(int i = 0; i < MAX_SCALES.length; i++)
+		{
+			if(scale <= MAX_SCALES[i])
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Accessor for the nodes of a way to draw at a level
+	 * @param way The way
+	 * @param level The level from level(scale)
+	 * @return The indices of the nodes to draw in order, or null to draw every node
+	 */
+	public int[] nodes(Way way, int level)
+	{
+		if(level < 0)
+			return null;
+		Shape shape = shapes.get(way);
+		return shape == null || shape.levels == null ? null : shape.levels[level];
+	}
+
+	/**
+	 * Accessor for where the nodes of a way start in the list of every way's nodes
+	 * @param way The way
+	 * @return The position of the way's first node, the rest following it in order
+	 */
+	public int first(Way way)
+	{
+		return shapes.get(way).first;
+	}
+
+	/**
+	 * Accessor for the number of nodes of a way
+	 * @param way The way
+	 * @return The number of nodes in the way
+	 */
+	public int count(Way way)
+	{
+		return shapes.get(way).count;
+	}
+
+	/**
+	 * Accessor for a node in the list of every way's nodes
+	 * @param i The position of the node, from first(way) to first(way)+count(way)-1
+	 * @return The number of the node in getCoordinates
+	 */
+	public int index(int i)
+	{
+		return indices[i];
+	}
+
+	/**
+	 * Accessor for the coordinates of the map the ways are read from
+	 * @return The coordinates, numbered as in index(i)
+	 */
+	public Coordinates getCoordinates()
+	{
+		return coordinates;
+	}
+
+	/**
+	 * Accessor for the memory taken by the levels and the list of the ways' nodes, not counting
+	 * the map they are kept in
+	 * @return The approximate number of bytes used by the node numbers and kept node indices
+	 */
+	public long memoryUsed()
+	{
+		return memoryUsed;
+	}
+
+	/**
+	 * Simplifies a way for every level. Levels that keep every node are null, and neighbouring
+	 * levels that keep the same nodes share an array
+	 */
+	private int[][] simplify(Shape shape)
+	{
+		int n = shape.count;
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		for(int i = 0; i < n; i++)
+		{
+			int node = indices[shape.first+i];
+			xs[i] = refCos*coordinates.getLon(node);
+			ys[i] = coordinates.getLat(node);
+		}
+
+		int[][] levels = new int[MAX_SCALES.length][];
+		int[] previous = null;
+		// From the most detailed level down, each level can only drop nodes from the one above
+		for(int level = MAX_SCALES.length-1; level >= 0; level--)
+		{
+			int[] indices = douglasPeucker(xs, ys, TOLERANCE/MAX_SCALES[level]);
+			if(indices.length == n)
+			{
+				indices = null;
+			}
+			else if(previous != null && Arrays.equals(indices, previous))
+			{
+				indices = previous;
+			}
+			levels[level] = indices;
+			previous = indices;
+		}
+		return levels;
+	}
+
+	/**
+	 * Finds the nodes of a line needed to keep it within a distance of the original
+	 * @param xs The projected x coordinates of the line
+	 * @param ys The y coordinates of the line
+	 * @param tolerance The distance in the same units as the coordinates
+	 * @return The indices of the nodes to keep, in order
+	 */
+	private static int[] douglasPeucker(double[] xs, double[] ys, double tolerance)
+	{
+		int n = xs.length;
+		if(n <= 2)
+		{
+			int[] all = new int[n];
+			for(int i = 0; i < n; i++)
+			{
+				all[i] = i;
+			}
+			return all;
+		}
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n-1] = true;
+		// Pairs of first and last index still to be checked, instead of recursing on long ways
+		int[] stack = new int[2*n];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n-1;
+		int count = 2;
+		double limit = tolerance*tolerance;
+		while(top > 0)
+		{
+			int last = stack[--top];
+			int first = stack[--top];
+			int farthest = -1;
+			double farthestDist = limit;
+			for(int i = first+1; i < last; i++)
+			{
+				double d = distSq(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+				if(d > farthestDist)
+				{
+					farthest = i;
+					farthestDist = d;
+				}
+			}
+			if(farthest >= 0)
+			{
+				keep[farthest] = true;
+				count++;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+		int[] indices = new int[count];
+		int j = 0;
+		for(int i = 0; i < n; i++)
+		{
+			if(keep[i])
+				indices[j++] = i;
+		}
+		return indices;
+	}
+
+	/**
+	 * Squared distance from a point to the segment between two others
+	 */
+	private static double distSq(double px, double py, double ax, double ay, double bx, double by)
+	{
+		double dx = bx-ax;
+		double dy = by-ay;
+		double lengthSq = dx*dx + dy*dy;
+		double t = lengthSq == 0 ? 0 : ((px-ax)*dx + (py-ay)*dy)/lengthSq;
+		t = Math.max(0, Math.min(1, t));
+		double ex = ax + t*dx - px;
+		double ey = ay + t*dy - py;
+		return ex*ex + ey*ey;
+	}
+
+	/**
+	 * Approximate size in bytes of the arrays of one way, counting shared arrays once
+	 */
+	private static long size(int[][] levels)
+	{
+		// Array header and a reference per level
+		long bytes = 16 + 4*levels.length;
+		for(int i = 0; i < levels.length; i++)
+		{
+			if(levels[i] != null && (i == 0 || levels[i] != levels[i-1]))
+			{
+				bytes += 16 + 4*levels[i].length;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Where the nodes of a way are in the list of every way's nodes, and the nodes kept at each
+	 * level, with null levels meaning every node
+	 */
+	private static final class Shape
+	{
+		private final int first;
+		private int count;
+		private int[][] levels;
+
+		private Shape(int first)
+		{
+			this.first = first;
+		}
+	}
+}
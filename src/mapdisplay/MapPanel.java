@@ -8,7 +8,10 @@ import java.awt.event.*;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Point2D;
 import java.io.File;
-import java.util.Iterator;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.*;
 
@@ -17,10 +20,17 @@ import com.starkeffect.highway.GPSEvent;
 import com.starkeffect.highway.GPSListener;
 
 import mapdata.Data;
-import mapdata.Node;
-import mapdata.Pathfinder;
+import mapdata.RegionListener;
+import mapdata.RegionManager;
 import mapdata.Route;
-import mapdata.Way;
+import mapdata.RouteEngine;
+import mapdata.RouteListener;
+import mapdata.Snap;
+import tracking.FixListener;
+import tracking.GPSPipeline;
+import tracking.StageStats;
+import tracking.TraceRecorder;
+import tracking.TraceReplayer;
 	
 
 /**
@@ -30,16 +40,50 @@ import mapdata.Way;
  */
 public class MapPanel extends JPanel {
 
+	// Time budget for reroutes while driving, after which the best partial route is used
+	private static final long REROUTE_BUDGET = 1000;
+	// Shortest time in milliseconds between gps fixes handled, fixes in between are coalesced
+	private static final long GPS_INTERVAL = 100;
+	// Stages of handling a fix that are timed
+	private static final int SNAP = 0;
+	private static final int ON_ROUTE = 1;
+	private static final int REROUTE = 2;
+	private static final int REPAINT = 3;
+	// Pixels around the center of a marker that it can be drawn over
+	private static final int MARKER_RADIUS = 4;
+	// Pixels either side of the route line that it can be drawn over
+	private static final int ROUTE_RADIUS = 3;
+	private static final BasicStroke ROUTE_STROKE = new BasicStroke(3);
+
 	private Data data;
+	// The maps that can be switched to, several of which stay loaded
+	private RegionManager regions;
+	// Renderers of the loaded maps, dropped with their maps, so switching back doesn't rebuild them
+	private HashMap<Data, MapRenderer> renderers;
+	private RouteEngine engine;
 	private DataConverter converter;
-	private Node Start;
-	private Node End;
+	private Snap Start;
+	private Snap End;
 	private Route route;
+	// The route as last converted to pixels, reused until the route, scale or position changes
+	private volatile ProjectedRoute projectedRoute;
+	// Incremented whenever the route is cleared or a new one is asked for, so a route found for
+	// an older query is never shown
+	private AtomicLong routeQuery;
 	private Point2D pointClicked;
 	
 	private Point2D currentLocation;
 	private GPSDevice GPS;
 	private RouteTracker tracker;
+	// Coalesces the device's fixes and snaps them to the roads before the tracker sees them
+	private GPSPipeline pipeline;
+	// Writes the device's fixes to a trace file while recording
+	private TraceRecorder recorder;
+	// How long each stage of tracking takes
+	private StageStats stats;
+	// True while a trace is replayed, the only time repaints are timed and the only time fixes
+	// from the pipeline are ignored
+	private volatile boolean replaying;
 	
 	// While true, the mappanel will center on the users location and processes gps events
 	private boolean driving;
@@ -50,38 +94,124 @@ public class MapPanel extends JPanel {
 	
 	private JLabel indicator;
 	
+	// Cached images of the base map, drawn under the route and markers
+	private TileLayer tiles;
+	
 	public MapPanel(Data data)
+	{
+		this(data, new RegionManager(RegionManager.DEFAULT_BUDGET));
+	}
+	
+	/**
+	 * Constructor for a panel that switches between the maps of a region manager
+	 * @param data The map to show first
+	 * @param regions The maps that can be loaded, which the first map is added to
+	 */
+	public MapPanel(Data data, RegionManager regions)
+	{
+		this(data, regions, true);
+	}
+	
+	/**
+	 * Constructor for a panel that may have no gps device
+	 * @param data The map to show first
+	 * @param regions The maps that can be loaded, which the first map is added to
+	 * @param device Whether to follow a gps device, which opens a window of its own. A panel
+	 * without one is only given fixes by replaying traces, so it can be run without a display
+	 */
+	public MapPanel(Data data, RegionManager regions, boolean device)
 	{
 		this.data = data;
+		this.regions = regions;
+		renderers = new HashMap<Data, MapRenderer>();
+		regions.add(data);
+		regions.addRegionListener(new RegionListener()
+				{
+					public void regionEvicted(Data evicted)
+					{
+						synchronized(renderers)
+						{
+							renderers.remove(evicted);
+						}
+					}
+				});
+		engine = new RouteEngine(data);
 		route = null;
+		routeQuery = new AtomicLong();
 		driving = false;
 		indicator = new JLabel("Driving: false");
 		setUp();
 		converter = new DataConverter(data, 5000, getSize());
-		GPS = new GPSDevice("Maps/" +data.getFileName());
+		tiles = new TileLayer(renderer(data), this, TileLayer.DEFAULT_BUDGET);
+		GPS = device ? new GPSDevice("Maps/" +data.getFileName()) : null;
 		tracker = new RouteTracker();
-		GPS.addGPSListener(tracker);
+		stats = new StageStats("snap", "onRoute", "reroute", "repaint");
+		pipeline = new GPSPipeline(data, GPS_INTERVAL, tracker);
+		pipeline.setStats(stats, SNAP);
+		if(GPS != null)
+		{
+			GPS.addGPSListener(pipeline);
+		}
 		directions = new JTextArea();
 	}
 	
 	/**
-	 * Allows different files to be displayed
+	 * Allows different files to be displayed. Maps that are still loaded are switched to
+	 * without being read again
 	 * @param file The new file to be displayed
 	 * @throws Exception
 	 */
 	public void load(File file) throws Exception
 	{
-		data = new Data(file);
+		data = regions.get(file);
+		routeQuery.incrementAndGet();
+		engine.shutdown();
+		engine = new RouteEngine(data);
 		route = null;
 		driving = false;
 		indicator = new JLabel("Driving: false");
 		converter = new DataConverter(data, 5000, getSize());
-		GPS = new GPSDevice("Maps/" +data.getFileName());
+		tiles.shutdown();
+		tiles = new TileLayer(renderer(data), this, TileLayer.DEFAULT_BUDGET);
+		stopRecording();
 		tracker = new RouteTracker();
-		GPS.addGPSListener(tracker);
+		pipeline.shutdown();
+		pipeline = new GPSPipeline(data, GPS_INTERVAL, tracker);
+		pipeline.setStats(stats, SNAP);
+		if(GPS != null)
+		{
+			GPS = new GPSDevice("Maps/" +data.getFileName());
+			GPS.addGPSListener(pipeline);
+		}
 		repaint();
 	}
 	
+	/**
+	 * Accessor for the maps this panel can switch between
+	 * @return The region manager of this panel
+	 */
+	public RegionManager getRegions()
+	{
+		return regions;
+	}
+	
+	/**
+	 * Gets the renderer of a map, building it if the map hasn't been drawn since it was loaded
+	 */
+	private MapRenderer renderer(Data map)
+	{
+		synchronized(renderers)
+		{
+			MapRenderer renderer = renderers.get(map);
+			if(renderer == null)
+			{
+				renderer = new MapRenderer(map);
+				renderers.put(map, renderer);
+			}
+			return renderer;
+		}
+	}
+	
 	/**
 	 * Adds listeners to this panel that allow the user to zoom and pan
 	 */
@@ -99,21 +229,15 @@ public class MapPanel extends JPanel {
 					
 					public void mouseClicked(MouseEvent e)
 					{
-						Node n = data.nodeClosest(converter.pixToDeg(e.getPoint()));
+						Point2D location = converter.pixToDeg(e.getPoint());
 						if(e.getButton() == 1)
 						{
-							Start = n;
-							route = null;
+							selectStart(location);
 						}
 						else if(e.getButton() == 3)
 						{
-							End = n;
-							route = null;
+							selectEnd(location);
 						}
-				
-						
-	
-						repaint();
 					}
 				});
 		addMouseMotionListener(new MouseAdapter()
@@ -159,27 +283,72 @@ public class MapPanel extends JPanel {
 	}
 	
 	/**
-	 * Makes a route between two points selected by the user
+	 * Selects the closest point on the roads to a location as the start of the next route,
+	 * clearing the route shown
+	 * @param location The location in degrees, with x as longitude and y as latitude
+	 */
+	public void selectStart(Point2D location)
+	{
+		Snap n = data.snap(location);
+		repaintMarker(Start);
+		repaintRoute(route);
+		Start = n;
+		route = null;
+		cancelRoute();
+		repaintMarker(n);
+	}
+	
+	/**
+	 * Selects the closest point on the roads to a location as the end of the next route,
+	 * clearing the route shown
+	 * @param location The location in degrees, with x as longitude and y as latitude
+	 */
+	public void selectEnd(Point2D location)
+	{
+		Snap n = data.snap(location);
+		repaintMarker(End);
+		repaintRoute(route);
+		End = n;
+		route = null;
+		cancelRoute();
+		repaintMarker(n);
+	}
+	
+	/**
+	 * Makes a route between two points selected by the user. The route is computed in the
+	 * background and displayed once it is found
 	 */
 	public void makeRoute()
+	{
+		makeRoute(0);
+	}
+	
+	/**
+	 * Starts computing a route between the start and end points, superseding any route still
+	 * being computed
+	 * @param budget The time budget for the search in milliseconds, 0 for no limit
+	 */
+	private void makeRoute(long budget)
 	{
 		if(Start != null && End != null && !Start.equals(End))
 		{
-			route = new Pathfinder(data).getBestPath(Start, End);
-			if(route == null)
-			{
-				directions.setText(null);
-				displayMessage("No Route Found.", 0);
-				driving = false;
-				indicator.setText("Driving: false");
-			}
-			else
-			{
-				directions.setText(route.toString());
-			}
-			
-			repaint();
-		
+			engine.setTimeBudget(budget);
+			final long submitted = System.nanoTime();
+			final long query = routeQuery.incrementAndGet();
+			engine.submit(Start, End, new RouteListener()
+					{
+						public void routeFound(final Route found)
+						{
+							stats.record(REROUTE, System.nanoTime()-submitted);
+							SwingUtilities.invokeLater(new Runnable()
+									{
+										public void run()
+										{
+											showRoute(found, query);
+										}
+									});
+						}
+					});
 		}
 		else
 		{
@@ -188,6 +357,306 @@ public class MapPanel extends JPanel {
 		
 	}
 	
+	/**
+	 * Cancels the route being computed, so it isn't shown even if it has already been found
+	 */
+	private void cancelRoute()
+	{
+		routeQuery.incrementAndGet();
+		engine.cancel();
+	}
+	
+	/**
+	 * Displays a route published by the route engine, unless the route was cleared or another
+	 * was asked for after its query was submitted
+	 * @param found The route that was found, or null if no route exists
+	 * @param query The value of routeQuery when the route was asked for
+	 */
+	private void showRoute(Route found, long query)
+	{
+		if(query != routeQuery.get())
+			return;
+		repaintRoute(route);
+		route = found;
+		if(route == null)
+		{
+			directions.setText(null);
+			displayMessage("No Route Found.", 0);
+			driving = false;
+			indicator.setText("Driving: false");
+		}
+		else
+		{
+			directions.setText(route.toString());
+		}
+		
+		repaintRoute(route);
+	}
+	
+	/**
+	 * Accessor for the times taken by each stage of tracking: snapping a fix, checking it
+	 * against the route, finding a new route and repainting
+	 * @return The stats of this panel
+	 */
+	public StageStats getTrackingStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * Starts writing every fix from the gps device to a trace file
+	 * @param file The file to write the trace to
+	 * @throws IOException
+	 */
+	public void startRecording(File file) throws IOException
+	{
+		if(GPS == null)
+			throw new IllegalStateException("There is no gps device to record");
+		stopRecording();
+		recorder = new TraceRecorder(file);
+		GPS.addGPSListener(recorder);
+	}
+	
+	/**
+	 * Stops recording and finishes the trace file, if recording
+	 */
+	public void stopRecording()
+	{
+		if(recorder != null)
+		{
+			GPS.removeGPSListener(recorder);
+			recorder.close();
+			recorder = null;
+		}
+	}
+	
+	/**
+	 * Tests whether the gps fixes are being recorded
+	 * @return true if a trace is being written
+	 */
+	public boolean isRecording()
+	{
+		return recorder != null;
+	}
+	
+	/**
+	 * Feeds a recorded trace to the tracker on a background thread, in place of the gps device,
+	 * as replay(TraceReplayer, double, Graphics2D) does
+	 * @param file The trace to replay
+	 * @param speed How many times faster than it was recorded to replay, 0 for as fast as the
+	 * panel takes the fixes
+	 * @param done Run on the event thread once the replay has finished
+	 * @throws IOException
+	 */
+	public void replay(File file, final double speed, final Runnable done) throws IOException
+	{
+		final TraceReplayer replayer = new TraceReplayer(file);
+		Thread thread = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							replay(replayer, speed, null);
+						}
+						catch(InterruptedException e)
+						{
+							// Stop replaying
+						}
+						finally
+						{
+							SwingUtilities.invokeLater(done);
+						}
+					}
+				}, "TraceReplay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Feeds every fix of a trace to the tracker in order, in place of the gps device, returning
+	 * once the last has been handled. The fixes don't go through the pipeline, so none are
+	 * coalesced: each is snapped on the calling thread and tracked on the event thread, and any
+	 * route it asks for is found and shown before the next fix is fed. A trace therefore takes
+	 * the panel through the same steps however long each of them takes. Fixes from the device
+	 * are ignored and repaints are timed in the tracking stats until the replay has finished
+	 * @param trace The trace to replay
+	 * @param speed How many times faster than it was recorded to replay, 0 for as fast as the
+	 * panel takes the fixes
+	 * @param canvas If not null the panel is painted into it after every fix, so repaints are
+	 * timed without a display
+	 * @return The time the replay took in nanoseconds
+	 * @throws InterruptedException If the calling thread is interrupted
+	 */
+	public long replay(TraceReplayer trace, double speed, final Graphics2D canvas) throws InterruptedException
+	{
+		if(SwingUtilities.isEventDispatchThread())
+			throw new IllegalStateException("A trace can't be replayed on the event thread");
+		final Data map = data;
+		final RouteEngine routes = engine;
+		final RouteTracker current = tracker;
+		final GPSDevice device = GPS;
+		final GPSPipeline target = pipeline;
+		if(device != null)
+		{
+			device.removeGPSListener(target);
+		}
+		replaying = true;
+		try
+		{
+			return trace.replay(new GPSListener()
+					{
+						public void processEvent(final GPSEvent e)
+						{
+							long start = System.nanoTime();
+							final Snap snapped = map.snap(new Point2D.Double(e.getLongitude(), e.getLatitude()));
+							stats.record(SNAP, System.nanoTime()-start);
+							try
+							{
+								onEventThread(new Runnable()
+										{
+											public void run()
+											{
+												current.track(e, snapped);
+											}
+										});
+								routes.await();
+								// Runs after the found route, which was queued before it, is shown
+								onEventThread(new Runnable()
+										{
+											public void run()
+											{
+												if(canvas != null)
+												{
+													paint(canvas);
+												}
+											}
+										});
+							}
+							catch(InterruptedException ex)
+							{
+								// The replayer stops before the next fix
+								Thread.currentThread().interrupt();
+							}
+						}
+					}, speed);
+		}
+		finally
+		{
+			replaying = false;
+			if(device != null)
+			{
+				device.addGPSListener(target);
+			}
+		}
+	}
+	
+	/**
+	 * Runs a task on the event thread and waits for it to finish
+	 */
+	private static void onEventThread(Runnable task) throws InterruptedException
+	{
+		try
+		{
+			SwingUtilities.invokeAndWait(task);
+		}
+		catch(InvocationTargetException e)
+		{
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Checks a location against the route, timing how long the check takes
+	 */
+	private boolean onRoute(Point2D location)
+	{
+		long start = System.nanoTime();
+		boolean on = route.onRoute(location);
+		stats.record(ON_ROUTE, System.nanoTime()-start);
+		return on;
+	}
+	
+	/**
+	 * Converts every vertex of a route to pixels, reusing the last conversion if the route was
+	 * converted at the same scale and position
+	 * @param r The route
+	 * @return The x coordinates of the vertices followed by the y coordinates
+	 */
+	private double[][] projectRoute(Route r)
+	{
+		int scale = converter.getZoom();
+		double originX = converter.getOriginX();
+		double originY = converter.getOriginY();
+		ProjectedRoute last = projectedRoute;
+		if(last != null && last.route == r && last.scale == scale && last.originX == originX
+				&& last.originY == originY)
+		{
+			return last.points;
+		}
+		double[] lons = new double[r.size()];
+		double[] lats = new double[r.size()];
+		r.getCoordinates(lons, lats);
+		double[] xs = new double[r.size()];
+		double[] ys = new double[r.size()];
+		converter.degToPix(lons, lats, xs, ys, r.size());
+		double[][] points = new double[][] {xs, ys};
+		projectedRoute = new ProjectedRoute(r, scale, originX, originY, points);
+		return points;
+	}
+	
+	/**
+	 * Repaints the area a marker is drawn over, leaving the rest of the panel alone
+	 * @param point The position of the marker in degrees, or null if there is no marker
+	 */
+	private void repaintMarker(Point2D point)
+	{
+		if(point != null)
+		{
+			Point2D p = converter.degToPix(point);
+			repaint((int)Math.floor(p.getX())-MARKER_RADIUS, (int)Math.floor(p.getY())-MARKER_RADIUS,
+					2*MARKER_RADIUS+1, 2*MARKER_RADIUS+1);
+		}
+	}
+	
+	/**
+	 * Repaints the area a start or end marker is drawn over
+	 * @param snap The position of the marker, or null if there is no marker
+	 */
+	private void repaintMarker(Snap snap)
+	{
+		if(snap != null)
+		{
+			repaintMarker(snap.getPoint());
+		}
+	}
+	
+	/**
+	 * Repaints the area a route is drawn over, for when it is shown or removed
+	 * @param r The route, or null if there is no route
+	 */
+	private void repaintRoute(Route r)
+	{
+		if(r == null || r.size() == 0)
+			return;
+		double[][] points = projectRoute(r);
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < r.size(); i++)
+		{
+			minX = Math.min(minX, points[0][i]);
+			minY = Math.min(minY, points[1][i]);
+			maxX = Math.max(maxX, points[0][i]);
+			maxY = Math.max(maxY, points[1][i]);
+		}
+		repaint((int)Math.floor(minX)-ROUTE_RADIUS, (int)Math.floor(minY)-ROUTE_RADIUS,
+				(int)Math.ceil(maxX-minX)+2*ROUTE_RADIUS+1, (int)Math.ceil(maxY-minY)+2*ROUTE_RADIUS+1);
+	}
+	
 	/**
 	 * clears the mappanel
 	 */
@@ -196,6 +665,7 @@ public class MapPanel extends JPanel {
 		Start = null;
 		End = null;
 		route = null;
+		cancelRoute();
 		currentLocation = null;
 		driving = false;
 		directions.setText(null);
@@ -223,6 +693,9 @@ public class MapPanel extends JPanel {
 	
 	private void displayMessage(String message, int time)
 	{
+		// Nowhere to show it without a display, as when a benchmark replays a trace
+		if(GraphicsEnvironment.isHeadless())
+			return;
 		if(time == 0)
 		{
 			JOptionPane.showMessageDialog(null, message, "", JOptionPane.PLAIN_MESSAGE);
@@ -259,85 +732,24 @@ public class MapPanel extends JPanel {
 	@Override
 	public void paintComponent(Graphics g)
 	{
+		long paintStart = System.nanoTime();
 		super.paintComponent(g);
 		Graphics2D g2 = (Graphics2D)g;
-		Iterator<Way> ways = data.wayIterator();
-		while(ways.hasNext())
-		{
-			
-			Way next = ways.next();
-			if((next.getTagValue("power") != null) ||
-					(converter.getZoom() < 4000 && next.getType() < 3 && next.getType() != -1))
-			{
-				continue;
-			}
-			if(next.getTagValue("boundary") != null)
-			{
-				g2.setColor(Color.RED);
-			}
-			else if(next.getTagValue("natural") != null)
-			{
-				if(next.getTagValue("natural").equals("wood"))
-				{
-					g2.setColor(Color.GREEN);
-				}
-				else
-				{
-					g2.setColor(Color.BLUE);
-				}
-			}
-			else if(next.getType() >= 1)
-			{
-				g2.setColor(Color.BLACK);
-				g2.setStroke(new BasicStroke((converter.getZoom()/6000)));
-			}
-			else if(data.size() < 25000 && converter.getZoom() > 4000)
-			{
-				g2.setColor(Color.DARK_GRAY);
-			}
-			else
-			{
-				continue;
-			}
-				
-			
-			Iterator<Node> nodes = next.nodeIterator();
-			Node previous = null;
-			while(nodes.hasNext())
-			{
-				Node newNode = nodes.next();
-				
-				if(previous != null)
-				{
-					Point2D Point1 = converter.degToPix(newNode.getPoint());
-					Point2D Point2 = converter.degToPix(previous.getPoint());
-					g2.drawLine((int)Point1.getX(), (int)Point1.getY(), 
-								(int)Point2.getX(), (int)Point2.getY());
-				}
-				previous = newNode;
-			}
-			g2.setColor(Color.BLACK);
-			g2.setStroke(new BasicStroke());
-		}
+		tiles.paint(g2, converter);
 		if(route != null)
 		{
+			Stroke stroke = g2.getStroke();
 			g2.setColor(Color.MAGENTA);
-			g2.setStroke(new BasicStroke(3));
-			Iterator<Node> nodes = route.nodeIterator();
-			Node previous = null;
-			while(nodes.hasNext())
+			g2.setStroke(ROUTE_STROKE);
+			double[][] points = projectRoute(route);
+			double[] xs = points[0];
+			double[] ys = points[1];
+			for(int i = 1; i < route.size(); i++)
 			{
-				Node newNode = nodes.next();					
-				if(previous != null)
-				{
-					Point2D Point1 = converter.degToPix(newNode.getPoint());
-					Point2D Point2 = converter.degToPix(previous.getPoint());
-					g2.drawLine((int)Point1.getX(), (int)Point1.getY(), 
-								(int)Point2.getX(), (int)Point2.getY());
-				}
-				previous = newNode;
+				g2.drawLine((int)xs[i], (int)ys[i], 
+							(int)xs[i-1], (int)ys[i-1]);
 			}
-			g2.setStroke(new BasicStroke());
+			g2.setStroke(stroke);
 		}
 		if(Start != null)
 		{
@@ -367,39 +779,102 @@ public class MapPanel extends JPanel {
 			g2.draw(dot);
 			g2.setColor(Color.BLACK);
 		}
+		if(replaying)
+		{
+			stats.record(REPAINT, System.nanoTime()-paintStart);
+		}
 	}
 	
 	/**
-	 * Private class to process gps events
+	 * The pixel coordinates of a route and the scale and position they were converted at
+	 */
+	private static final class ProjectedRoute
+	{
+		private final Route route;
+		private final int scale;
+		private final double originX;
+		private final double originY;
+		private final double[][] points;
+
+		private ProjectedRoute(Route route, int scale, double originX, double originY, double[][] points)
+		{
+			this.route = route;
+			this.scale = scale;
+			this.originX = originX;
+			this.originY = originY;
+			this.points = points;
+		}
+	}
+	
+	/**
+	 * Private class to process gps fixes handed on by the pipeline. The pipeline's thread only
+	 * leaves each fix here, and the fixes are tracked on the event thread, where every other
+	 * change to the panel's route, points and converter is made. A fix that arrives while an
+	 * older one is still waiting for the event thread replaces it, as in the pipeline
 	 * @author williamloughlin
 	 *
 	 */
-	private class RouteTracker implements GPSListener
+	private class RouteTracker implements FixListener
 	{
+		// The newest fix not yet tracked and its snapped point, or null
+		private GPSEvent waiting;
+		private Snap waitingSnap;
 
-		private Node nodeClosest;
-		
-		public RouteTracker()
+		/**
+		 * Hands a fix to the event thread, called on the pipeline's thread
+		 */
+		@Override
+		public void fixReady(GPSEvent e, Snap snapped)
 		{
-			nodeClosest = null;
+			synchronized(this)
+			{
+				boolean scheduled = waiting != null;
+				waiting = e;
+				waitingSnap = snapped;
+				if(scheduled)
+					return;
+			}
+			SwingUtilities.invokeLater(new Runnable()
+					{
+						public void run()
+						{
+							GPSEvent fix;
+							Snap snap;
+							synchronized(RouteTracker.this)
+							{
+								fix = waiting;
+								snap = waitingSnap;
+								waiting = null;
+								waitingSnap = null;
+							}
+							// Fixes from before a map was loaded are meant for the old map, and
+							// a replay stands in for the device
+							if(tracker == RouteTracker.this && !replaying)
+							{
+								track(fix, snap);
+							}
+						}
+					});
 		}
-		
+
 		/**
 		 * If driving the center will adjust to the current location and check if the user is on route 
-		 * if a current route exists
+		 * if a current route exists. Only called on the event thread
 		 */
-		@Override
-		public void processEvent(GPSEvent e) {
+		private void track(GPSEvent e, Snap snapped) {
+			Point2D oldLocation = currentLocation;
 			currentLocation = new Point2D.Double(e.getLongitude(), e.getLatitude());
 			
-			nodeClosest =  data.nodeClosest(currentLocation);
-			
 			if(driving)
 			{
 				converter.setCenter(currentLocation);
-				if(route == null)
+				if(engine.isPending())
+				{
+					// A route is already on its way, don't supersede it with an identical query
+				}
+				else if(route == null)
 				{
-					Start = nodeClosest;
+					Start = snapped;
 					if(End == null)
 					{
 						displayMessage("Select a Destination", 0);
@@ -408,8 +883,7 @@ public class MapPanel extends JPanel {
 					}
 					else if(!End.equals(Start))
 					{
-						makeRoute();
-						repaint();
+						makeRoute(REROUTE_BUDGET);
 					}
 					else
 					{
@@ -418,20 +892,28 @@ public class MapPanel extends JPanel {
 						indicator.setText("Driving: false");
 					}
 				}
-				else if(!route.onRoute(new Point2D.Double(e.getLongitude(), e.getLatitude())))
+				else if(!onRoute(new Point2D.Double(e.getLongitude(), e.getLatitude())))
 				{
 					displayMessage("Off Route. Recalculating", 1000);
-					Start = nodeClosest;
-					makeRoute();
+					Start = snapped;
+					makeRoute(REROUTE_BUDGET);
 				}
 				else if(End.calcDist(currentLocation) < 0.01)
 				{
 					driveToggle();
 					displayMessage("Destination Reached", 5000);
+					routeQuery.incrementAndGet();
 					route = null;
 				}
+				// Centering on the location moved the whole map
+				repaint();
+			}
+			else
+			{
+				// Only the location marker moved, the map under it is the same
+				repaintMarker(oldLocation);
+				repaintMarker(currentLocation);
 			}
-			repaint();
 		}
 	}
 }
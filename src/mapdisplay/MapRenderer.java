@@ -0,0 +1,199 @@
+package mapdisplay;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mapdata.Data;
+import mapdata.Way;
+
+/**
+ * Draws the ways of a map. Holds no state about where it is drawing, so it can draw to the
+ * panel, to tiles on other threads, or to images without a window at all
+ * @author williamloughlin
+ *
+ */
+public class MapRenderer {
+
+	// Styles of the layers, in the order they are drawn
+	private static final int NATURAL = 0;
+	private static final int WOOD = 1;
+	private static final int OTHER = 2;
+	private static final int BOUNDARY = 3;
+	private static final int ROAD = 4;
+	private static final int STYLES = 5;
+	private static final Color[] COLORS = {Color.BLUE, Color.GREEN, Color.DARK_GRAY, Color.RED, Color.BLACK};
+
+	private Data data;
+	private ProjectedWays projected;
+	private ArrayList<RenderLayer> layers;
+
+	// Strokes shared by every layer and thread, by line width
+	private ConcurrentHashMap<Integer, BasicStroke> strokes;
+
+	public MapRenderer(Data data)
+	{
+		this(data, new DetailLevels(data, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Constructor for a renderer with levels of detail that have already been built
+	 * @param data The map to draw
+	 * @param detail The simplified ways of the map
+	 */
+	public MapRenderer(Data data, DetailLevels detail)
+	{
+		this.data = data;
+		projected = new ProjectedWays(detail);
+		layers = buildLayers(data);
+		strokes = new ConcurrentHashMap<Integer, BasicStroke>();
+	}
+
+	/**
+	 * Accessor for the data this renderer draws
+	 * @return The data drawn by this renderer
+	 */
+	public Data getData()
+	{
+		return data;
+	}
+
+	/**
+	 * Draws every way that is visible through a converter
+	 * @param g2 The graphics to draw with
+	 * @param converter Converts the ways to the pixel coordinates of the graphics
+	 */
+	public void paintMap(Graphics2D g2, DataConverter converter)
+	{
+		paintMap(g2, converter, false);
+	}
+
+	/**
+	 * Draws the ways that are visible through a converter
+	 * @param g2 The graphics to draw with
+	 * @param converter Converts the ways to the pixel coordinates of the graphics
+	 * @param majorOnly Whether to draw just the major roads, for showing something quickly
+	 * while the rest is drawn
+	 */
+	public void paintMap(Graphics2D g2, DataConverter converter, boolean majorOnly)
+	{
+		int zoom = converter.getZoom();
+		Rectangle2D bounds = converter.getVisibleBounds(zoom/6000+2);
+		ArrayList<Way> visibleWays = new ArrayList<Way>();
+		Stroke savedStroke = g2.getStroke();
+		// The ways are cached in world pixels, so move the world's origin to the corner of the
+		// graphics. Whole pixels, so that neighbouring tiles line up exactly
+		AffineTransform saved = g2.getTransform();
+		g2.translate(-Math.round(converter.getOriginX()), -Math.round(converter.getOriginY()));
+		for(RenderLayer layer : layers)
+		{
+			if(!layer.isVisible(zoom) || (majorOnly && !layer.isMajor()))
+				continue;
+			g2.setColor(layer.getColor());
+			g2.setStroke(stroke(layer.lineWidth(zoom)));
+			visibleWays.clear();
+			layer.getWays().query(bounds, visibleWays);
+			for(Way next : visibleWays)
+			{
+				int[][] points = projected.get(next, converter);
+				int[] xs = points[0];
+				int[] ys = points[1];
+				// Separate lines rather than a polyline, stroking the joins of wide polylines is slower
+				for(int i = 1; i < xs.length; i++)
+				{
+					g2.drawLine(xs[i-1], ys[i-1], xs[i], ys[i]);
+				}
+			}
+		}
+		g2.setTransform(saved);
+		g2.setColor(Color.BLACK);
+		g2.setStroke(savedStroke);
+	}
+
+	/**
+	 * Finds the shared stroke for a line width, creating it the first time it is used
+	 * @param width The width of the line in pixels
+	 * @return A stroke of the width
+	 */
+	private BasicStroke stroke(int width)
+	{
+		BasicStroke stroke = strokes.get(width);
+		if(stroke == null)
+		{
+			stroke = new BasicStroke(width);
+			BasicStroke other = strokes.putIfAbsent(width, stroke);
+			if(other != null)
+				stroke = other;
+		}
+		return stroke;
+	}
+
+	/**
+	 * Sorts the ways of a map into layers, following the rules the map has always been drawn
+	 * with. Power lines are never drawn, small roads and paths only appear once zoomed in past
+	 * 4000, and other ways only appear past 4000 on maps with under 25000 nodes
+	 * @param data The map
+	 * @return The layers in the order they should be drawn, so roads end up on top
+	 */
+	private static ArrayList<RenderLayer> buildLayers(Data data)
+	{
+		// Each style is split by whether it's hidden when zoomed out
+		ArrayList<ArrayList<Way>> buckets = new ArrayList<ArrayList<Way>>();
+		for(int i = 0; i < 2*STYLES; i++)
+		{
+			buckets.add(new ArrayList<Way>());
+		}
+		for(Iterator<Way> it = data.wayIterator(); it.hasNext();)
+		{
+			Way way = it.next();
+			int style;
+			if(way.getTagValue("power") != null)
+			{
+				continue;
+			}
+			else if(way.getTagValue("boundary") != null)
+			{
+				style = BOUNDARY;
+			}
+			else if(way.getTagValue("natural") != null)
+			{
+				style = way.getTagValue("natural").equals("wood") ? WOOD : NATURAL;
+			}
+			else if(way.getType() >= 1)
+			{
+				style = ROAD;
+			}
+			else if(data.size() < 25000)
+			{
+				style = OTHER;
+			}
+			else
+			{
+				continue;
+			}
+			boolean small = way.getType() < 3 && way.getType() != -1;
+			buckets.get(2*style + (small ? 1 : 0)).add(way);
+		}
+
+		ArrayList<RenderLayer> layers = new ArrayList<RenderLayer>();
+		for(int style = 0; style < STYLES; style++)
+		{
+			for(int small = 0; small < 2; small++)
+			{
+				ArrayList<Way> ways = buckets.get(2*style + small);
+				if(ways.isEmpty())
+					continue;
+				// Other ways need a scale strictly above 4000, everything else 4000 or more
+				int minZoom = style == OTHER ? 4001 : small == 1 ? 4000 : 0;
+				layers.add(new RenderLayer(COLORS[style], style == ROAD, style == ROAD && small == 0, minZoom, ways));
+			}
+		}
+		return layers;
+	}
+}
@@ -0,0 +1,118 @@
+package mapdisplay;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mapdata.Coordinates;
+import mapdata.Way;
+
+/**
+ * Cache of the world pixel coordinates of ways at the last few scales drawn. Ways are projected
+ * the first time they are drawn at a scale and reused while it stays cached, so moving the map
+ * only changes the translation they are drawn with, and zooming back and forth or drawing tiles
+ * at another scale than the panel doesn't throw the projections away. Only the nodes kept by
+ * the level of detail for the scale are projected. Safe to share between threads drawing tiles
+ * @author williamloughlin
+ *
+ */
+public class ProjectedWays {
+
+	// Scales kept at once, the least recently drawn is dropped for a new one
+	private static final int LEVELS = 4;
+
+	private DetailLevels detail;
+	private LinkedHashMap<Integer, Level> levels;
+
+	/**
+	 * @param detail The simplified ways to project at low zoom
+	 */
+	public ProjectedWays(DetailLevels detail)
+	{
+		this.detail = detail;
+		levels = new LinkedHashMap<Integer, Level>(LEVELS*2, 0.75f, true)
+				{
+					protected boolean removeEldestEntry(Map.Entry<Integer, Level> eldest)
+					{
+						return size() > LEVELS;
+					}
+				};
+	}
+
+	/**
+	 * Finds the world pixel coordinates of a way at the scale of a converter
+	 * @param way The way to project
+	 * @param converter The converter the way is being drawn with
+	 * @return The x coordinates of the way's drawn nodes followed by the y coordinates, the
+	 * same arrays are returned while the scale stays cached
+	 */
+	public int[][] get(Way way, DataConverter converter)
+	{
+		Level current = level(converter.getZoom(), converter.getRefCos());
+		int[][] points = current.ways.get(way);
+		if(points == null)
+		{
+			points = project(way, detail.nodes(way, detail.level(converter.getZoom())), converter);
+			current.ways.put(way, points);
+		}
+		return points;
+	}
+
+	/**
+	 * Gets the cached level of a scale, starting a new one if it isn't cached or was projected
+	 * with another reference latitude
+	 */
+	private Level level(int scale, double refCos)
+	{
+		synchronized(levels)
+		{
+			Level current = levels.get(scale);
+			if(current == null || current.refCos != refCos)
+			{
+				current = new Level(scale, refCos);
+				levels.put(scale, current);
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Projects the nodes of a way, rounding down to whole pixels
+	 * @param keep The indices of the nodes to project in order, or null for every node
+	 */
+	private int[][] project(Way way, int[] keep, DataConverter converter)
+	{
+		Coordinates coordinates = detail.getCoordinates();
+		int first = detail.first(way);
+		int count = keep != null ? keep.length : detail.count(way);
+		double[] lons = new double[count];
+		double[] lats = new double[count];
+		for(int i = 0; i < count; i++)
+		{
+			int n = detail.index(first + (keep != null ? keep[i] : i));
+			lons[i] = coordinates.getLon(n);
+			lats[i] = coordinates.getLat(n);
+		}
+		int[] xs = new int[count];
+		int[] ys = new int[count];
+		converter.degToWorld(lons, lats, xs, ys, count);
+		return new int[][] {xs, ys};
+	}
+
+	/**
+	 * The ways projected at one scale and reference latitude
+	 */
+	private static final class Level
+	{
+		private final int scale;
+		private final double refCos;
+		private final ConcurrentHashMap<Way, int[][]> ways;
+
+		private Level(int scale, double refCos)
+		{
+			this.scale = scale;
+			this.refCos = refCos;
+			ways = new ConcurrentHashMap<Way, int[][]>();
+		}
+	}
+}
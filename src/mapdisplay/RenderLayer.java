@@ -0,0 +1,87 @@
+package mapdisplay;
+
+import java.awt.Color;
+import java.util.Collection;
+
+import mapdata.Way;
+import mapdata.WayIndex;
+
+/**
+ * A group of ways that are all drawn the same way: one colour, one line width rule, and the
+ * smallest scale they appear at. Ways are sorted into layers once when a map is loaded so that
+ * drawing doesn't have to look at their tags. Immutable
+ * @author williamloughlin
+ *
+ */
+public class RenderLayer {
+
+	private Color color;
+	private boolean scaled;
+	private boolean major;
+	private int minZoom;
+	private WayIndex ways;
+
+	/**
+	 * @param color The colour to draw the ways in
+	 * @param scaled Whether the lines get wider as the map is zoomed in, otherwise they are
+	 * one pixel wide
+	 * @param major Whether the ways are main roads or highways, which are drawn first
+	 * @param minZoom The smallest scale the ways are drawn at
+	 * @param ways The ways in this layer
+	 */
+	public RenderLayer(Color color, boolean scaled, boolean major, int minZoom, Collection<Way> ways)
+	{
+		this.color = color;
+		this.scaled = scaled;
+		this.major = major;
+		this.minZoom = minZoom;
+		this.ways = new WayIndex(ways);
+	}
+
+	/**
+	 * Accessor for the colour of this layer
+	 * @return The colour to draw the ways in
+	 */
+	public Color getColor()
+	{
+		return color;
+	}
+
+	/**
+	 * Finds how wide the lines of this layer are at a scale
+	 * @param zoom The scale of the map
+	 * @return The width of the lines in pixels
+	 */
+	public int lineWidth(int zoom)
+	{
+		return scaled ? zoom/6000 : 1;
+	}
+
+	/**
+	 * Tests whether this layer holds major roads
+	 * @return true if the ways should be drawn before the rest of the map
+	 */
+	public boolean isMajor()
+	{
+		return major;
+	}
+
+	/**
+	 * Tests whether this layer is drawn at a scale
+	 * @param zoom The scale of the map
+	 * @return true if the ways of this layer should be drawn
+	 */
+	public boolean isVisible(int zoom)
+	{
+		return zoom >= minZoom && ways.size() > 0;
+	}
+
+	/**
+	 * Accessor for the index over the ways of this layer
+	 * @return The ways of this layer
+	 */
+	public WayIndex getWays()
+	{
+		return ways;
+	}
+}
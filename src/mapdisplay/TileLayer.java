@@ -0,0 +1,295 @@
+package mapdisplay;
+
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Base map drawn as square tiles of world pixels at each scale. Tiles are rendered on a pool of
+ * background threads and kept in a least recently used cache, so the event thread only ever
+ * copies images that have already been drawn. Tiles that are not ready yet are left blank and
+ * the component is repainted when they arrive
+ *
+ * Each tile is drawn in two passes. The major roads are drawn and shown first, then the tile is
+ * drawn again in full. Tiles that have scrolled out of view or are at an old scale by the time
+ * a thread gets to them, or between the passes, are abandoned
+ * @author williamloughlin
+ *
+ */
+public class TileLayer {
+
+	public static final int TILE_SIZE = 256;
+	// Enough for several screens of tiles at a couple of scales
+	public static final long DEFAULT_BUDGET = 64L*1024*1024;
+
+	private static final long TILE_BYTES = 4L*TILE_SIZE*TILE_SIZE;
+
+	private MapRenderer renderer;
+	private Component target;
+	private long budget;
+
+	// Access ordered, so the first entry is always the least recently drawn tile
+	private LinkedHashMap<TileKey, Tile> cache;
+	private HashSet<TileKey> pending;
+	private ExecutorService pool;
+
+	// The tiles covered by the last paint, queued tiles outside of it are abandoned
+	private volatile View view;
+
+	/**
+	 * @param renderer Draws the contents of each tile
+	 * @param target The component to repaint when tiles are ready
+	 * @param budget The most memory in bytes the cached tiles may use
+	 */
+	public TileLayer(MapRenderer renderer, Component target, long budget)
+	{
+		this.renderer = renderer;
+		this.target = target;
+		this.budget = budget;
+		cache = new LinkedHashMap<TileKey, Tile>(16, 0.75f, true);
+		pending = new HashSet<TileKey>();
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "TileLayer");
+						t.setDaemon(true);
+						t.setPriority(Thread.NORM_PRIORITY-1);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Draws the tiles covering the panel of a converter, and starts rendering the ones that
+	 * are missing
+	 * @param g2 The graphics to draw with
+	 * @param converter The converter the panel is drawn with
+	 */
+	public void paint(Graphics2D g2, DataConverter converter)
+	{
+		int scale = converter.getZoom();
+		double originX = converter.getOriginX();
+		double originY = converter.getOriginY();
+		int firstX = (int)Math.floor(originX/TILE_SIZE);
+		int firstY = (int)Math.floor(originY/TILE_SIZE);
+		int lastX = (int)Math.floor((originX+converter.getPanelSize().getWidth())/TILE_SIZE);
+		int lastY = (int)Math.floor((originY+converter.getPanelSize().getHeight())/TILE_SIZE);
+		view = new View(scale, firstX, firstY, lastX, lastY);
+		// Only the tiles under the area being repainted need to be copied
+		Rectangle clip = g2.getClipBounds();
+		if(clip != null)
+		{
+			firstX = Math.max(firstX, (int)Math.floor((originX+clip.getMinX())/TILE_SIZE));
+			firstY = Math.max(firstY, (int)Math.floor((originY+clip.getMinY())/TILE_SIZE));
+			lastX = Math.min(lastX, (int)Math.floor((originX+clip.getMaxX())/TILE_SIZE));
+			lastY = Math.min(lastY, (int)Math.floor((originY+clip.getMaxY())/TILE_SIZE));
+		}
+		for(int x = firstX; x <= lastX; x++)
+		{
+			for(int y = firstY; y <= lastY; y++)
+			{
+				TileKey key = new TileKey(scale, x, y);
+				Tile tile;
+				synchronized(this)
+				{
+					tile = cache.get(key);
+				}
+				if(tile == null || !tile.complete)
+				{
+					request(key, converter);
+				}
+				if(tile != null)
+				{
+					// Rounded the same way the renderer rounds the origin
+					g2.drawImage(tile.image, (int)Math.round(x*TILE_SIZE-originX),
+							(int)Math.round(y*TILE_SIZE-originY), null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues a tile to be rendered unless it already is
+	 * @param key The tile
+	 * @param converter A converter at the tile's scale
+	 */
+	private void request(final TileKey key, DataConverter converter)
+	{
+		synchronized(this)
+		{
+			if(!pending.add(key))
+				return;
+		}
+		final DataConverter area = converter.forArea((double)key.x*TILE_SIZE, (double)key.y*TILE_SIZE, TILE_SIZE);
+		pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						if(!isWanted(key))
+						{
+							done(key);
+							return;
+						}
+						store(key, render(area, true), false);
+						target.repaint();
+						if(!isWanted(key))
+						{
+							// Moved away while the major roads were drawn, leave the partial tile
+							done(key);
+							return;
+						}
+						store(key, render(area, false), true);
+						done(key);
+						target.repaint();
+					}
+				});
+	}
+
+	/**
+	 * Draws a tile on the calling thread
+	 * @param area A converter whose panel is the tile
+	 * @param majorOnly Whether to draw just the major roads
+	 * @return The drawn tile
+	 */
+	private BufferedImage render(DataConverter area, boolean majorOnly)
+	{
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		renderer.paintMap(g2, area, majorOnly);
+		g2.dispose();
+		return image;
+	}
+
+	/**
+	 * Tests whether a tile is still on screen, or next to it, at the current scale
+	 */
+	private boolean isWanted(TileKey key)
+	{
+		View current = view;
+		return current != null && key.scale == current.scale
+				&& key.x >= current.firstX-1 && key.x <= current.lastX+1
+				&& key.y >= current.firstY-1 && key.y <= current.lastY+1;
+	}
+
+	/**
+	 * Lets a tile be requested again
+	 */
+	private synchronized void done(TileKey key)
+	{
+		pending.remove(key);
+	}
+
+	/**
+	 * Adds a rendered tile to the cache, evicting the least recently drawn tiles over budget
+	 * @param complete Whether the tile has been drawn in full
+	 */
+	private synchronized void store(TileKey key, BufferedImage image, boolean complete)
+	{
+		cache.put(key, new Tile(image, complete));
+		Iterator<Map.Entry<TileKey, Tile>> it = cache.entrySet().iterator();
+		while(cache.size()*TILE_BYTES > budget && it.hasNext())
+		{
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Accessor for the memory used by the cached tiles
+	 * @return The number of bytes of tile images in the cache
+	 */
+	public synchronized long memoryUsed()
+	{
+		return cache.size()*TILE_BYTES;
+	}
+
+	/**
+	 * Stops rendering tiles and drops the cache
+	 */
+	public synchronized void shutdown()
+	{
+		pool.shutdownNow();
+		cache.clear();
+		pending.clear();
+	}
+
+	/**
+	 * A drawn tile, which may only have the major roads on it so far
+	 */
+	private static final class Tile
+	{
+		private final BufferedImage image;
+		private final boolean complete;
+
+		private Tile(BufferedImage image, boolean complete)
+		{
+			this.image = image;
+			this.complete = complete;
+		}
+	}
+
+	/**
+	 * The range of tiles covered by a paint
+	 */
+	private static final class View
+	{
+		private final int scale;
+		private final int firstX;
+		private final int firstY;
+		private final int lastX;
+		private final int lastY;
+
+		private View(int scale, int firstX, int firstY, int lastX, int lastY)
+		{
+			this.scale = scale;
+			this.firstX = firstX;
+			this.firstY = firstY;
+			this.lastX = lastX;
+			this.lastY = lastY;
+		}
+	}
+
+	/**
+	 * Identifies a tile by its scale and its column and row in world pixels
+	 */
+	private static final class TileKey
+	{
+		private final int scale;
+		private final int x;
+		private final int y;
+
+		private TileKey(int scale, int x, int y)
+		{
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (scale*31 + x)*31 + y;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if(!(other instanceof TileKey))
+			{
+				return false;
+			}
+			TileKey key = (TileKey)other;
+			return scale == key.scale && x == key.x && y == key.y;
+		}
+	}
+}
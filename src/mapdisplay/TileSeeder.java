@@ -0,0 +1,227 @@
+package mapdisplay;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import mapdata.Data;
+
+/**
+ * Writes PNG tiles of a map without opening a window, in the z/x/y layout used by web maps,
+ * so the same drawing can be served by a tile server. Tiles follow the Web Mercator grid. Each
+ * zoom level is drawn with one fixed scale and reference latitude, so inside a tile the map is
+ * the application's projection, which for an area the size of a city stays within a fraction
+ * of a pixel of Mercator
+ *
+ * Usage: TileSeeder [output dir] [min zoom] [max zoom] [-bbox=minLat,minLon,maxLat,maxLon] [osm files],
+ * defaulting to tiles, zoom 12 to 15, the bounds of each map, and every map in Maps
+ * @author williamloughlin
+ *
+ */
+public class TileSeeder {
+
+	private static final int TILE_SIZE = 256;
+
+	private MapRenderer renderer;
+	private int threads;
+
+	// Each thread draws into its own image, which is cleared before every tile
+	private ThreadLocal<BufferedImage> images;
+
+	/**
+	 * @param renderer The renderer to draw tiles with
+	 * @param threads The number of threads to draw tiles on
+	 */
+	public TileSeeder(MapRenderer renderer, int threads)
+	{
+		this.renderer = renderer;
+		this.threads = Math.max(1, threads);
+		images = new ThreadLocal<BufferedImage>()
+				{
+					@Override
+					protected BufferedImage initialValue()
+					{
+						return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+					}
+				};
+	}
+
+	/**
+	 * Writes every tile covering an area for a range of zoom levels
+	 * @param directory The directory to write the z/x/y.png files into
+	 * @param minLat The south edge of the area
+	 * @param minLon The west edge of the area
+	 * @param maxLat The north edge of the area
+	 * @param maxLon The east edge of the area
+	 * @param minZoom The first zoom level
+	 * @param maxZoom The last zoom level
+	 * @return The number of tiles written
+	 */
+	public int seed(final File directory, double minLat, double minLon, double maxLat, double maxLon,
+			int minZoom, int maxZoom) throws Exception
+	{
+		int written = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			for(int z = minZoom; z <= maxZoom; z++)
+			{
+				final int zoom = z;
+				final int firstX = tileX(minLon, z);
+				final int lastX = tileX(maxLon, z);
+				int firstY = tileY(maxLat, z);
+				int lastY = tileY(minLat, z);
+
+				// Pixels per degree of longitude are exact, the scale is rounded to whole pixels per
+				// degree of latitude at the middle of the area
+				final double lonScale = TILE_SIZE*Math.pow(2, z)/360;
+				double midCos = Math.cos(Math.toRadians((minLat+maxLat)/2));
+				final int scale = Math.max(1, (int)Math.round(lonScale/midCos));
+				final double refCos = lonScale/scale;
+
+				// A row of tiles for each task, all at one scale so the projected ways are shared
+				ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+				for(int y = firstY; y <= lastY; y++)
+				{
+					final int row = y;
+					futures.add(executor.submit(new Callable<Integer>()
+							{
+								public Integer call() throws Exception
+								{
+									for(int x = firstX; x <= lastX; x++)
+									{
+										writeTile(directory, zoom, x, row, scale, refCos);
+									}
+									return lastX-firstX+1;
+								}
+							}));
+				}
+				for(Future<Integer> f : futures)
+				{
+					written += f.get();
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		return written;
+	}
+
+	/**
+	 * Draws one tile and writes it to directory/z/x/y.png
+	 */
+	private void writeTile(File directory, int zoom, int x, int y, int scale, double refCos) throws Exception
+	{
+		double n = Math.pow(2, zoom);
+		double lon = (x+0.5)/n*360 - 180;
+		double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI*(1 - 2*(y+0.5)/n))));
+		DataConverter converter = new DataConverter(refCos, scale, new Point2D.Double(lon, lat),
+				new Dimension(TILE_SIZE, TILE_SIZE));
+
+		BufferedImage image = images.get();
+		Graphics2D g2 = image.createGraphics();
+		g2.setComposite(AlphaComposite.Clear);
+		g2.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		g2.setComposite(AlphaComposite.SrcOver);
+		renderer.paintMap(g2, converter);
+		g2.dispose();
+
+		File folder = new File(directory, zoom + File.separator + x);
+		folder.mkdirs();
+		ImageIO.write(image, "png", new File(folder, y + ".png"));
+	}
+
+	/**
+	 * Finds the column of the tile containing a longitude
+	 */
+	private static int tileX(double lon, int zoom)
+	{
+		int n = 1 << zoom;
+		return Math.max(0, Math.min(n-1, (int)Math.floor((lon+180)/360*n)));
+	}
+
+	/**
+	 * Finds the row of the tile containing a latitude
+	 */
+	private static int tileY(double lat, int zoom)
+	{
+		int n = 1 << zoom;
+		double rad = Math.toRadians(lat);
+		double y = (1 - Math.log(Math.tan(rad) + 1/Math.cos(rad))/Math.PI)/2*n;
+		return Math.max(0, Math.min(n-1, (int)Math.floor(y)));
+	}
+
+	/**
+	 * Seeds the tiles of one or more maps
+	 * @param args The output directory, the zoom range, an optional area and the maps to draw
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		File directory = new File(args.length > 0 ? args[0] : "tiles");
+		int minZoom = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+		int maxZoom = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+		double[] bbox = null;
+		ArrayList<File> maps = new ArrayList<File>();
+		for(int i = 3; i < args.length; i++)
+		{
+			if(args[i].startsWith("-bbox="))
+			{
+				String[] parts = args[i].substring("-bbox=".length()).split(",");
+				bbox = new double[4];
+				for(int j = 0; j < 4; j++)
+				{
+					bbox[j] = Double.parseDouble(parts[j]);
+				}
+			}
+			else
+			{
+				maps.add(new File(args[i]));
+			}
+		}
+		if(maps.isEmpty())
+		{
+			File[] files = new File("Maps").listFiles(new FilenameFilter()
+					{
+						public boolean accept(File dir, String name)
+						{
+							return name.endsWith(".osm");
+						}
+					});
+			if(files != null)
+			{
+				for(File f : files)
+				{
+					maps.add(f);
+				}
+			}
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		for(File map : maps)
+		{
+			Data data = new Data(map);
+			TileSeeder seeder = new TileSeeder(new MapRenderer(data), threads);
+			double[] area = bbox != null ? bbox
+					: new double[] {data.minLat(), data.minLon(), data.maxLat(), data.maxLon()};
+			long start = System.nanoTime();
+			int tiles = seeder.seed(directory, area[0], area[1], area[2], area[3], minZoom, maxZoom);
+			double seconds = (System.nanoTime()-start)/1e9;
+			System.out.printf("%s: %d tiles at zoom %d to %d in %.2f s, %.1f tiles/s on %d threads%n",
+					data.getFileName(), tiles, minZoom, maxZoom, seconds, tiles/seconds, threads);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package mapservice;
+
+import java.awt.geom.Point2D;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.Pathfinder;
+import mapdata.Polyline;
+import mapdata.Route;
+
+/**
+ * Routes a file of origin and destination pairs from the command line. Lines are read, routed
+ * on a pool of threads and written out in their original order, with only a fixed number of
+ * pairs in flight at once, so files of any length are routed in bounded memory.
+ *
+ * Each input line is fromLat,fromLon,toLat,toLon, optionally preceded by an id; lines without
+ * an id are numbered from 1. A first line that isn't numbers is taken as a header. Each output
+ * line is id,distance in miles, then with -geometry the encoded polyline of the route, then a
+ * status: ok, malformed if the line couldn't be read, unmatched if an end has no node close to
+ * it or unreachable if there is no route. The distance and polyline are left empty unless the
+ * status is ok, so every line has the same columns. The ends are moved to their closest
+ * reachable nodes.
+ *
+ * Usage: BatchRouter osm-file input-csv output-csv [-geometry] [-threads=n]
+ * @author williamloughlin
+ *
+ */
+public class BatchRouter {
+
+	// Pairs in flight for each thread, read ahead so no thread waits for the reader
+	private static final int PER_THREAD = 16;
+	// Nanoseconds between progress reports
+	private static final long REPORT_INTERVAL = 5000000000L;
+
+	private Data data;
+	private boolean geometry;
+	private int threads;
+
+	/**
+	 * @param data The map to route on
+	 * @param geometry Whether to write the polyline of each route as well as its length
+	 * @param threads The number of threads to route on
+	 */
+	public BatchRouter(Data data, boolean geometry, int threads)
+	{
+		this.data = data;
+		this.geometry = geometry;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Routes every pair of a file, printing progress as it goes
+	 * @param in The pairs to route
+	 * @param out Where to write the results
+	 * @return The number of pairs routed
+	 * @throws IOException If reading or writing fails
+	 */
+	public long route(BufferedReader in, Writer out) throws IOException, InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		long count = 0;
+		long start = System.nanoTime();
+		long nextReport = start + REPORT_INTERVAL;
+		try
+		{
+			String line;
+			long number = 0;
+			while((line = in.readLine()) != null)
+			{
+				number++;
+				if(line.trim().isEmpty() || (number == 1 && isHeader(line)))
+					continue;
+				final String pair = line;
+				final long id = number;
+				pending.addLast(executor.submit(new Callable<String>()
+						{
+							public String call()
+							{
+								return routeLine(pair, id);
+							}
+						}));
+				// Write the oldest result before reading further once enough are in flight
+				if(pending.size() >= threads*PER_THREAD)
+				{
+					out.write(result(pending.removeFirst()));
+					count++;
+				}
+				if(System.nanoTime() > nextReport)
+				{
+					report(count, start);
+					nextReport += REPORT_INTERVAL;
+				}
+			}
+			while(!pending.isEmpty())
+			{
+				out.write(result(pending.removeFirst()));
+				count++;
+			}
+			out.flush();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		report(count, start);
+		return count;
+	}
+
+	/**
+	 * Routes one input line
+	 * @param line The line
+	 * @param number The line number, used as the id if the line has none
+	 * @return The output line
+	 */
+	private String routeLine(String line, long number)
+	{
+		String[] parts = line.split(",");
+		int first = parts.length == 5 ? 1 : 0;
+		String id = first == 1 ? parts[0].trim() : Long.toString(number);
+		StringBuilder sb = new StringBuilder(id).append(',');
+		if(parts.length-first != 4)
+			return failed(sb, "malformed");
+		Node from;
+		Node to;
+		try
+		{
+			from = data.nodeClosest(new Point2D.Double(Double.parseDouble(parts[first+1].trim()),
+					Double.parseDouble(parts[first].trim())));
+			to = data.nodeClosest(new Point2D.Double(Double.parseDouble(parts[first+3].trim()),
+					Double.parseDouble(parts[first+2].trim())));
+		}
+		catch(NumberFormatException e)
+		{
+			return failed(sb, "malformed");
+		}
+		if(from == null || to == null)
+			return failed(sb, "unmatched");
+
+		Pathfinder pathfinder = new Pathfinder(data);
+		if(!geometry)
+		{
+			// The lengths of paths can be found without building routes
+			double distance = pathfinder.getDistances(from, new Node[] {to})[0];
+			if(distance == Double.POSITIVE_INFINITY)
+				return failed(sb, "unreachable");
+			return sb.append(distance).append(",ok\n").toString();
+		}
+		if(from.equals(to))
+		{
+			sb.append(0.0).append(',');
+			// A route that doesn't move is the one point
+			new Polyline.Encoder(sb).add(from.getLat(), from.getLon());
+			return sb.append(",ok\n").toString();
+		}
+		Route route = pathfinder.getBestPath(from, to);
+		if(route == null)
+			return failed(sb, "unreachable");
+		sb.append(route.getLength()).append(',');
+		Polyline.encode(route, sb);
+		return sb.append(",ok\n").toString();
+	}
+
+	/**
+	 * Finishes the output line of a pair that wasn't routed, leaving the distance and polyline
+	 * empty
+	 * @param sb The line so far, the id and a comma
+	 * @param status Why the pair wasn't routed
+	 * @return The output line
+	 */
+	private String failed(StringBuilder sb, String status)
+	{
+		if(geometry)
+			sb.append(',');
+		return sb.append(',').append(status).append('\n').toString();
+	}
+
+	private static String result(Future<String> future) throws InterruptedException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Tests whether a line is a header rather than a pair of points
+	 */
+	private static boolean isHeader(String line)
+	{
+		String[] parts = line.split(",");
+		try
+		{
+			Double.parseDouble(parts[parts.length-1].trim());
+			return false;
+		}
+		catch(NumberFormatException e)
+		{
+			return true;
+		}
+	}
+
+	private void report(long count, long start)
+	{
+		double seconds = (System.nanoTime()-start)/1e9;
+		System.err.printf("%d pairs in %.1f s, %.1f pairs/s%n", count, seconds, count/seconds);
+	}
+
+	/**
+	 * Routes a file of pairs
+	 * @param args The map, the input file, the output file and any options
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean geometry = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String[] files = new String[3];
+		int n = 0;
+		for(String arg : args)
+		{
+			if(arg.equals("-geometry"))
+				geometry = true;
+			else if(arg.startsWith("-threads="))
+				threads = Integer.parseInt(arg.substring("-threads=".length()));
+			else if(n < files.length)
+				files[n++] = arg;
+		}
+		if(n < files.length)
+		{
+			System.err.println("Usage: BatchRouter osm-file input-csv output-csv [-geometry] [-threads=n]");
+			System.exit(1);
+		}
+
+		Data data = new Data(new File(files[0]));
+		BatchRouter router = new BatchRouter(data, geometry, threads);
+		BufferedReader in = new BufferedReader(new FileReader(files[1]));
+		BufferedWriter out = new BufferedWriter(new FileWriter(files[2]));
+		try
+		{
+			router.route(in, out);
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package mapservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import tracking.StageStats;
+
+/**
+ * Sends requests to a RoutingServer from several threads for a fixed time and reports the
+ * throughput and latency percentiles. The points of each request are picked at random inside
+ * the bounds of the first map the server lists, so the server snaps them to the roads
+ *
+ * Usage: LoadGenerator [server url] [endpoint] [threads] [seconds], defaulting to
+ * http://localhost:8080, route, 8 threads and 10 seconds. The endpoint is route, nearest or
+ * matrix
+ * @author williamloughlin
+ *
+ */
+public class LoadGenerator {
+
+	// Points on each side of a generated matrix request
+	private static final int MATRIX_SIZE = 10;
+
+	private String base;
+	private String endpoint;
+	// The name of the map, encoded for a url
+	private String map;
+	private double minLat;
+	private double minLon;
+	private double maxLat;
+	private double maxLon;
+
+	private StageStats stats;
+	private AtomicLong errors = new AtomicLong();
+
+	/**
+	 * Asks the server for the area to send requests in
+	 * @param base The url of the server, without a trailing slash
+	 * @param endpoint The endpoint to send requests to
+	 * @throws IOException If the server can't be reached
+	 */
+	public LoadGenerator(String base, String endpoint) throws IOException
+	{
+		this.base = base;
+		this.endpoint = endpoint;
+		if(!endpoint.equals("route") && !endpoint.equals("nearest") && !endpoint.equals("matrix"))
+			throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+		stats = new StageStats(endpoint);
+
+		String maps = get(base + "/maps");
+		map = URLEncoder.encode(find(maps, "\"name\":\"([^\"]*)\""), "UTF-8");
+		minLat = Double.parseDouble(find(maps, "\"minLat\":([-0-9.Ee]+)"));
+		minLon = Double.parseDouble(find(maps, "\"minLon\":([-0-9.Ee]+)"));
+		maxLat = Double.parseDouble(find(maps, "\"maxLat\":([-0-9.Ee]+)"));
+		maxLon = Double.parseDouble(find(maps, "\"maxLon\":([-0-9.Ee]+)"));
+	}
+
+	/**
+	 * Sends requests as fast as the server answers them
+	 * @param threads The number of requests in flight at once
+	 * @param seconds How long to keep sending for
+	 * @return The number of requests answered, including errors
+	 */
+	public long run(int threads, final double seconds) throws InterruptedException
+	{
+		stats.clear();
+		errors.set(0);
+		final long deadline = System.nanoTime() + (long)(seconds*1e9);
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++)
+		{
+			final Random random = new Random(i);
+			workers[i] = new Thread(new Runnable()
+					{
+						public void run()
+						{
+							while(System.nanoTime() < deadline)
+							{
+								String url = request(random);
+								long start = System.nanoTime();
+								try
+								{
+									get(url);
+								}
+								catch(IOException e)
+								{
+									errors.incrementAndGet();
+								}
+								stats.record(0, System.nanoTime()-start);
+							}
+						}
+					}, "LoadGenerator-" + i);
+			workers[i].start();
+		}
+		for(Thread t : workers)
+		{
+			t.join();
+		}
+		return stats.count(0);
+	}
+
+	/**
+	 * Accessor for the latencies of the last run
+	 * @return The latency of every request, as the only stage
+	 */
+	public StageStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * Accessor for the number of failed requests in the last run
+	 * @return The number of requests that failed or got an error status
+	 */
+	public long errors()
+	{
+		return errors.get();
+	}
+
+	/**
+	 * Makes up a request to the endpoint
+	 */
+	private String request(Random random)
+	{
+		StringBuilder sb = new StringBuilder(base).append('/').append(endpoint).append("?map=").append(map);
+		if(endpoint.equals("route"))
+		{
+			sb.append("&from=");
+			point(sb, random);
+			sb.append("&to=");
+			point(sb, random);
+		}
+		else if(endpoint.equals("nearest"))
+		{
+			sb.append("&point=");
+			point(sb, random);
+		}
+		else
+		{
+			sb.append("&sources=");
+			for(int i = 0; i < MATRIX_SIZE; i++)
+			{
+				if(i > 0)
+					sb.append("%3B");
+				point(sb, random);
+			}
+			sb.append("&targets=");
+			for(int i = 0; i < MATRIX_SIZE; i++)
+			{
+				if(i > 0)
+					sb.append("%3B");
+				point(sb, random);
+			}
+		}
+		return sb.toString();
+	}
+
+	private void point(StringBuilder sb, Random random)
+	{
+		sb.append(minLat + random.nextDouble()*(maxLat-minLat)).append("%2C");
+		sb.append(minLon + random.nextDouble()*(maxLon-minLon));
+	}
+
+	/**
+	 * Fetches a url and reads the whole response, so the connection can be reused
+	 * @throws IOException If the request fails or the status isn't 200
+	 */
+	private static String get(String url) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if(in != null)
+		{
+			try
+			{
+				byte[] buffer = new byte[8192];
+				for(int n = in.read(buffer); n >= 0; n = in.read(buffer))
+				{
+					body.write(buffer, 0, n);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		if(status != 200)
+			throw new IOException("Status " + status + " from " + url + ": " + body.toString("UTF-8"));
+		return body.toString("UTF-8");
+	}
+
+	private static String find(String json, String regex) throws IOException
+	{
+		Matcher m = Pattern.compile(regex).matcher(json);
+		if(!m.find())
+			throw new IOException("Unexpected response from the server: " + json);
+		return m.group(1);
+	}
+
+	/**
+	 * Runs a load test against a server
+	 * @param args The server url, the endpoint, the number of threads and the number of seconds
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String base = args.length > 0 ? args[0] : "http://localhost:8080";
+		String endpoint = args.length > 1 ? args[1] : "route";
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+		if(base.endsWith("/"))
+		{
+			base = base.substring(0, base.length()-1);
+		}
+
+		LoadGenerator generator = new LoadGenerator(base, endpoint);
+		long requests = generator.run(threads, seconds);
+		StageStats stats = generator.getStats();
+		System.out.println(base + "/" + endpoint + ": " + requests + " requests from " + threads
+				+ " threads in " + seconds + " s, " + generator.errors() + " errors");
+		System.out.printf("  %10.1f requests/s%n", requests/seconds);
+		System.out.printf("  p50 %.2f ms, p99 %.2f ms%n", stats.percentile(0, 50)/1e6, stats.percentile(0, 99)/1e6);
+	}
+}
@@ -0,0 +1,581 @@
+package mapservice;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import mapdata.Data;
+import mapdata.Node;
+import mapdata.Pathfinder;
+import mapdata.Polyline;
+import mapdata.RegionManager;
+import mapdata.Route;
+import mapdata.Snap;
+
+/**
+ * Serves routing over HTTP without opening a window, so other programs can use the maps as a
+ * backend. Maps are kept by a RegionManager, so more maps can be served than fit in memory at
+ * once; each loaded map is shared by all requests, which only read it. Requests
+ * are handled on a fixed pool of threads with a bounded queue; once the queue is full the
+ * server stops accepting connections until it catches up, rather than piling up work.
+ *
+ * Endpoints, all GET with JSON responses, points written as lat,lon:
+ *   /maps                                  the maps, their bounds and whether they are loaded
+ *   /route?from=lat,lon&to=lat,lon          the shortest route between two points, with
+ *                                          geometry=polyline for an encoded polyline
+ *                                          in place of the array of points
+ *   /nearest?point=lat,lon                  the closest reachable node to a point
+ *   /matrix?sources=lat,lon;...&targets=... the road distance from every source to every target
+ * Each takes an optional map=name, otherwise the smallest map containing the first point is used
+ *
+ * Searches run under a time budget so one long query can't hold a thread for good. A route that
+ * runs out of time is answered with the best partial route and "status":"timeout", and a matrix
+ * that does starts no more searches, leaving the distances from the remaining sources null
+ *
+ * The server only listens on the loopback address unless it is given another to listen on, so
+ * it isn't reachable from other machines by accident.
+ *
+ * Usage: RoutingServer [port] [threads] [osm files] [-host=address], defaulting to 8080, one
+ * thread per core, every map in Maps and the loopback address. -host=0.0.0.0 listens on every
+ * interface
+ * @author williamloughlin
+ *
+ */
+public class RoutingServer {
+
+	// Requests waiting for a thread before new connections wait to be accepted
+	private static final int QUEUE_SIZE = 256;
+	// Most points on each side of a matrix request
+	private static final int MAX_MATRIX = 100;
+	// Time a route or matrix request may search for, in milliseconds
+	private static final long SEARCH_BUDGET = 2000;
+
+	static
+	{
+		// Otherwise small responses wait on delayed acks, adding 40 ms to every request on a
+		// kept alive connection. Read once, when the first server is created
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private RegionManager regions;
+	private HttpServer server;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Starts serving maps that are already loaded, keeping all of them
+	 * @param maps The maps to route on
+	 * @param port The port to listen on, on the loopback address
+	 * @param threads The number of threads handling requests
+	 * @throws IOException If the port can't be opened
+	 */
+	public RoutingServer(ArrayList<Data> maps, int port, int threads) throws IOException
+	{
+		this(loaded(maps), InetAddress.getLoopbackAddress(), port, threads);
+	}
+
+	/**
+	 * Starts serving the maps of a region manager, which are loaded as requests need them
+	 * @param regions The maps to route on
+	 * @param port The port to listen on, on the loopback address
+	 * @param threads The number of threads handling requests
+	 * @throws IOException If the port can't be opened
+	 */
+	public RoutingServer(RegionManager regions, int port, int threads) throws IOException
+	{
+		this(regions, InetAddress.getLoopbackAddress(), port, threads);
+	}
+
+	/**
+	 * Starts serving the maps of a region manager on a chosen address
+	 * @param regions The maps to route on
+	 * @param host The address to listen on, the wildcard address for every interface
+	 * @param port The port to listen on
+	 * @param threads The number of threads handling requests
+	 * @throws IOException If the port can't be opened
+	 */
+	public RoutingServer(RegionManager regions, InetAddress host, int port, int threads) throws IOException
+	{
+		this.regions = regions;
+		final AtomicInteger count = new AtomicInteger();
+		// Running rejected requests on the thread accepting connections holds back new ones
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "RoutingServer-" + count.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+		server = HttpServer.create(new InetSocketAddress(host, port), QUEUE_SIZE);
+		server.createContext("/maps", new Endpoint()
+				{
+					String answer(HashMap<String, String> query)
+					{
+						return maps();
+					}
+				});
+		server.createContext("/route", new Endpoint()
+				{
+					String answer(HashMap<String, String> query)
+					{
+						return route(query);
+					}
+				});
+		server.createContext("/nearest", new Endpoint()
+				{
+					String answer(HashMap<String, String> query)
+					{
+						return nearest(query);
+					}
+				});
+		server.createContext("/matrix", new Endpoint()
+				{
+					String answer(HashMap<String, String> query)
+					{
+						return matrix(query);
+					}
+				});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Accessor for the port being listened on
+	 * @return The port, useful when the server was started on port 0
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops accepting requests and waits up to a second for the current ones to finish
+	 */
+	public void stop()
+	{
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	private static RegionManager loaded(ArrayList<Data> maps)
+	{
+		RegionManager regions = new RegionManager(Long.MAX_VALUE);
+		for(Data data : maps)
+		{
+			regions.add(data);
+		}
+		return regions;
+	}
+
+	/**
+	 * Lists the maps, with the size of those that are loaded
+	 */
+	private String maps()
+	{
+		StringBuilder sb = new StringBuilder("{\"maps\":[");
+		ArrayList<File> files = regions.getRegions();
+		for(int i = 0; i < files.size(); i++)
+		{
+			double[] bounds = regions.getBounds(files.get(i));
+			Data data = regions.getIfLoaded(files.get(i));
+			if(i > 0)
+				sb.append(',');
+			sb.append("{\"name\":");
+			string(sb, files.get(i).getName());
+			sb.append(",\"loaded\":").append(data != null);
+			if(data != null)
+			{
+				sb.append(",\"nodes\":").append(data.size());
+			}
+			sb.append(",\"minLat\":").append(bounds[0]);
+			sb.append(",\"minLon\":").append(bounds[1]);
+			sb.append(",\"maxLat\":").append(bounds[2]);
+			sb.append(",\"maxLon\":").append(bounds[3]).append('}');
+		}
+		return sb.append("]}").toString();
+	}
+
+	/**
+	 * Finds the shortest route between two points, or the best partial route the budget allows
+	 */
+	private String route(HashMap<String, String> query)
+	{
+		Point2D from = point(query, "from");
+		Point2D to = point(query, "to");
+		Data data = map(query, from);
+		Snap start = data.snap(from);
+		Snap end = data.snap(to);
+		Route route = start == null || end == null ? null
+				: new Pathfinder(data).getBestPath(start, end, SEARCH_BUDGET);
+
+		StringBuilder sb = new StringBuilder("{\"map\":");
+		string(sb, data.getFileName());
+		if(route == null)
+		{
+			return sb.append(",\"found\":false}").toString();
+		}
+		sb.append(",\"found\":true,\"status\":\"").append(route.isComplete() ? "ok" : "timeout");
+		sb.append("\",\"complete\":").append(route.isComplete());
+		sb.append(",\"distance\":").append(route.getLength());
+		if("polyline".equals(query.get("geometry")))
+		{
+			StringBuilder polyline = new StringBuilder();
+			Polyline.encode(route, polyline);
+			sb.append(",\"polyline\":");
+			string(sb, polyline.toString());
+		}
+		else
+		{
+			sb.append(",\"points\":[");
+			for(int i = 0; i < route.size(); i++)
+			{
+				if(i > 0)
+					sb.append(',');
+				sb.append('[').append(route.getLat(i)).append(',').append(route.getLon(i)).append(']');
+			}
+			sb.append(']');
+		}
+		sb.append(",\"instructions\":[");
+		for(int k = 0; k < route.instructionCount(); k++)
+		{
+			if(k > 0)
+				sb.append(',');
+			string(sb, route.getInstruction(k));
+		}
+		return sb.append("]}").toString();
+	}
+
+	/**
+	 * Finds the closest reachable node to a point
+	 */
+	private String nearest(HashMap<String, String> query)
+	{
+		Point2D point = point(query, "point");
+		Data data = map(query, point);
+		Node node = data.nodeClosest(point);
+
+		StringBuilder sb = new StringBuilder("{\"map\":");
+		string(sb, data.getFileName());
+		if(node == null)
+		{
+			return sb.append(",\"found\":false}").toString();
+		}
+		sb.append(",\"found\":true,\"id\":");
+		string(sb, node.getId());
+		sb.append(",\"lat\":").append(node.getLat());
+		sb.append(",\"lon\":").append(node.getLon());
+		sb.append(",\"distance\":").append(node.calcDist(point));
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Finds the road distance from every source to every target, each moved to its closest
+	 * reachable node, with one search per source. No more searches are started once the budget
+	 * has run out
+	 */
+	private String matrix(HashMap<String, String> query)
+	{
+		Point2D[] sources = points(query, "sources");
+		Point2D[] targets = points(query, "targets");
+		Data data = map(query, sources[0]);
+		Node[] ends = new Node[targets.length];
+		for(int j = 0; j < targets.length; j++)
+		{
+			ends[j] = data.nodeClosest(targets[j]);
+		}
+
+		Pathfinder pathfinder = new Pathfinder(data);
+		long deadline = System.nanoTime() + SEARCH_BUDGET*1000000;
+		boolean complete = true;
+		StringBuilder sb = new StringBuilder("{\"map\":");
+		string(sb, data.getFileName());
+		sb.append(",\"distances\":[");
+		for(int i = 0; i < sources.length; i++)
+		{
+			if(complete && System.nanoTime() > deadline)
+				complete = false;
+			Node start = complete ? data.nodeClosest(sources[i]) : null;
+			double[] distances = start == null ? new double[0] : pathfinder.getDistances(start, ends);
+			if(i > 0)
+				sb.append(',');
+			sb.append('[');
+			for(int j = 0; j < targets.length; j++)
+			{
+				if(j > 0)
+					sb.append(',');
+				// Unreachable targets are null, JSON has no infinity
+				if(j < distances.length && distances[j] != Double.POSITIVE_INFINITY)
+					sb.append(distances[j]);
+				else
+					sb.append("null");
+			}
+			sb.append(']');
+		}
+		sb.append("],\"status\":\"").append(complete ? "ok" : "timeout");
+		return sb.append("\",\"complete\":").append(complete).append('}').toString();
+	}
+
+	/**
+	 * Finds the map a request is for, by name or by the first point, loading it if needed
+	 */
+	private Data map(HashMap<String, String> query, Point2D point)
+	{
+		String name = query.get("map");
+		File file = null;
+		if(name == null)
+		{
+			file = regions.regionFor(point);
+		}
+		else
+		{
+			for(File f : regions.getRegions())
+			{
+				if(f.getName().equals(name))
+				{
+					file = f;
+					break;
+				}
+			}
+		}
+		if(file == null)
+			throw new IllegalArgumentException(name != null ? "No map named " + name
+					: "No map contains " + point.getY() + "," + point.getX());
+		try
+		{
+			return regions.get(file);
+		}
+		catch(RuntimeException e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			throw new IllegalStateException("Can't load " + file.getName(), e);
+		}
+	}
+
+	/**
+	 * Reads a lat,lon parameter
+	 * @return The point, with x as longitude and y as latitude
+	 */
+	private static Point2D point(HashMap<String, String> query, String name)
+	{
+		String value = query.get(name);
+		if(value == null)
+			throw new IllegalArgumentException("Missing parameter " + name);
+		return parsePoint(value);
+	}
+
+	/**
+	 * Reads a parameter of lat,lon points separated by semicolons
+	 */
+	private static Point2D[] points(HashMap<String, String> query, String name)
+	{
+		String value = query.get(name);
+		if(value == null || value.isEmpty())
+			throw new IllegalArgumentException("Missing parameter " + name);
+		String[] parts = value.split(";");
+		if(parts.length > MAX_MATRIX)
+			throw new IllegalArgumentException("At most " + MAX_MATRIX + " " + name + " are allowed");
+		Point2D[] points = new Point2D[parts.length];
+		for(int i = 0; i < parts.length; i++)
+		{
+			points[i] = parsePoint(parts[i]);
+		}
+		return points;
+	}
+
+	private static Point2D parsePoint(String value)
+	{
+		String[] parts = value.split(",");
+		if(parts.length != 2)
+			throw new IllegalArgumentException("Expected lat,lon but got " + value);
+		try
+		{
+			return new Point2D.Double(Double.parseDouble(parts[1].trim()), Double.parseDouble(parts[0].trim()));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Expected lat,lon but got " + value);
+		}
+	}
+
+	/**
+	 * Appends a string as a quoted JSON string
+	 */
+	private static void string(StringBuilder sb, String s)
+	{
+		sb.append('"');
+		for(int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if(c < 0x20)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Splits a query string into its decoded parameters
+	 */
+	private static HashMap<String, String> parseQuery(String raw) throws UnsupportedEncodingException
+	{
+		HashMap<String, String> query = new HashMap<String, String>();
+		if(raw == null)
+			return query;
+		for(String pair : raw.split("&"))
+		{
+			int eq = pair.indexOf('=');
+			if(eq > 0)
+			{
+				query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Handler for one endpoint that turns bad requests into 400 responses and anything else
+	 * that goes wrong into 500 responses, both with a JSON error message
+	 */
+	private static abstract class Endpoint implements HttpHandler
+	{
+		/**
+		 * Answers a request
+		 * @param query The decoded query parameters
+		 * @return The JSON response
+		 * @throws IllegalArgumentException If the request is missing or has bad parameters
+		 */
+		abstract String answer(HashMap<String, String> query);
+
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			int status = 200;
+			String body;
+			try
+			{
+				if(!exchange.getRequestMethod().equals("GET"))
+				{
+					status = 405;
+					body = "{\"error\":\"Only GET is supported\"}";
+				}
+				else
+				{
+					body = answer(parseQuery(exchange.getRequestURI().getRawQuery()));
+				}
+			}
+			catch(IllegalArgumentException e)
+			{
+				status = 400;
+				body = error(e);
+			}
+			catch(RuntimeException e)
+			{
+				status = 500;
+				body = error(e);
+			}
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			try
+			{
+				out.write(bytes);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+
+		private static String error(Exception e)
+		{
+			StringBuilder sb = new StringBuilder("{\"error\":");
+			string(sb, String.valueOf(e.getMessage()));
+			return sb.append('}').toString();
+		}
+	}
+
+	/**
+	 * Loads the maps and serves them until the process is stopped
+	 * @param args The port, the number of threads, the maps to serve and the address to listen on
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		InetAddress host = InetAddress.getLoopbackAddress();
+		ArrayList<String> positional = new ArrayList<String>();
+		for(String arg : args)
+		{
+			if(arg.startsWith("-host="))
+				host = InetAddress.getByName(arg.substring("-host=".length()));
+			else
+				positional.add(arg);
+		}
+		int port = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 8080;
+		int threads = positional.size() > 1 ? Integer.parseInt(positional.get(1))
+				: Runtime.getRuntime().availableProcessors();
+		ArrayList<File> files = new ArrayList<File>();
+		for(int i = 2; i < positional.size(); i++)
+		{
+			files.add(new File(positional.get(i)));
+		}
+		if(files.isEmpty())
+		{
+			File[] found = new File("Maps").listFiles(new FilenameFilter()
+					{
+						public boolean accept(File dir, String name)
+						{
+							return name.endsWith(".osm");
+						}
+					});
+			if(found != null)
+			{
+				for(File f : found)
+				{
+					files.add(f);
+				}
+			}
+		}
+
+		// Every map is warmed in the background, as many as fit in the budget staying loaded
+		RegionManager regions = new RegionManager(RegionManager.DEFAULT_BUDGET);
+		for(File f : files)
+		{
+			regions.add(f);
+		}
+		for(File f : files)
+		{
+			regions.prefetch(f);
+		}
+		RoutingServer server = new RoutingServer(regions, host, port, threads);
+		System.out.println("Serving " + files.size() + " maps on " + host.getHostAddress() + " port "
+				+ server.getPort() + " with " + threads + " threads and " + (regions.getBudget() >> 20)
+				+ " MB for maps");
+	}
+}
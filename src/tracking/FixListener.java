@@ -0,0 +1,20 @@
+package tracking;
+
+import com.starkeffect.highway.GPSEvent;
+
+import mapdata.Snap;
+
+/**
+ * Callback used by the GPSPipeline to hand on fixes that have survived coalescing
+ * @author williamloughlin
+ *
+ */
+public interface FixListener {
+
+	/**
+	 * Called from the pipeline's worker thread for the latest fix of each interval
+	 * @param e The gps event
+	 * @param snapped The closest point on the road network to the fix
+	 */
+	public void fixReady(GPSEvent e, Snap snapped);
+}
@@ -0,0 +1,31 @@
+package tracking;
+
+/**
+ * Callback used by the FleetTracker to report when vehicles join, leave or finish their routes.
+ * Events are only sent when the state of a vehicle changes, not for every fix
+ * @author williamloughlin
+ *
+ */
+public interface FleetListener {
+
+	/**
+	 * Called when a vehicle is first seen on its route, or comes back to it
+	 * @param vehicle The id of the vehicle
+	 * @param along How far along the route the vehicle is in miles
+	 */
+	public void vehicleOnRoute(int vehicle, double along);
+
+	/**
+	 * Called when a vehicle leaves its route
+	 * @param vehicle The id of the vehicle
+	 * @param distance How far the vehicle is from the route in miles
+	 */
+	public void vehicleOffRoute(int vehicle, double distance);
+
+	/**
+	 * Called when a vehicle reaches the end of its route. Its fixes are ignored until it is
+	 * given a new route
+	 * @param vehicle The id of the vehicle
+	 */
+	public void vehicleArrived(int vehicle);
+}
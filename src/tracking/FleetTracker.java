@@ -0,0 +1,267 @@
+package tracking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.starkeffect.highway.GPSEvent;
+
+import mapdata.Route;
+
+/**
+ * Tracks many vehicles against their own routes without a window. Vehicles are numbered from 0
+ * and split between a fixed set of worker threads by their number, so every vehicle is only
+ * ever touched by one thread and needs no locking. Each worker keeps the progress of its
+ * vehicles in flat arrays, and looks for a vehicle's position on its route a short window ahead
+ * of where it was last seen rather than over the whole route. A vehicle is on or off its route
+ * by the same Route.OFF_ROUTE and Route.LOOK_AHEAD distances the map panel tracks with
+ * @author williamloughlin
+ *
+ */
+public class FleetTracker {
+
+	// Distance from the end of the route, in miles, that counts as arrived
+	public static final double ARRIVED = 0.01;
+
+	// Fixes queued for each worker before submitters have to wait
+	private static final int QUEUE_SIZE = 8192;
+
+	private static final byte UNKNOWN = 0;
+	private static final byte ON = 1;
+	private static final byte OFF = 2;
+	private static final byte DONE = 3;
+
+	private FleetListener listener;
+	private Shard[] shards;
+	private Thread[] threads;
+
+	/**
+	 * @param workers The number of threads to track vehicles on
+	 * @param listener Told when vehicles join, leave or finish their routes, on the worker threads
+	 */
+	public FleetTracker(int workers, FleetListener listener)
+	{
+		this.listener = listener;
+		shards = new Shard[Math.max(1, workers)];
+		threads = new Thread[shards.length];
+		for(int i = 0; i < shards.length; i++)
+		{
+			shards[i] = new Shard();
+			threads[i] = new Thread(shards[i], "FleetTracker-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Gives a vehicle a new route to follow, replacing any route it had
+	 * @param vehicle The id of the vehicle, 0 or more
+	 * @param route The route the vehicle should follow
+	 */
+	public void setRoute(int vehicle, Route route) throws InterruptedException
+	{
+		shardOf(vehicle).queue.put(new Message(vehicle, 0, 0, route, null));
+	}
+
+	/**
+	 * Queues a fix from a vehicle, waiting if its worker is too far behind
+	 * @param vehicle The id of the vehicle
+	 * @param lat The latitude of the fix
+	 * @param lon The longitude of the fix
+	 */
+	public void submit(int vehicle, double lat, double lon) throws InterruptedException
+	{
+		shardOf(vehicle).queue.put(new Message(vehicle, lat, lon, null, null));
+	}
+
+	/**
+	 * Queues a fix from a vehicle's gps
+	 * @param vehicle The id of the vehicle
+	 * @param e The gps event
+	 */
+	public void submit(int vehicle, GPSEvent e) throws InterruptedException
+	{
+		submit(vehicle, e.getLatitude(), e.getLongitude());
+	}
+
+	/**
+	 * Waits until every fix queued before this call has been processed
+	 */
+	public void flush() throws InterruptedException
+	{
+		CountDownLatch latch = new CountDownLatch(shards.length);
+		for(Shard shard : shards)
+		{
+			shard.queue.put(new Message(-1, 0, 0, null, latch));
+		}
+		latch.await();
+	}
+
+	/**
+	 * Accessor for the number of fixes that have been processed
+	 * @return The number of fixes processed by every worker
+	 */
+	public long processed()
+	{
+		long total = 0;
+		for(Shard shard : shards)
+		{
+			total += shard.processed;
+		}
+		return total;
+	}
+
+	/**
+	 * Stops the worker threads, dropping anything still queued
+	 */
+	public void shutdown()
+	{
+		for(Thread t : threads)
+		{
+			t.interrupt();
+		}
+	}
+
+	private Shard shardOf(int vehicle)
+	{
+		if(vehicle < 0)
+			throw new IllegalArgumentException("Vehicle ids must not be negative: " + vehicle);
+		return shards[vehicle % shards.length];
+	}
+
+	/**
+	 * A fix, a new route or a flush request, queued for a worker
+	 */
+	private static final class Message
+	{
+		private final int vehicle;
+		private final double lat;
+		private final double lon;
+		private final Route route;
+		private final CountDownLatch flush;
+
+		private Message(int vehicle, double lat, double lon, Route route, CountDownLatch flush)
+		{
+			this.vehicle = vehicle;
+			this.lat = lat;
+			this.lon = lon;
+			this.route = route;
+			this.flush = flush;
+		}
+	}
+
+	/**
+	 * One worker thread and the state of the vehicles it owns. Vehicle v is kept at index
+	 * v / shards.length of the arrays
+	 */
+	private class Shard implements Runnable
+	{
+		private ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(QUEUE_SIZE);
+		private volatile long processed;
+
+		private Route[] routes = new Route[16];
+		// Distance along the route in miles
+		private double[] along = new double[16];
+		// Segment of the route the vehicle was last seen on
+		private int[] segment = new int[16];
+		private byte[] state = new byte[16];
+		// Scratch space for Route.closestSegment
+		private double[] closest = new double[2];
+
+		public void run()
+		{
+			ArrayList<Message> batch = new ArrayList<Message>();
+			try
+			{
+				while(true)
+				{
+					batch.add(queue.take());
+					queue.drainTo(batch);
+					for(Message m : batch)
+					{
+						if(m.flush != null)
+						{
+							m.flush.countDown();
+						}
+						else if(m.route != null)
+						{
+							assign(m.vehicle / shards.length, m.route);
+						}
+						else
+						{
+							track(m.vehicle, m.vehicle / shards.length, m.lat, m.lon);
+						}
+					}
+					processed += batch.size();
+					batch.clear();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// Shut down
+			}
+		}
+
+		private void assign(int index, Route route)
+		{
+			if(index >= routes.length)
+			{
+				int size = Math.max(index+1, 2*routes.length);
+				routes = Arrays.copyOf(routes, size);
+				along = Arrays.copyOf(along, size);
+				segment = Arrays.copyOf(segment, size);
+				state = Arrays.copyOf(state, size);
+			}
+			routes[index] = route;
+			along[index] = 0;
+			segment[index] = 0;
+			state[index] = UNKNOWN;
+		}
+
+		/**
+		 * Moves a vehicle along its route to the closest point to a fix, and reports any change
+		 * in whether it is on its route
+		 */
+		private void track(int vehicle, int index, double lat, double lon)
+		{
+			if(index >= routes.length || routes[index] == null || state[index] == DONE)
+				return;
+			Route route = routes[index];
+			if(route.size() < 2)
+				return;
+
+			// Until it is on route the vehicle could join anywhere ahead, so search the rest of it
+			double limit = state[index] == ON ? along[index]+Route.LOOK_AHEAD : Double.POSITIVE_INFINITY;
+			int bestSegment = route.closestSegment(lat, lon, segment[index], limit, closest);
+			double bestDist = closest[0];
+			double bestAlong = closest[1];
+
+			if(bestDist > Route.OFF_ROUTE)
+			{
+				if(state[index] != OFF)
+				{
+					state[index] = OFF;
+					listener.vehicleOffRoute(vehicle, bestDist);
+				}
+				return;
+			}
+			// Never move backwards along the route because of noise
+			if(bestAlong > along[index] || state[index] != ON)
+			{
+				along[index] = bestAlong;
+				segment[index] = bestSegment;
+			}
+			if(route.distanceRemaining(along[index]) < ARRIVED)
+			{
+				state[index] = DONE;
+				listener.vehicleArrived(vehicle);
+			}
+			else if(state[index] != ON)
+			{
+				state[index] = ON;
+				listener.vehicleOnRoute(vehicle, along[index]);
+			}
+		}
+	}
+}
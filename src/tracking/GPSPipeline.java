@@ -0,0 +1,173 @@
+package tracking;
+
+import com.starkeffect.highway.GPSEvent;
+import com.starkeffect.highway.GPSListener;
+
+import java.awt.geom.Point2D;
+
+import mapdata.Data;
+import mapdata.Snap;
+
+/**
+ * Stage between a GPSDevice and whatever tracks its fixes. The device only ever hands a fix to
+ * the pipeline and returns, and a worker thread passes on at most one fix per interval, the
+ * latest, snapped to the road network. Fixes that arrive while an older one is still waiting
+ * replace it, so a slow fix never builds up a backlog behind it
+ * @author williamloughlin
+ *
+ */
+public class GPSPipeline implements GPSListener {
+
+	private Data data;
+	private FixListener listener;
+	private long interval;
+
+	// The newest fix not yet taken by the worker, or null
+	private GPSEvent waiting;
+
+	private long received;
+	private long dropped;
+	private long processed;
+
+	private Thread worker;
+
+	// Where the time taken by each snap is recorded, if anywhere
+	private volatile StageStats stats;
+	private int snapStage;
+
+	/**
+	 * @param data The map to snap fixes to
+	 * @param interval The shortest time in milliseconds between fixes passed on
+	 * @param listener Given the fixes that are passed on, on the pipeline's thread
+	 */
+	public GPSPipeline(Data data, long interval, FixListener listener)
+	{
+		this.data = data;
+		this.interval = interval;
+		this.listener = listener;
+		worker = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						process();
+					}
+				}, "GPSPipeline");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Takes a fix from the device, replacing any fix that is still waiting
+	 */
+	@Override
+	public synchronized void processEvent(GPSEvent e)
+	{
+		received++;
+		if(waiting != null)
+		{
+			dropped++;
+		}
+		waiting = e;
+		notifyAll();
+	}
+
+	/**
+	 * Passes on the latest fix, then waits out the rest of the interval so fixes arriving in
+	 * the meantime are coalesced
+	 */
+	private void process()
+	{
+		try
+		{
+			while(true)
+			{
+				GPSEvent e;
+				synchronized(this)
+				{
+					while(waiting == null)
+					{
+						wait();
+					}
+					e = waiting;
+					waiting = null;
+				}
+				long start = System.currentTimeMillis();
+				long snapStart = System.nanoTime();
+				Snap snapped = data.snap(new Point2D.Double(e.getLongitude(), e.getLatitude()));
+				if(stats != null)
+				{
+					stats.record(snapStage, System.nanoTime()-snapStart);
+				}
+				listener.fixReady(e, snapped);
+				synchronized(this)
+				{
+					processed++;
+				}
+				long left = interval-(System.currentTimeMillis()-start);
+				if(left > 0)
+				{
+					Thread.sleep(left);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// Shut down
+		}
+	}
+
+	/**
+	 * Starts timing how long snapping each fix takes
+	 * @param stats The stats to record the times in
+	 * @param stage The stage of the stats the times are recorded as
+	 */
+	public void setStats(StageStats stats, int stage)
+	{
+		snapStage = stage;
+		this.stats = stats;
+	}
+
+	/**
+	 * Accessor for the number of fixes waiting to be passed on
+	 * @return 1 if a fix is waiting for the worker, otherwise 0
+	 */
+	public synchronized int queueDepth()
+	{
+		return waiting == null ? 0 : 1;
+	}
+
+	/**
+	 * Accessor for the number of fixes received from the device
+	 * @return The number of fixes received
+	 */
+	public synchronized long received()
+	{
+		return received;
+	}
+
+	/**
+	 * Accessor for the number of fixes replaced by a newer fix before being passed on
+	 * @return The number of fixes dropped
+	 */
+	public synchronized long dropped()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Accessor for the number of fixes passed on
+	 * @return The number of fixes processed
+	 */
+	public synchronized long processed()
+	{
+		return processed;
+	}
+
+	/**
+	 * Stops the worker thread, dropping any fix still waiting
+	 */
+	public void shutdown()
+	{
+		worker.interrupt();
+	}
+}
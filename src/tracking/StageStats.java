@@ -0,0 +1,134 @@
+package tracking;
+
+import java.util.Arrays;
+
+/**
+ * Collects how long each stage of handling a fix takes, so changes to tracking can be compared
+ * by their latency percentiles. Times are counted in a fixed histogram rather than kept, so
+ * recording for as long as the application runs takes no more memory. Below 32 ns each bucket
+ * is a single nanosecond, above that each power of two is split into 32 buckets, so a
+ * percentile is within about 3% of the recorded time. Safe to record into from several threads
+ * @author williamloughlin
+ *
+ */
+public class StageStats {
+
+	// Buckets each power of two is split into, as a number of bits
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	// Enough buckets for any non negative long
+	private static final int BUCKETS = (64-SUB_BITS)*SUB;
+
+	private String[] names;
+	private long[][] buckets;
+	private int[] counts;
+	private long[] max;
+
+	/**
+	 * @param names The names of the stages, stage i is recorded with record(i, nanos)
+	 */
+	public StageStats(String... names)
+	{
+		this.names = names.clone();
+		buckets = new long[names.length][BUCKETS];
+		counts = new int[names.length];
+		max = new long[names.length];
+	}
+
+	/**
+	 * Records one run of a stage
+	 * @param stage The index of the stage
+	 * @param nanos How long the stage took in nanoseconds
+	 */
+	public synchronized void record(int stage, long nanos)
+	{
+		nanos = Math.max(0, nanos);
+		buckets[stage][bucket(nanos)]++;
+		counts[stage]++;
+		max[stage] = Math.max(max[stage], nanos);
+	}
+
+	/**
+	 * Finds the bucket a time is counted in
+	 */
+	private static int bucket(long nanos)
+	{
+		if(nanos < SUB)
+			return (int)nanos;
+		int shift = 63-Long.numberOfLeadingZeros(nanos)-SUB_BITS;
+		return (shift+1)*SUB + (int)(nanos >>> shift) - SUB;
+	}
+
+	/**
+	 * Finds the largest time counted in a bucket
+	 */
+	private static long upperBound(int bucket)
+	{
+		if(bucket < SUB)
+			return bucket;
+		int shift = bucket/SUB - 1;
+		long mantissa = bucket%SUB + SUB;
+		return ((mantissa+1) << shift) - 1;
+	}
+
+	/**
+	 * Accessor for the number of times a stage has run
+	 * @param stage The index of the stage
+	 * @return The number of recorded runs
+	 */
+	public synchronized int count(int stage)
+	{
+		return counts[stage];
+	}
+
+	/**
+	 * Finds a percentile of the time a stage took
+	 * @param stage The index of the stage
+	 * @param p The percentile, from 0 to 100
+	 * @return The time in nanoseconds that p percent of runs finished within, rounded up to the
+	 * end of its bucket but no more than the longest run, or 0 if the stage never ran
+	 */
+	public synchronized long percentile(int stage, double p)
+	{
+		if(counts[stage] == 0)
+			return 0;
+		long rank = Math.max(1, Math.min(counts[stage], (long)Math.ceil(p/100*counts[stage])));
+		long seen = 0;
+		for(int b = 0; b < BUCKETS; b++)
+		{
+			seen += buckets[stage][b];
+			if(seen >= rank)
+				return Math.min(upperBound(b), max[stage]);
+		}
+		return max[stage];
+	}
+
+	/**
+	 * Forgets every recorded run
+	 */
+	public synchronized void clear()
+	{
+		for(long[] stage : buckets)
+		{
+			Arrays.fill(stage, 0);
+		}
+		Arrays.fill(counts, 0);
+		Arrays.fill(max, 0);
+	}
+
+	/**
+	 * Returns a table of the count and the 50th, 90th, 99th and largest times of each stage
+	 */
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-10s %8s %10s %10s %10s %10s%n", "stage", "count", "p50 us", "p90 us",
+				"p99 us", "max us"));
+		for(int i = 0; i < names.length; i++)
+		{
+			sb.append(String.format("%-10s %8d %10.1f %10.1f %10.1f %10.1f%n", names[i], counts[i],
+					percentile(i, 50)/1e3, percentile(i, 90)/1e3, percentile(i, 99)/1e3, percentile(i, 100)/1e3));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,103 @@
+package tracking;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.starkeffect.highway.GPSEvent;
+import com.starkeffect.highway.GPSListener;
+
+/**
+ * Writes the gps events it receives to a trace file, so a drive can be replayed later with a
+ * TraceReplayer
+ *
+ * The file starts with the bytes "GPST" and a format version, followed by one 18 byte record per
+ * event: the time in milliseconds as a long, the latitude and longitude in ten millionths of a
+ * degree as ints, and the heading in tenths of a degree as a short
+ * @author williamloughlin
+ *
+ */
+public class TraceRecorder implements GPSListener {
+
+	public static final int MAGIC = 0x47505354;
+	public static final int VERSION = 1;
+
+	private DataOutputStream out;
+	private int count;
+
+	/**
+	 * Creates the trace file, replacing any file already there
+	 * @param file The file to write to
+	 */
+	public TraceRecorder(File file) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**
+	 * Appends an event to the trace
+	 */
+	@Override
+	public synchronized void processEvent(GPSEvent e)
+	{
+		long time = e.getDate() != null ? e.getDate().getTime() : System.currentTimeMillis();
+		record(time, e.getLatitude(), e.getLongitude(), e.getHeading());
+	}
+
+	/**
+	 * Appends a fix to the trace
+	 * @param time The time of the fix in milliseconds
+	 * @param lat The latitude of the fix
+	 * @param lon The longitude of the fix
+	 * @param heading The heading in degrees
+	 */
+	public synchronized void record(long time, double lat, double lon, double heading)
+	{
+		if(out == null)
+			return;
+		try
+		{
+			out.writeLong(time);
+			out.writeInt((int)Math.round(lat*1e7));
+			out.writeInt((int)Math.round(lon*1e7));
+			out.writeShort((short)Math.round(heading*10));
+			count++;
+		}
+		catch(IOException ex)
+		{
+			// Stop recording rather than fail the gps device's thread
+			close();
+		}
+	}
+
+	/**
+	 * Accessor for the number of events written
+	 * @return The number of events in the trace
+	 */
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Finishes the trace file. Events received afterwards are ignored
+	 */
+	public synchronized void close()
+	{
+		if(out == null)
+			return;
+		try
+		{
+			out.close();
+		}
+		catch(IOException ex)
+		{
+			// Nothing more can be written either way
+		}
+		out = null;
+	}
+}
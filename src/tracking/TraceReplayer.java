@@ -0,0 +1,179 @@
+package tracking;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import com.starkeffect.highway.GPSEvent;
+import com.starkeffect.highway.GPSListener;
+
+/**
+ * Reads a trace written by a TraceRecorder and feeds its events to a listener, either with the
+ * timing they were recorded with or as fast as the listener takes them. The same trace always
+ * produces the same events, so a drive can be used to compare changes to tracking
+ * @author williamloughlin
+ *
+ */
+public class TraceReplayer {
+
+	private long[] times;
+	private double[] lats;
+	private double[] lons;
+	private double[] headings;
+	private int size;
+
+	/**
+	 * Reads a whole trace file, dropping a record cut short at its end
+	 * @param file The trace to read
+	 */
+	public TraceReplayer(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != TraceRecorder.MAGIC)
+				throw new IOException(file + " is not a gps trace");
+			int version = in.readInt();
+			if(version != TraceRecorder.VERSION)
+				throw new IOException("Unsupported trace version " + version);
+			int capacity = (int)Math.max(16, (file.length()-8)/18);
+			times = new long[capacity];
+			lats = new double[capacity];
+			lons = new double[capacity];
+			headings = new double[capacity];
+			while(true)
+			{
+				long time;
+				int lat;
+				int lon;
+				short heading;
+				// A recorder stopped part way through writing a record leaves it cut short, so
+				// only whole records are kept
+				try
+				{
+					time = in.readLong();
+					lat = in.readInt();
+					lon = in.readInt();
+					heading = in.readShort();
+				}
+				catch(EOFException e)
+				{
+					break;
+				}
+				if(size == times.length)
+				{
+					times = Arrays.copyOf(times, 2*size);
+					lats = Arrays.copyOf(lats, 2*size);
+					lons = Arrays.copyOf(lons, 2*size);
+					headings = Arrays.copyOf(headings, 2*size);
+				}
+				times[size] = time;
+				lats[size] = lat/1e7;
+				lons[size] = lon/1e7;
+				headings[size] = heading/10.0;
+				size++;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Accessor for the number of events in the trace
+	 * @return The number of events
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Accessor for an event of the trace
+	 * @param i The index of the event
+	 * @return The event, with the time it was recorded at
+	 */
+	public GPSEvent getEvent(int i)
+	{
+		return new RecordedEvent(times[i], lats[i], lons[i], headings[i]);
+	}
+
+	/**
+	 * Feeds every event of the trace to a listener on the calling thread
+	 * @param listener The listener to feed
+	 * @param speed How many times faster than it was recorded to replay the trace, or 0 to
+	 * replay it as fast as the listener takes the events
+	 * @return The time the replay took in nanoseconds
+	 * @throws InterruptedException If the calling thread is interrupted, checked before each event
+	 */
+	public long replay(GPSListener listener, double speed) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		for(int i = 0; i < size; i++)
+		{
+			if(Thread.interrupted())
+				throw new InterruptedException();
+			if(speed > 0)
+			{
+				long due = start + (long)((times[i]-times[0])*1e6/speed);
+				long wait = due-System.nanoTime();
+				if(wait > 0)
+				{
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+				}
+			}
+			listener.processEvent(getEvent(i));
+		}
+		return System.nanoTime()-start;
+	}
+
+	/**
+	 * An event read back from a trace
+	 */
+	private static final class RecordedEvent implements GPSEvent
+	{
+		private final long time;
+		private final double lat;
+		private final double lon;
+		private final double heading;
+
+		private RecordedEvent(long time, double lat, double lon, double heading)
+		{
+			this.time = time;
+			this.lat = lat;
+			this.lon = lon;
+			this.heading = heading;
+		}
+
+		public double getLatitude()
+		{
+			return lat;
+		}
+
+		public double getLongitude()
+		{
+			return lon;
+		}
+
+		public double getHeading()
+		{
+			return heading;
+		}
+
+		public Date getDate()
+		{
+			return new Date(time);
+		}
+
+		public String toString()
+		{
+			return "GPSEvent[" + new Date(time) + ", " + lat + ", " + lon + ", " + heading + "]";
+		}
+	}
+}